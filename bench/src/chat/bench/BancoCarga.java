@@ -0,0 +1,349 @@
+package chat.bench;
+
+/**
+ * Prueba de carga de extremo a extremo: arranca un {@code MainServidor} en otro proceso, en el
+ * puerto local indicado, conecta tantos usuarios como se pida a una misma sala y mide cuántos
+ * mensajes se reparten por segundo y cuánto tardan en llegar a cada miembro (percentiles 50, 99 y
+ * 99,9), para cada tamaño de sala.
+ *
+ * Con "--nodos" se repite la prueba con clusters de varios servidores, cada uno en su propio
+ * proceso y en puertos consecutivos a partir de "--puerto", y los usuarios se reparten entre ellos
+ * por turnos, así que casi todas las entregas cruzan algún enlace entre nodos.
+ *
+ * Los usuarios son clientes reales ({@link ClienteChat}), cifrados salvo con "--en-claro", cada uno
+ * con sus hilos virtuales de lectura y escritura. Unos pocos de ellos envían mensajes a ritmo fijo con la hora prevista de envío
+ * (System.nanoTime) como texto; quien lo recibe anota la diferencia con la hora actual. Se cuenta
+ * desde la hora prevista y no desde la real para que, si el emisor se retrasa porque el servidor no
+ * da abasto, ese retraso también cuente como latencia.
+ *
+ * El ritmo de cada sala es el menor entre "--mensajes-por-s" y "--entregas-por-s" (por cada nodo)
+ * repartido entre los miembros, para que las salas grandes no se saturen solo por su tamaño. Entrar en una sala
+ * cuesta más cuanto más grande es (cada miembro recibe la entrada de todos los demás), así que las
+ * salas de miles de usuarios tardan en prepararse. Opciones ("--opcion=valor"):
+ * --usuarios=2,10,100,1000,10000 --segundos=10 --calentamiento-s=3 --emisores=4
+ * --mensajes-por-s=5000 --entregas-por-s=500000 --puerto=5099 --en-claro --nodos=1,2,4
+ * --opciones-servidor="--bloqueante ..." (se añaden a las del servidor)
+ * --conectar=host (usa servidores ya arrancados en ese host y puertos en lugar de lanzarlos).
+ *
+ * @author sdacatrinei
+ */
+
+import chat.servidor.Histograma;
+import chat.usuario.ClienteChat;
+import chat.util.TramaEntrante;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class BancoCarga {
+
+    // Conexiones que hacen el saludo a la vez, para no desbordar la cola de conexiones del servidor
+    private static final int SALUDOS_SIMULTANEOS = 200;
+
+    // Espera máxima a que todos los usuarios estén en la sala o a que lleguen los últimos mensajes
+    private static final long ESPERA_MAXIMA_MS = 120_000;
+
+    // Distancia entre el puerto de los usuarios de cada nodo y el de su enlace de cluster, y espera
+    // a que los nodos abran sus enlaces (los reintentan cada segundo)
+    private static final int DESPLAZAMIENTO_CLUSTER = 100;
+    private static final long ESPERA_ENLACES_MS = 3000;
+
+    private int[] usuarios = {2, 10, 100, 1000, 10000};
+    private int segundos = 10;
+    private int calentamientoS = 3;
+    private int emisores = 4;
+    private int mensajesPorS = 5000;
+    private int entregasPorS = 500_000;
+    private int puerto = 5099;
+    private int[] nodos = {1};
+    private boolean cifrado = true;
+    private String host = null; // null: se arranca un servidor propio en localhost
+    private final List<String> opcionesServidor = new ArrayList<>();
+
+    // Latencias de entrega de la sala que se está midiendo, en nanosegundos
+    private final Histograma latencias = new Histograma();
+    private final LongAdder entregas = new LongAdder();
+
+    // Solo se anotan los mensajes con la hora prevista dentro de la medición
+    private volatile long inicioMedicion;
+
+    // Número de nodos de la medición en curso
+    private int nodosActuales;
+
+    /**
+     * Usuario de la prueba: un {@link ClienteChat} ya saludado y dentro de la sala, sin
+     * reconexión, para que una conexión perdida cuente como mensajes perdidos.
+     */
+    private final class Usuario implements ClienteChat.Oyente {
+        private final ClienteChat cliente;
+        private final String sala;
+        private final CountDownLatch enSala;
+
+        private Usuario(String nombre, int puertoNodo, String sala, CountDownLatch enSala) throws IOException {
+            this.sala = sala;
+            this.enSala = enSala;
+            cliente = new ClienteChat(host == null ? "localhost" : host, puertoNodo, this);
+            cliente.setCifrado(cifrado);
+            cliente.setReconexion(false);
+            String rechazo = cliente.conectar(nombre);
+            if (rechazo != null) {
+                throw new IOException(nombre + ": " + rechazo);
+            }
+            cliente.unirse(sala);
+        }
+
+        @Override
+        public void alRecibir(TramaEntrante trama) {
+            switch (trama.getTipo()) {
+                case UNIRSE -> {
+                    if (trama.getRemitente() == cliente.getId() && trama.texto().equals(sala)) {
+                        enSala.countDown();
+                    }
+                }
+                case MENSAJE -> {
+                    long ahora = System.nanoTime();
+                    long previsto = Long.parseLong(trama.texto());
+                    if (previsto >= inicioMedicion) {
+                        latencias.registrar(ahora - previsto);
+                        entregas.increment();
+                    }
+                }
+                case null, default -> {
+                    // Las entradas y salidas del resto no se miden
+                }
+            }
+        }
+
+        private void cerrar() {
+            cliente.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BancoCarga banco = new BancoCarga();
+        banco.leerOpciones(args);
+        System.out.printf("%-6s %-9s %9s %12s %12s %9s %10s %10s %10s %10s%n", "nodos", "usuarios", "emisores",
+                "mensajes/s", "entregas/s", "perdidas", "p50 µs", "p99 µs", "p99,9 µs", "máx µs");
+        for (int numero : banco.nodos) {
+            banco.nodosActuales = numero;
+            List<Process> servidores = new ArrayList<>();
+            try {
+                if (banco.host == null) {
+                    for (int i = 0; i < numero; i++) {
+                        servidores.add(banco.arrancarServidor(i, numero));
+                    }
+                    if (numero > 1) {
+                        Thread.sleep(ESPERA_ENLACES_MS);
+                    }
+                }
+                for (int tamano : banco.usuarios) {
+                    banco.medir(tamano);
+                }
+            } finally {
+                for (Process servidor : servidores) {
+                    servidor.destroy();
+                    servidor.waitFor();
+                }
+            }
+        }
+    }
+
+    private void leerOpciones(String[] args) {
+        for (String argumento : args) {
+            int igual = argumento.indexOf('=');
+            String opcion = igual < 0 ? argumento : argumento.substring(0, igual);
+            String valor = igual < 0 ? null : argumento.substring(igual + 1);
+            switch (opcion) {
+                case "--usuarios" -> usuarios = Arrays.stream(valor.split(",")).mapToInt(Integer::parseInt).toArray();
+                case "--segundos" -> segundos = Integer.parseInt(valor);
+                case "--calentamiento-s" -> calentamientoS = Integer.parseInt(valor);
+                case "--emisores" -> emisores = Integer.parseInt(valor);
+                case "--mensajes-por-s" -> mensajesPorS = Integer.parseInt(valor);
+                case "--entregas-por-s" -> entregasPorS = Integer.parseInt(valor);
+                case "--puerto" -> puerto = Integer.parseInt(valor);
+                case "--nodos" -> nodos = Arrays.stream(valor.split(",")).mapToInt(Integer::parseInt).toArray();
+                case "--en-claro" -> cifrado = false;
+                case "--conectar" -> host = valor;
+                case "--opciones-servidor" -> opcionesServidor.addAll(Arrays.asList(valor.trim().split("\\s+")));
+                default -> throw new IllegalArgumentException("Opción desconocida: " + argumento);
+            }
+        }
+    }
+
+    /**
+     * Lanza un servidor con el mismo Java y classpath que el banco, sin historial ni eco de
+     * mensajes, y espera a que acepte conexiones. Si hay más de un nodo, lo une en cluster con los
+     * demás. Su salida va a un archivo temporal.
+     *
+     * @param indice Posición del servidor entre los nodos, empezando por 0.
+     * @param numero Número de nodos del cluster.
+     */
+    private Process arrancarServidor(int indice, int numero) throws IOException, InterruptedException {
+        Path carpeta = Files.createTempDirectory("banco-carga");
+        int puertoNodo = puerto + indice;
+        int limite = Arrays.stream(usuarios).max().orElse(0) + 16;
+        List<String> comando = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "chat.servidor.MainServidor",
+                "--puerto=" + puertoNodo, "--limite=" + limite, "--backlog=" + SALUDOS_SIMULTANEOS * 2,
+                // Cada usuario simulado envía muy por encima del límite de un usuario real
+                "--limite-mensajes=0", "--limite-bytes=0",
+                "--sin-historial", "--sin-eco-mensajes", "--log=" + carpeta.resolve("servidor.log")));
+        if (!cifrado) {
+            comando.add("--cifrado=opcional");
+        }
+        if (numero > 1) {
+            List<String> pares = new ArrayList<>();
+            for (int i = 0; i < numero; i++) {
+                if (i != indice) {
+                    pares.add("localhost:" + (puerto + DESPLAZAMIENTO_CLUSTER + i));
+                }
+            }
+            comando.add("--nodo=" + (indice + 1));
+            comando.add("--cluster-puerto=" + (puertoNodo + DESPLAZAMIENTO_CLUSTER));
+            comando.add("--pares=" + String.join(",", pares));
+        }
+        comando.addAll(opcionesServidor);
+        Process servidor = new ProcessBuilder(comando).redirectErrorStream(true)
+                .redirectOutput(carpeta.resolve("servidor.out").toFile()).start();
+        System.out.println("Servidor en el puerto " + puertoNodo + "; su salida está en " + carpeta);
+
+        long limiteEspera = System.currentTimeMillis() + 15_000;
+        while (true) {
+            try {
+                new Socket("localhost", puertoNodo).close();
+                return servidor;
+            } catch (IOException ex) {
+                if (!servidor.isAlive() || System.currentTimeMillis() > limiteEspera) {
+                    servidor.destroy();
+                    throw new IOException("El servidor no ha arrancado", ex);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Llena una sala con el número de usuarios indicado, mide y muestra una línea de resultados,
+     * y desconecta a todos.
+     */
+    private void medir(int tamano) throws Exception {
+        String sala = "carga-" + tamano;
+        CountDownLatch enSala = new CountDownLatch(tamano);
+        List<Usuario> conectados = conectar(tamano, sala, enSala);
+        try {
+            if (!enSala.await(ESPERA_MAXIMA_MS, TimeUnit.MILLISECONDS)) {
+                System.out.println(tamano + ": solo " + (tamano - enSala.getCount()) + " usuarios han entrado en la sala");
+                return;
+            }
+
+            // Ritmo de toda la sala, repartido a partes iguales entre los emisores
+            int numeroEmisores = Math.min(emisores, tamano);
+            double ritmo = Math.max(1, Math.min(mensajesPorS,
+                    (double) entregasPorS * nodosActuales / Math.max(1, tamano - 1)));
+            long intervalo = (long) (1e9 * numeroEmisores / ritmo);
+
+            latencias.reiniciar();
+            entregas.reset();
+            long comienzo = System.nanoTime();
+            inicioMedicion = comienzo + TimeUnit.SECONDS.toNanos(calentamientoS);
+            long fin = inicioMedicion + TimeUnit.SECONDS.toNanos(segundos);
+            LongAdder medidos = new LongAdder();
+            List<Thread> hilosEmisores = new ArrayList<>();
+            for (int i = 0; i < numeroEmisores; i++) {
+                Usuario emisor = conectados.get(i);
+                long primero = comienzo + intervalo * i / numeroEmisores;
+                hilosEmisores.add(Thread.ofPlatform().name("emisor-" + i)
+                        .start(() -> emitir(emisor, primero, intervalo, fin, medidos)));
+            }
+            for (Thread hilo : hilosEmisores) {
+                hilo.join();
+            }
+
+            // Esperamos a que lleguen los últimos mensajes o a que dejen de llegar
+            long esperadas = medidos.sum() * (tamano - 1);
+            long anteriores = -1;
+            long limiteEspera = System.currentTimeMillis() + ESPERA_MAXIMA_MS;
+            while (entregas.sum() < esperadas && entregas.sum() != anteriores
+                    && System.currentTimeMillis() < limiteEspera) {
+                anteriores = entregas.sum();
+                Thread.sleep(500);
+            }
+
+            long recibidas = entregas.sum();
+            System.out.printf("%-6d %-9d %9d %12.0f %12.0f %9d %10.0f %10.0f %10.0f %10.0f%n", nodosActuales,
+                    tamano, numeroEmisores,
+                    (double) medidos.sum() / segundos, (double) recibidas / segundos, esperadas - recibidas,
+                    latencias.percentil(50) / 1e3, latencias.percentil(99) / 1e3,
+                    latencias.percentil(99.9) / 1e3, latencias.maximo() / 1e3);
+        } finally {
+            for (Usuario usuario : conectados) {
+                usuario.cerrar();
+            }
+            // Damos tiempo al servidor para dar de baja a todos antes de la siguiente sala
+            Thread.sleep(Math.min(10_000, 500 + tamano));
+        }
+    }
+
+    /**
+     * Conecta a los usuarios en paralelo, limitando cuántos saludan a la vez y repartiéndolos por
+     * turnos entre los nodos.
+     */
+    private List<Usuario> conectar(int tamano, String sala, CountDownLatch enSala) throws Exception {
+        Semaphore saludos = new Semaphore(SALUDOS_SIMULTANEOS);
+        List<Future<Usuario>> pendientes = new ArrayList<>();
+        try (ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < tamano; i++) {
+                String nombre = "u" + tamano + "-" + i;
+                int puertoNodo = puerto + i % nodosActuales;
+                pendientes.add(hilos.submit(() -> {
+                    saludos.acquire();
+                    try {
+                        return new Usuario(nombre, puertoNodo, sala, enSala);
+                    } finally {
+                        saludos.release();
+                    }
+                }));
+            }
+        }
+        List<Usuario> conectados = new ArrayList<>();
+        for (Future<Usuario> pendiente : pendientes) {
+            conectados.add(pendiente.get());
+        }
+        return conectados;
+    }
+
+    /**
+     * Envía mensajes a ritmo fijo hasta el final de la medición sin esperar a que salgan. Si se
+     * retrasa, envía los que faltan seguidos, cada uno con su hora prevista.
+     */
+    private void emitir(Usuario emisor, long primero, long intervalo, long fin, LongAdder medidos) {
+        for (long previsto = primero; previsto < fin; previsto += intervalo) {
+            long espera = previsto - System.nanoTime();
+            if (espera > 0) {
+                LockSupport.parkNanos(espera);
+            }
+            CompletableFuture<Void> envio = emisor.cliente.enviarMensaje(Long.toString(previsto));
+            if (envio.isCompletedExceptionally()) {
+                System.out.println("El emisor ha perdido la conexión: " + envio.exceptionNow().getMessage());
+                return;
+            }
+            if (previsto >= inicioMedicion) {
+                medidos.increment();
+            }
+        }
+    }
+}
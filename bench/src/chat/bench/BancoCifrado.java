@@ -0,0 +1,77 @@
+package chat.bench;
+
+/**
+ * Compara cuántos mensajes por segundo pasan de un extremo a otro de la conexión en claro y
+ * cifrados con {@link Cifrado}, para varios tamaños de mensaje. En claro, cada mensaje se copia al
+ * buffer de salida y se interpreta al otro lado; cifrado, se cifra al copiarlo y se descifra antes
+ * de interpretarlo. Los dos caminos reutilizan sus buffers, así que la diferencia es el coste de
+ * AES-GCM por mensaje. También mide el hash MD5 que usaba el proyecto original.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Cifrado;
+import chat.util.HashMD5;
+import chat.util.Protocolo;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+
+public class BancoCifrado {
+
+    private static final int OPERACIONES = 200_000;
+
+    public static void main(String[] args) throws ProtocolException {
+        // Claves acordadas igual que en una conexión real: el usuario cifra y el servidor descifra
+        KeyPair parUsuario = Cifrado.nuevoParClaves();
+        KeyPair parServidor = Cifrado.nuevoParClaves();
+        Cifrado usuario = Cifrado.acordar(parUsuario, parServidor.getPublic().getEncoded(), false);
+        Cifrado servidor = Cifrado.acordar(parServidor, parUsuario.getPublic().getEncoded(), true);
+
+        for (int tamano : new int[] {64, 1024, 16 * 1024}) {
+            ByteBuffer plana = Protocolo.codificar(TipoTrama.MENSAJE, 1, 1, System.currentTimeMillis(), "x".repeat(tamano));
+            ByteBuffer salida = ByteBuffer.allocateDirect(plana.remaining() + 64);
+            TramaEntrante recibida = new TramaEntrante();
+            TramaEntrante descifrada = new TramaEntrante();
+            int operaciones = OPERACIONES / Math.max(1, tamano / 1024);
+
+            System.out.println("Mensaje de " + tamano + " bytes");
+            Medicion.medir("En claro (copiar + interpretar)", operaciones, () -> {
+                salida.clear();
+                salida.put(plana.duplicate()).flip();
+                leer(salida, recibida);
+                Medicion.sumidero = recibida;
+            });
+            Medicion.medir("AES-GCM (cifrar + descifrar + interpretar)", operaciones, () -> {
+                salida.clear();
+                usuario.cifrar(plana.duplicate(), salida);
+                salida.flip();
+                leer(salida, recibida);
+                try {
+                    servidor.descifrar(recibida, descifrada);
+                } catch (ProtocolException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                Medicion.sumidero = descifrada;
+            });
+            System.out.println();
+        }
+
+        System.out.println("Hash MD5 de un mensaje");
+        String mensaje = "¿Quedamos mañana a las cinco en la plaza?";
+        Medicion.medir("HashMD5.calcularMD5", OPERACIONES, () -> Medicion.sumidero = HashMD5.calcularMD5(mensaje));
+    }
+
+    /**
+     * Interpreta la trama completa que hay en el buffer, como hace el lector de la conexión.
+     */
+    private static void leer(ByteBuffer buffer, TramaEntrante destino) {
+        try {
+            destino.decodificar(buffer, Protocolo.longitudPendiente(buffer));
+        } catch (ProtocolException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package chat.bench;
+
+/**
+ * Mide cuántos bytes ahorra comprimir las tramas con {@link Compresion} y cuánta CPU cuesta, para
+ * varios tamaños de mensaje y niveles de deflate, y para un lote del historial como el que recibe
+ * quien entra en una sala. El texto se forma con palabras de un vocabulario fijo para que se
+ * parezca a una conversación, y no a bytes aleatorios (que no se comprimen) ni a un carácter
+ * repetido (que se comprime demasiado bien).
+ *
+ * El servidor comprime cada trama una sola vez y la envía a todos los miembros de la sala que lo
+ * admiten, y cada uno la descomprime al recibirla: el resumen final muestra lo que se ahorra por
+ * destinatario frente a lo que cuesta comprimirla y descomprimirla.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Compresion;
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BancoCompresion {
+
+    private static final int OPERACIONES = 20_000;
+
+    private static final int[] TAMANOS = {64, 256, 512, 1024, 4096, 16 * 1024, 64 * 1024};
+    private static final int[] NIVELES = {1, 6, 9};
+
+    // Mensajes del lote del historial, como los que se repiten por defecto al entrar en una sala
+    private static final int MENSAJES_HISTORIAL = 50;
+
+    private static final String[] PALABRAS = {
+        "hola", "qué", "tal", "el", "la", "de", "que", "y", "en", "un", "una", "los", "las", "por",
+        "para", "con", "no", "sí", "mañana", "hoy", "ayer", "quedamos", "a", "las", "cinco", "plaza",
+        "servidor", "mensaje", "sala", "conexión", "creo", "vale", "perfecto", "luego", "hablamos",
+        "alguien", "sabe", "cómo", "funciona", "esto", "me", "parece", "bien", "gracias", "muchas",
+        "pues", "entonces", "vamos", "reunión", "proyecto", "código", "revisar", "cambios", "ahora"
+    };
+
+    private static final String[] AUTORES = {"ana", "luis", "marta", "jorge", "lucía", "pablo"};
+
+    public static void main(String[] args) throws ProtocolException {
+        Random aleatorio = new Random(42);
+        List<String> resumen = new ArrayList<>();
+
+        for (int tamano : TAMANOS) {
+            ByteBuffer plana = Protocolo.codificar(TipoTrama.MENSAJE, 1, 1, Reloj.ahora(), texto(aleatorio, tamano));
+            medir("Mensaje de " + tamano + " bytes", plana, resumen);
+        }
+        medir("Historial de " + MENSAJES_HISTORIAL + " mensajes", historial(aleatorio), resumen);
+
+        System.out.println("Resumen (comprimir: una vez por mensaje; descomprimir: en cada destinatario)");
+        System.out.printf("%-28s %5s %9s %11s %8s %14s %16s%n", "", "nivel", "trama", "comprimida",
+                "ahorro", "comprimir ns", "descomprimir ns");
+        resumen.forEach(System.out::println);
+    }
+
+    /**
+     * Mide la compresión de una trama (o un lote) con cada nivel y añade una línea al resumen por nivel.
+     */
+    private static void medir(String titulo, ByteBuffer plana, List<String> resumen) throws ProtocolException {
+        int longitud = plana.remaining();
+        int operaciones = Math.max(200, OPERACIONES / Math.max(1, longitud / 1024));
+        System.out.println(titulo + " (trama de " + longitud + " bytes)");
+        Compresion descompresion = new Compresion();
+        TramaEntrante recibida = new TramaEntrante();
+        TramaEntrante destino = new TramaEntrante();
+        for (int nivel : NIVELES) {
+            ByteBuffer comprimida = Compresion.comprimir(plana, nivel);
+            if (comprimida == null) {
+                System.out.println("Nivel " + nivel + ": comprimida no ocupa menos; se envía sin comprimir");
+                resumen.add(String.format("%-28s %5d %9d %11s %8s %14s %16s", titulo, nivel, longitud, "-", "-", "-", "-"));
+                continue;
+            }
+            Medicion.Resultado comprimir = Medicion.medir("deflate nivel " + nivel, operaciones,
+                    () -> Medicion.sumidero = Compresion.comprimir(plana, nivel));
+            Medicion.Resultado descomprimir = Medicion.medir("inflate nivel " + nivel + " + interpretar", operaciones, () -> {
+                try {
+                    ByteBuffer entrada = comprimida.duplicate();
+                    recibida.decodificar(entrada, Protocolo.longitudPendiente(entrada));
+                    descompresion.descomprimir(recibida);
+                    while (descompresion.siguiente(destino)) {
+                        Medicion.sumidero = destino;
+                    }
+                } catch (ProtocolException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            int ahorro = longitud - comprimida.remaining();
+            resumen.add(String.format("%-28s %5d %9d %11d %7.1f%% %14.0f %16.0f", titulo, nivel, longitud,
+                    comprimida.remaining(), 100.0 * ahorro / longitud, comprimir.nanosPorOperacion(),
+                    descomprimir.nanosPorOperacion()));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Forma un texto de unos bytes dados con palabras del vocabulario.
+     */
+    private static String texto(Random aleatorio, int tamano) {
+        StringBuilder texto = new StringBuilder(tamano + 16);
+        while (texto.length() < tamano) {
+            texto.append(PALABRAS[aleatorio.nextInt(PALABRAS.length)]).append(' ');
+        }
+        texto.setLength(tamano);
+        return texto.toString();
+    }
+
+    /**
+     * Codifica un lote de tramas del historial seguidas, con mensajes cortos de varios autores.
+     */
+    private static ByteBuffer historial(Random aleatorio) {
+        List<byte[]> autores = new ArrayList<>();
+        List<byte[]> textos = new ArrayList<>();
+        int total = 0;
+        long marcaTiempo = Reloj.ahora();
+        for (int i = 0; i < MENSAJES_HISTORIAL; i++) {
+            autores.add(AUTORES[aleatorio.nextInt(AUTORES.length)].getBytes(StandardCharsets.UTF_8));
+            textos.add(texto(aleatorio, 20 + aleatorio.nextInt(100)).getBytes(StandardCharsets.UTF_8));
+            total += Protocolo.longitudConNombre(i + 1, i + 1, marcaTiempo + i, autores.get(i).length, textos.get(i).length);
+        }
+        ByteBuffer lote = ByteBuffer.allocateDirect(total);
+        for (int i = 0; i < MENSAJES_HISTORIAL; i++) {
+            Protocolo.escribirConNombre(lote, TipoTrama.HISTORIAL, i + 1, i + 1, marcaTiempo + i, autores.get(i), textos.get(i));
+        }
+        return lote.flip();
+    }
+}
@@ -0,0 +1,56 @@
+package chat.bench;
+
+/**
+ * Compara el coste de reenviar un mensaje a toda la sala según el número de usuarios:
+ * codificando el mensaje una vez por destinatario, como hacía el servidor original con writeUTF,
+ * o codificándolo una sola vez en una {@link TramaSalida} compartida. Con la trama compartida
+ * la memoria asignada por mensaje no depende del tamaño de la sala.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.servidor.RegistroSesiones;
+import chat.servidor.TramaSalida;
+import chat.util.TipoTrama;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+public class BancoDifusion {
+
+    private static final String MENSAJE = "[12:34] usuario: ¿Quedamos mañana a las cinco en la plaza?";
+
+    public static void main(String[] args) {
+        System.out.println("Difusión de un mensaje a toda la sala");
+        for (int usuarios : new int[] {10, 100, 1000, 10000}) {
+            RegistroSesiones<SesionFalsa> sala = new RegistroSesiones<>();
+            for (int i = 0; i < usuarios; i++) {
+                sala.agregar(new SesionFalsa(i + 1));
+            }
+            int operaciones = Math.max(200, 2_000_000 / usuarios);
+
+            Medicion.medir("codificar por destinatario, " + usuarios + " usuarios", operaciones, () -> {
+                for (SesionFalsa sesion : sala) {
+                    sesion.enviar(new TramaSalida(ByteBuffer.wrap(writeUTF(MENSAJE))));
+                }
+            });
+            Medicion.medir("codificar una vez, " + usuarios + " usuarios", operaciones,
+                    () -> sala.difundir(TramaSalida.deTexto(TipoTrama.MENSAJE, 1, 1, MENSAJE), null));
+        }
+    }
+
+    /**
+     * Codificación original: un DataOutputStream y un array nuevos por cada destinatario.
+     */
+    private static byte[] writeUTF(String mensaje) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(mensaje);
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package chat.bench;
+
+/**
+ * Compara el coste de ponerle la hora a un mensaje: creando un SimpleDateFormat y un Date en cada
+ * llamada, como hacía el servidor original, usando un DateTimeFormatter compartido, o usando el
+ * texto que guarda {@link Reloj} y que solo se formatea cuando cambia el minuto. También mide las
+ * marcas de tiempo ISO-8601 que se escriben en el log.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Reloj;
+import java.text.SimpleDateFormat;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+public class BancoReloj {
+
+    private static final int OPERACIONES = 1_000_000;
+
+    private static final DateTimeFormatter HORA_MINUTO = DateTimeFormatter.ofPattern("HH:mm");
+
+    public static void main(String[] args) {
+        System.out.println("Hora \"HH:mm\" de un mensaje");
+        Medicion.medir("SimpleDateFormat + Date por llamada", OPERACIONES,
+                () -> Medicion.sumidero = new SimpleDateFormat("HH:mm").format(new Date()));
+        Medicion.medir("DateTimeFormatter compartido", OPERACIONES,
+                () -> Medicion.sumidero = HORA_MINUTO.format(LocalTime.now()));
+        Medicion.medir("Reloj.horaMinuto", OPERACIONES,
+                () -> Medicion.sumidero = Reloj.horaMinuto());
+
+        System.out.println();
+        System.out.println("Marca de tiempo ISO-8601 del log");
+        Medicion.medir("OffsetDateTime.now().toString()", OPERACIONES,
+                () -> Medicion.sumidero = OffsetDateTime.now().toString());
+        Medicion.medir("Reloj.iso8601", OPERACIONES,
+                () -> Medicion.sumidero = Reloj.iso8601(Reloj.ahora()));
+        StringBuilder destino = new StringBuilder(40);
+        Medicion.medir("Reloj.anadirIso8601 (StringBuilder reutilizado)", OPERACIONES, () -> {
+            destino.setLength(0);
+            Medicion.sumidero = Reloj.anadirIso8601(destino, Reloj.ahora());
+        });
+    }
+}
@@ -0,0 +1,59 @@
+package chat.bench;
+
+/**
+ * Compara el coste de recorrer las sesiones conectadas según su número: la ArrayList compartida
+ * del servidor original, recorrida bajo su cerrojo (sin él falla si alguien entra o sale durante
+ * el recorrido) o copiándola antes, una CopyOnWriteArrayList y el {@link RegistroSesiones} actual.
+ * El recorrido solo lee el identificador de cada sesión, así que se mide el recorrido en sí.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.servidor.RegistroSesiones;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class BancoSesiones {
+
+    public static void main(String[] args) {
+        System.out.println("Recorrer las sesiones conectadas");
+        for (int usuarios : new int[] {10, 100, 1000, 10000}) {
+            List<SesionFalsa> lista = new ArrayList<>();
+            RegistroSesiones<SesionFalsa> registro = new RegistroSesiones<>();
+            for (int i = 0; i < usuarios; i++) {
+                SesionFalsa sesion = new SesionFalsa(registro.nuevoId());
+                lista.add(sesion);
+                registro.agregar(sesion);
+            }
+            List<SesionFalsa> copiaAlEscribir = new CopyOnWriteArrayList<>(lista);
+            int operaciones = Math.max(1000, 20_000_000 / usuarios);
+
+            Medicion.medir("ArrayList bajo cerrojo, " + usuarios, operaciones, () -> {
+                synchronized (lista) {
+                    Medicion.sumidero = sumarIds(lista);
+                }
+            });
+            Medicion.medir("copia de ArrayList, " + usuarios, operaciones, () -> {
+                List<SesionFalsa> copia;
+                synchronized (lista) {
+                    copia = new ArrayList<>(lista);
+                }
+                Medicion.sumidero = sumarIds(copia);
+            });
+            Medicion.medir("CopyOnWriteArrayList, " + usuarios, operaciones,
+                    () -> Medicion.sumidero = sumarIds(copiaAlEscribir));
+            Medicion.medir("RegistroSesiones, " + usuarios, operaciones,
+                    () -> Medicion.sumidero = sumarIds(registro));
+            System.out.println();
+        }
+    }
+
+    private static long sumarIds(Iterable<SesionFalsa> sesiones) {
+        long suma = 0;
+        for (SesionFalsa sesion : sesiones) {
+            suma += sesion.getId();
+        }
+        return suma;
+    }
+}
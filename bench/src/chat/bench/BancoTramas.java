@@ -0,0 +1,89 @@
+package chat.bench;
+
+/**
+ * Compara el coste de preparar un mensaje de chat para reenviarlo: formateándolo como texto con
+ * su hora y codificándolo con writeUTF, como hacía reenviarMensaje en el servidor original, o
+ * copiando la carga recibida a una trama binaria con la marca de tiempo, como hace ahora la sala.
+ * También mide la trama que se escribe en el {@code Historial} y lo que cuesta al usuario
+ * interpretar el mensaje y ponerle la hora al mostrarlo.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class BancoTramas {
+
+    private static final int OPERACIONES = 1_000_000;
+
+    private static final String USUARIO = "usuario";
+
+    private static final String TEXTO = "¿Quedamos mañana a las cinco en la plaza?";
+
+    public static void main(String[] args) throws ProtocolException {
+        // El mensaje tal y como lo recibe el servidor
+        TramaEntrante recibida = new TramaEntrante();
+        leer(Protocolo.codificar(TipoTrama.MENSAJE, 0, 0, Reloj.ahora(), TEXTO), recibida);
+        byte[] autor = USUARIO.getBytes(StandardCharsets.UTF_8);
+
+        System.out.println("Preparar un mensaje para reenviarlo");
+        Medicion.medir("hora + concatenar + writeUTF (original)", OPERACIONES, () -> {
+            String formateado = "[" + new SimpleDateFormat("HH:mm").format(new Date()) + "] " + USUARIO + ": "
+                    + recibida.texto();
+            Medicion.sumidero = writeUTF(formateado);
+        });
+        Medicion.medir("copiar carga + codificar MENSAJE", OPERACIONES,
+                () -> Medicion.sumidero = Protocolo.codificar(TipoTrama.MENSAJE, 1, 1, Reloj.ahora(), recibida.bytes()));
+        ByteBuffer diario = ByteBuffer.allocateDirect(4096);
+        Medicion.medir("escribir trama HISTORIAL en el diario", OPERACIONES, () -> {
+            diario.clear();
+            Protocolo.escribirConNombre(diario, TipoTrama.HISTORIAL, 1, 1, Reloj.ahora(), autor, recibida.bytes());
+            Medicion.sumidero = diario;
+        });
+
+        System.out.println();
+        System.out.println("Mostrar un mensaje recibido");
+        ByteBuffer mensaje = Protocolo.codificar(TipoTrama.MENSAJE, 1, 1, Reloj.ahora(), TEXTO);
+        TramaEntrante trama = new TramaEntrante();
+        Medicion.medir("interpretar + texto + Reloj.horaMinuto", OPERACIONES, () -> {
+            leer(mensaje.duplicate(), trama);
+            Medicion.sumidero = "[" + Reloj.horaMinuto(trama.getMarcaTiempo()) + "] " + USUARIO + ": " + trama.texto();
+        });
+    }
+
+    /**
+     * Interpreta la trama completa que hay en el buffer, como hace el lector de la conexión.
+     */
+    private static void leer(ByteBuffer buffer, TramaEntrante destino) {
+        try {
+            destino.decodificar(buffer, Protocolo.longitudPendiente(buffer));
+        } catch (ProtocolException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Codificación original: un DataOutputStream y un array nuevos por cada mensaje.
+     */
+    private static byte[] writeUTF(String mensaje) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(mensaje);
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
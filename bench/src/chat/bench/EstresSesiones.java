@@ -0,0 +1,292 @@
+package chat.bench;
+
+/**
+ * Prueba de estrés del {@link RegistroSesiones} que comprueba su propio resultado: varios hilos dan
+ * de alta y de baja sesiones sin parar (agregar, reservar el nombre, anunciar la entrada, difundir
+ * un mensaje y la salida, eliminar) mientras otros difunden y recorren el registro, todos a la vez.
+ * Un grupo de sesiones fijas está registrado durante toda la prueba y sirve de referencia:
+ *
+ * - Ningún recorrido pierde ni repite una sesión fija, ni repite ninguna otra, ni lanza
+ *   ConcurrentModificationException.
+ * - Cada sesión fija recibe cada trama difundida exactamente una vez.
+ * - Una sesión recién dada de alta se encuentra por su nombre, eliminarla la quita una sola vez, y
+ *   un nombre en disputa no lo tienen reservado dos sesiones a la vez.
+ * - Al terminar solo quedan las sesiones fijas y todos los identificadores asignados son distintos.
+ *
+ * Si algo no se cumple muestra los fallos y termina con código 1, así que sirve también para
+ * comprobar cambios en el registro con ant bench. Admite --segundos, --hilos (de altas y bajas),
+ * --difusores y --fijas.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.servidor.ColaSalida;
+import chat.servidor.RegistroSesiones;
+import chat.servidor.Sesion;
+import chat.servidor.TramaSalida;
+import chat.util.TipoTrama;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class EstresSesiones {
+
+    // Nombre que se disputan todos los hilos de altas y bajas en cada vuelta
+    private static final String DISPUTADO = "disputado";
+
+    // Los fallos se dejan de guardar a partir de este número; basta con los primeros
+    private static final int FALLOS_MAXIMOS = 20;
+
+    private int segundos = 5;
+    private int hilos = 4;
+    private int difusores = 2;
+    private int fijas = 200;
+
+    private final RegistroSesiones<SesionContada> registro = new RegistroSesiones<>();
+    private final List<SesionContada> sesionesFijas = new ArrayList<>();
+    private final Set<Long> ids = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<String> fallos = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numeroFallos = new AtomicInteger();
+
+    // Tramas difundidas, que debe haber recibido cada sesión fija
+    private final AtomicLong difundidas = new AtomicLong();
+    private final LongAdder altas = new LongAdder();
+    private final LongAdder recorridos = new LongAdder();
+    private final LongAdder disputas = new LongAdder();
+
+    // Sesiones que tienen reservado el nombre en disputa en cada momento
+    private final AtomicInteger titulares = new AtomicInteger();
+
+    private volatile boolean parar;
+
+    /**
+     * Sesión sin socket que cuenta las tramas que recibe en lugar de encolarlas.
+     */
+    private static final class SesionContada implements Sesion {
+
+        private final long id;
+        private final ColaSalida cola = new ColaSalida(1, ColaSalida.PoliticaDesborde.DESCARTAR_ANTIGUO, 0);
+        private final LongAdder recibidas = new LongAdder();
+        private volatile String nombre;
+        private boolean fija;
+
+        SesionContada(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getNombreUsuario() {
+            return nombre;
+        }
+
+        @Override
+        public void enviar(TramaSalida trama) {
+            recibidas.increment();
+        }
+
+        @Override
+        public ColaSalida getColaSalida() {
+            return cola;
+        }
+
+        @Override
+        public boolean isAbierta() {
+            return true;
+        }
+
+        @Override
+        public long getUltimaLectura() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public boolean isCompresion() {
+            return false;
+        }
+
+        @Override
+        public boolean isCifrada() {
+            return false;
+        }
+
+        @Override
+        public void desconectar() {
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        EstresSesiones prueba = new EstresSesiones();
+        prueba.leerOpciones(args);
+        if (!prueba.ejecutar()) {
+            System.exit(1);
+        }
+    }
+
+    private void leerOpciones(String[] args) {
+        for (String argumento : args) {
+            int igual = argumento.indexOf('=');
+            String opcion = igual < 0 ? argumento : argumento.substring(0, igual);
+            String valor = igual < 0 ? null : argumento.substring(igual + 1);
+            switch (opcion) {
+                case "--segundos" -> segundos = Integer.parseInt(valor);
+                case "--hilos" -> hilos = Integer.parseInt(valor);
+                case "--difusores" -> difusores = Integer.parseInt(valor);
+                case "--fijas" -> fijas = Integer.parseInt(valor);
+                default -> throw new IllegalArgumentException("Opción desconocida: " + argumento);
+            }
+        }
+    }
+
+    /**
+     * Registra las sesiones fijas, lanza los hilos durante el tiempo indicado y comprueba el
+     * resultado.
+     *
+     * @return true si no ha fallado ninguna comprobación.
+     */
+    private boolean ejecutar() throws InterruptedException {
+        for (int i = 0; i < fijas; i++) {
+            SesionContada sesion = nuevaSesion();
+            registro.agregar(sesion);
+            comprobar(registro.reservarNombre(sesion, "fija" + i) == null, "No se reserva el nombre de una sesión fija");
+            sesion.nombre = "fija" + i;
+            sesion.fija = true;
+            sesionesFijas.add(sesion);
+        }
+        System.out.println("Estrés del registro de sesiones: " + hilos + " hilos de altas y bajas, "
+                + difusores + " difusores, " + fijas + " sesiones fijas, " + segundos + " s");
+
+        List<Thread> lanzados = new ArrayList<>();
+        for (int i = 0; i < hilos; i++) {
+            lanzados.add(Thread.ofPlatform().name("altas-" + i).start(this::altasYBajas));
+        }
+        for (int i = 0; i < difusores; i++) {
+            lanzados.add(Thread.ofPlatform().name("difusor-" + i).start(this::difundirYRecorrer));
+        }
+        Thread.sleep(segundos * 1000L);
+        parar = true;
+        for (Thread hilo : lanzados) {
+            hilo.join();
+        }
+
+        comprobar(registro.tamano() == fijas, "Quedan " + registro.tamano() + " sesiones registradas; se esperaban " + fijas);
+        Set<SesionContada> restantes = new HashSet<>();
+        for (SesionContada sesion : registro) {
+            restantes.add(sesion);
+        }
+        comprobar(restantes.equals(new HashSet<>(sesionesFijas)), "Las sesiones que quedan no son las fijas");
+        long esperadas = difundidas.get();
+        for (SesionContada sesion : sesionesFijas) {
+            long recibidas = sesion.recibidas.sum();
+            comprobar(recibidas == esperadas, sesion.nombre + " ha recibido " + recibidas + " tramas de " + esperadas);
+        }
+        comprobar(ids.size() == fijas + altas.sum(), "Se han repetido identificadores de sesión");
+
+        System.out.printf("%,d altas y bajas, %,d tramas difundidas, %,d recorridos, %,d veces reservado el nombre en disputa%n",
+                altas.sum(), esperadas, recorridos.sum(), disputas.sum());
+        if (numeroFallos.get() == 0) {
+            System.out.println("Correcto: ninguna sesión perdida ni repetida");
+            return true;
+        }
+        System.out.println(numeroFallos.get() + " comprobaciones fallidas:");
+        fallos.forEach(fallo -> System.out.println("  " + fallo));
+        return false;
+    }
+
+    /**
+     * Da de alta una sesión tras otra como lo hace el servidor, comprueba que se encuentra por su
+     * nombre, difunde un mensaje desde ella y la da de baja. De paso se disputa un nombre con los
+     * demás hilos.
+     */
+    private void altasYBajas() {
+        String hilo = Thread.currentThread().getName();
+        long vuelta = 0;
+        while (!parar) {
+            SesionContada sesion = nuevaSesion();
+            String nombre = hilo + "-" + vuelta++;
+            registro.agregar(sesion);
+            comprobar(registro.reservarNombre(sesion, nombre) == null, "No se reserva el nombre libre " + nombre);
+            sesion.nombre = nombre;
+            registro.anunciarEntrada(sesion);
+            difundidas.incrementAndGet();
+            comprobar(registro.buscar(nombre) == sesion, "No se encuentra la sesión de " + nombre);
+            registro.difundir(TramaSalida.deTexto(TipoTrama.MENSAJE, sesion.getId(), vuelta, "hola"), sesion);
+            difundidas.incrementAndGet();
+            registro.anunciarSalida(sesion);
+            difundidas.incrementAndGet();
+            comprobar(registro.eliminar(sesion), "No se elimina la sesión de " + nombre);
+            comprobar(!registro.eliminar(sesion), "La sesión de " + nombre + " se elimina dos veces");
+            comprobar(registro.buscar(nombre) == null, "El nombre " + nombre + " sigue ocupado tras eliminar su sesión");
+            altas.increment();
+            disputar();
+        }
+    }
+
+    /**
+     * Intenta reservar el nombre en disputa con una sesión nueva; si lo consigue, comprueba que
+     * nadie más lo tiene antes de soltarlo.
+     */
+    private void disputar() {
+        SesionContada sesion = nuevaSesion();
+        registro.agregar(sesion);
+        if (registro.reservarNombre(sesion, DISPUTADO) == null) {
+            comprobar(titulares.incrementAndGet() == 1, "Dos sesiones tienen reservado el mismo nombre");
+            comprobar(registro.buscar(DISPUTADO) == sesion, "El nombre en disputa no lleva a su titular");
+            disputas.increment();
+            titulares.decrementAndGet();
+        }
+        comprobar(registro.eliminar(sesion), "No se elimina la sesión que disputaba el nombre");
+        altas.increment();
+    }
+
+    /**
+     * Difunde tramas a todo el registro y lo recorre mientras los demás hilos dan sesiones de alta
+     * y de baja, comprobando en cada recorrido que no falta ninguna sesión fija y que no se repite
+     * ninguna.
+     */
+    private void difundirYRecorrer() {
+        TramaSalida trama = TramaSalida.aviso(TipoTrama.AVISO, "aviso");
+        Set<SesionContada> vistas = new HashSet<>();
+        while (!parar) {
+            registro.difundir(trama, null);
+            difundidas.incrementAndGet();
+            vistas.clear();
+            try {
+                int fijasVistas = 0;
+                for (SesionContada sesion : registro) {
+                    comprobar(vistas.add(sesion), "Un recorrido ve dos veces la sesión " + sesion.getId());
+                    if (sesion.fija) {
+                        fijasVistas++;
+                    }
+                }
+                comprobar(fijasVistas == fijas, "Un recorrido ve " + fijasVistas + " sesiones fijas de " + fijas);
+            } catch (ConcurrentModificationException ex) {
+                comprobar(false, "ConcurrentModificationException al recorrer el registro");
+            }
+            recorridos.increment();
+        }
+    }
+
+    private SesionContada nuevaSesion() {
+        SesionContada sesion = new SesionContada(registro.nuevoId());
+        ids.add(sesion.getId());
+        return sesion;
+    }
+
+    private void comprobar(boolean condicion, String fallo) {
+        if (!condicion && numeroFallos.incrementAndGet() <= FALLOS_MAXIMOS) {
+            fallos.add(fallo);
+        }
+    }
+}
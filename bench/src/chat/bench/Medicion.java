@@ -0,0 +1,62 @@
+package chat.bench;
+
+/**
+ * Utilidades comunes de los bancos de pruebas: ejecuta una operación muchas veces tras un
+ * calentamiento y mide el tiempo, las operaciones por segundo y la memoria asignada por el hilo
+ * en cada operación.
+ * La memoria se obtiene de com.sun.management.ThreadMXBean, disponible en HotSpot/OpenJDK.
+ *
+ * @author sdacatrinei
+ */
+
+import java.lang.management.ManagementFactory;
+
+final class Medicion {
+
+    // Resultado de la última operación, para que el compilador no elimine el trabajo medido
+    static volatile Object sumidero;
+
+    private static final com.sun.management.ThreadMXBean HILOS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Medicion() {
+    }
+
+    /**
+     * Resultado de una medición, para los bancos que resumen varias al final.
+     */
+    record Resultado(double nanosPorOperacion, double bytesPorOperacion) {
+    }
+
+    /**
+     * Mide una operación y muestra por consola los nanosegundos por operación, las operaciones por
+     * segundo y los bytes asignados por operación.
+     *
+     * @param nombre Nombre con el que se muestra el resultado.
+     * @param operaciones Número de veces que se ejecuta la operación en cada ronda.
+     * @param operacion La operación a medir.
+     * @return Nanosegundos y bytes asignados por operación en la ronda medida.
+     */
+    static Resultado medir(String nombre, int operaciones, Runnable operacion) {
+        // Calentamiento para que el JIT compile el código medido
+        for (int ronda = 0; ronda < 3; ronda++) {
+            for (int i = 0; i < operaciones; i++) {
+                operacion.run();
+            }
+        }
+
+        long memoriaInicial = HILOS.getCurrentThreadAllocatedBytes();
+        long inicio = System.nanoTime();
+        for (int i = 0; i < operaciones; i++) {
+            operacion.run();
+        }
+        long nanos = System.nanoTime() - inicio;
+        long memoria = HILOS.getCurrentThreadAllocatedBytes() - memoriaInicial;
+
+        double nanosPorOperacion = (double) nanos / operaciones;
+        double bytesPorOperacion = (double) memoria / operaciones;
+        System.out.printf("%-45s %12.1f ns/op %12.0f op/s %12.1f B/op%n", nombre, nanosPorOperacion,
+                operaciones * 1e9 / nanos, bytesPorOperacion);
+        return new Resultado(nanosPorOperacion, bytesPorOperacion);
+    }
+}
@@ -0,0 +1,65 @@
+package chat.bench;
+
+/**
+ * Sesión sin socket para los bancos de pruebas: solo encola las tramas, que luego se descartan.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.servidor.ColaSalida;
+import chat.servidor.Sesion;
+import chat.servidor.TramaSalida;
+
+final class SesionFalsa implements Sesion {
+
+    private final long id;
+    private final ColaSalida cola = new ColaSalida(4, ColaSalida.PoliticaDesborde.DESCARTAR_ANTIGUO, 0);
+
+    SesionFalsa(long id) {
+        this.id = id;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombreUsuario() {
+        return "falsa";
+    }
+
+    @Override
+    public void enviar(TramaSalida trama) {
+        cola.encolar(trama, false);
+    }
+
+    @Override
+    public ColaSalida getColaSalida() {
+        return cola;
+    }
+
+    @Override
+    public boolean isAbierta() {
+        return true;
+    }
+
+    @Override
+    public long getUltimaLectura() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public boolean isCompresion() {
+        return false;
+    }
+
+    @Override
+    public boolean isCifrada() {
+        return false;
+    }
+
+    @Override
+    public void desconectar() {
+    }
+}
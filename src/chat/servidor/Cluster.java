@@ -0,0 +1,488 @@
+package chat.servidor;
+
+/**
+ * Une varios servidores en un cluster para repartir a los usuarios entre ellos. Cada nodo abre un
+ * enlace TCP con cada uno de los demás (sus pares) y acepta los de ellos en su puerto
+ * de cluster: por los enlaces que abre solo envía y por los que acepta solo recibe, así que cada
+ * par de nodos se comunica por dos conexiones, una en cada sentido.
+ *
+ * Por los enlaces viajan tramas del mismo {@link Protocolo} que usan los usuarios, sin cifrar:
+ * <ul>
+ * <li>Presencia: la entrada (CONEXION), el cambio de sala (UNIRSE) y la salida (DESCONEXION) de
+ * cada usuario de este nodo. Al abrirse un enlace se envía primero la presencia de todos los
+ * usuarios actuales, así que cada nodo sabe en todo momento qué usuarios hay en los demás, en qué
+ * nodo está cada uno y en qué sala.</li>
+ * <li>Mensajes de sala (MENSAJE): se codifican una sola vez y la misma trama se encola en el enlace
+ * de cada nodo, sin importar cuántos usuarios tenga ese nodo en la sala. El nodo que la recibe la
+ * reparte entre sus propios miembros de la sala.</li>
+ * <li>Mensajes privados (PRIVADO): solo se envían al nodo en el que está el destinatario.</li>
+ * </ul>
+ *
+ * Si un enlace se pierde, el nodo que recibía por él da por desconectados a los usuarios del otro,
+ * y el que enviaba lo vuelve a abrir cada segundo; los mensajes de mientras tanto se pierden, pero
+ * la presencia se vuelve a enviar entera al reconectar. Si un nodo no lee a tiempo y su cola se
+ * llena, el enlace se reinicia del mismo modo.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Cluster {
+
+    // Espera entre intentos de abrir un enlace y espera máxima al saludo del otro nodo
+    private static final int RECONEXION_MS = 1000;
+    private static final int ESPERA_SALUDO_MS = 5000;
+
+    // Tamaño del búfer en el que se agrupan las tramas antes de escribirlas en un enlace
+    private static final int TAMANO_ESCRITURA = 64 * 1024;
+
+    private final int nodo;
+    private final Configuracion config;
+    private final RegistroSesiones<?> sesiones;
+    private final Salas salas;
+
+    // Enlaces que abre este nodo, uno por par, y cada uno por el número del nodo al que llega
+    private final List<EnlaceSaliente> salientes = new ArrayList<>();
+    private final ConcurrentHashMap<Integer, EnlaceSaliente> porNodo = new ConcurrentHashMap<>();
+
+    // Nombre y sala de cada usuario de este nodo que ya ha saludado, en orden de llegada, para
+    // enviarlos a los nodos que se conectan (protegido por el cerrojo de this, como el envío de
+    // la presencia)
+    private final Map<Long, Presencia> locales = new LinkedHashMap<>();
+
+    // Usuarios de los demás nodos, por identificador y por nombre en minúsculas
+    private final ConcurrentHashMap<Long, SesionRemota> remotos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SesionRemota> remotosPorNombre = new ConcurrentHashMap<>();
+
+    /**
+     * Nombre y sala de un usuario de este nodo.
+     */
+    private static final class Presencia {
+        private final String nombre;
+        private String sala;
+
+        private Presencia(String nombre) {
+            this.nombre = nombre;
+        }
+    }
+
+    /**
+     * Crea el cluster y lo conecta al registro de sesiones y a las salas del servidor.
+     *
+     * @param config Configuración de arranque, con el número del nodo, su puerto y los pares.
+     * @param sesiones Sesiones de los usuarios de este nodo.
+     * @param salas Salas de este nodo.
+     */
+    public Cluster(Configuracion config, RegistroSesiones<?> sesiones, Salas salas) {
+        this.nodo = config.getNodo();
+        this.config = config;
+        this.sesiones = sesiones;
+        this.salas = salas;
+        for (InetSocketAddress par : config.getPares()) {
+            salientes.add(new EnlaceSaliente(par));
+        }
+        sesiones.unirCluster(this);
+        salas.unirCluster(this);
+    }
+
+    /**
+     * Abre el puerto de cluster y empieza a abrir los enlaces con los demás nodos, en hilos propios.
+     *
+     * @throws IOException Si no se puede abrir el puerto de cluster.
+     */
+    public void iniciar() throws IOException {
+        ServerSocket servidor = new ServerSocket(config.getClusterPuerto());
+        hiloDemonio(() -> aceptar(servidor), "cluster-aceptar").start();
+        for (EnlaceSaliente enlace : salientes) {
+            hiloDemonio(enlace, "cluster-" + enlace.nombre).start();
+        }
+        MainServidor.log("Nodo " + nodo + " del cluster en el puerto " + config.getClusterPuerto()
+                + " con " + salientes.size() + " pares");
+    }
+
+    private static Thread hiloDemonio(Runnable tarea, String nombre) {
+        Thread hilo = new Thread(tarea, nombre);
+        hilo.setDaemon(true);
+        return hilo;
+    }
+
+    // ---- Lo que se envía a los demás nodos ----
+
+    /**
+     * Anuncia a los demás nodos la entrada de un usuario de este nodo.
+     */
+    synchronized void anunciarConexion(long id, String nombre) {
+        locales.put(id, new Presencia(nombre));
+        publicar(TramaSalida.deTexto(TipoTrama.CONEXION, id, 0, nombre));
+    }
+
+    /**
+     * Anuncia a los demás nodos que un usuario de este nodo está ahora en otra sala.
+     */
+    synchronized void anunciarSala(long id, String sala) {
+        Presencia presencia = locales.get(id);
+        if (presencia == null) {
+            return; // Ya se ha desconectado
+        }
+        presencia.sala = sala;
+        publicar(TramaSalida.deTexto(TipoTrama.UNIRSE, id, 0, sala));
+    }
+
+    /**
+     * Anuncia a los demás nodos la salida de un usuario de este nodo.
+     */
+    synchronized void anunciarDesconexion(long id, String nombre) {
+        if (locales.remove(id) != null) {
+            publicar(TramaSalida.deTexto(TipoTrama.DESCONEXION, id, 0, nombre));
+        }
+    }
+
+    /**
+     * Encola una trama de presencia en todos los enlaces abiertos. Se llama con el cerrojo tomado,
+     * para que un enlace que se abre a la vez reciba la trama o la presencia que la incluye, pero
+     * no las dos ni ninguna.
+     */
+    private void publicar(TramaSalida trama) {
+        for (EnlaceSaliente enlace : salientes) {
+            enlace.encolar(trama);
+        }
+    }
+
+    /**
+     * Envía a todos los demás nodos un mensaje de un usuario de este nodo. La trama se codifica
+     * una sola vez y se comparte entre los enlaces.
+     *
+     * @param sala Nombre de la sala.
+     * @param emisor Identificador del usuario que lo envió.
+     * @param marcaTiempo Momento en que lo recibió este nodo.
+     * @param texto Texto del mensaje en UTF-8.
+     */
+    void difundir(String sala, long emisor, long marcaTiempo, byte[] texto) {
+        TramaSalida trama;
+        try {
+            trama = new TramaSalida(Protocolo.codificarConNombre(TipoTrama.MENSAJE, emisor, 0, marcaTiempo,
+                    sala.getBytes(StandardCharsets.UTF_8), texto));
+        } catch (IllegalArgumentException ex) {
+            MainServidor.log("Mensaje de #" + sala + " demasiado largo para reenviarlo a los demás nodos.");
+            return;
+        }
+        for (EnlaceSaliente enlace : salientes) {
+            enlace.encolar(trama);
+        }
+    }
+
+    /**
+     * Envía un mensaje privado al nodo en el que está el destinatario.
+     *
+     * @return false si el destinatario no está en ningún otro nodo.
+     */
+    boolean enviarPrivado(long emisor, String destinatario, String texto) {
+        SesionRemota remota = remotosPorNombre.get(RegistroSesiones.clave(destinatario));
+        EnlaceSaliente enlace = remota == null ? null : porNodo.get(remota.getNodo());
+        if (enlace == null) {
+            return false;
+        }
+        enlace.encolar(new TramaSalida(Protocolo.codificarConNombre(TipoTrama.PRIVADO, emisor, 0, Reloj.ahora(),
+                destinatario.getBytes(StandardCharsets.UTF_8), texto.getBytes(StandardCharsets.UTF_8))));
+        return true;
+    }
+
+    /**
+     * Presenta a un usuario de este nodo que acaba de saludar los usuarios de los demás nodos.
+     *
+     * @param presentes Lote de tramas de presencia del usuario, al que se añaden los remotos.
+     */
+    void presentarRemotos(LoteTramas presentes) {
+        for (SesionRemota remota : remotos.values()) {
+            presentes.anadir(remota.getId(), remota.getNombreUsuario());
+        }
+    }
+
+    /**
+     * @param clave Nombre de usuario en minúsculas.
+     * @return true si lo usa algún usuario de otro nodo.
+     */
+    boolean nombreEnUso(String clave) {
+        return remotosPorNombre.containsKey(clave);
+    }
+
+    // ---- Lo que llega de los demás nodos ----
+
+    /**
+     * Acepta los enlaces de los demás nodos y atiende cada uno en su propio hilo.
+     */
+    private void aceptar(ServerSocket servidor) {
+        while (true) {
+            try {
+                Socket socket = servidor.accept();
+                hiloDemonio(() -> recibir(socket), "cluster-entrada-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException ex) {
+                MainServidor.log("Error al aceptar un enlace del cluster: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lee el saludo del otro nodo, le responde con el número de este y atiende todo lo que llega
+     * por el enlace hasta que se cierra. Entonces da por desconectados a los usuarios que llegaron
+     * por él.
+     */
+    private void recibir(Socket socket) {
+        TramaEntrante trama = new TramaEntrante();
+        int origen = 0;
+        try (socket) {
+            socket.setSoTimeout(ESPERA_SALUDO_MS);
+            DataInputStream entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            trama.leerDe(entrada);
+            if (trama.getTipo() != TipoTrama.NODO) {
+                throw new ProtocolException("Enlace sin saludo de nodo");
+            }
+            origen = (int) trama.getRemitente();
+            socket.getOutputStream().write(saludo());
+            socket.setSoTimeout(0);
+            MainServidor.log("Enlace de entrada desde el nodo " + origen + " establecido.");
+            while (true) {
+                trama.leerDe(entrada);
+                atender(socket, origen, trama);
+            }
+        } catch (IOException ex) {
+            if (origen != 0) {
+                MainServidor.log("Enlace de entrada desde el nodo " + origen + " perdido: " + ex.getMessage());
+            }
+        } finally {
+            for (SesionRemota remota : remotos.values()) {
+                if (remota.getEnlace() == socket) {
+                    desconectarRemoto(remota);
+                }
+            }
+        }
+    }
+
+    /**
+     * Atiende una trama recibida de otro nodo.
+     *
+     * @param enlace Conexión por la que llegó, que pasa a ser la de los usuarios que anuncia.
+     * @param origen Número del nodo que la envió.
+     * @param trama La trama.
+     */
+    private void atender(Socket enlace, int origen, TramaEntrante trama) throws ProtocolException {
+        long id = trama.getRemitente();
+        switch (trama.getTipo()) {
+            case CONEXION -> conectarRemoto(id, trama.texto(), origen, enlace);
+            case UNIRSE -> {
+                SesionRemota remota = remotos.get(id);
+                if (remota != null) {
+                    salas.moverRemota(remota, trama.texto());
+                }
+            }
+            case DESCONEXION -> {
+                SesionRemota remota = remotos.get(id);
+                if (remota != null) {
+                    desconectarRemoto(remota);
+                }
+            }
+            case MENSAJE -> {
+                SesionRemota remota = remotos.get(id);
+                if (remota != null) {
+                    salas.difundirRemoto(remota, trama.nombre(), trama.getMarcaTiempo(), trama.bytesTrasNombre());
+                }
+            }
+            case PRIVADO -> {
+                Sesion destinatario = sesiones.buscar(trama.nombre());
+                if (destinatario != null && destinatario.getNombreUsuario() != null) {
+                    RegistroSesiones.entregarPrivado(destinatario, id, trama.textoTrasNombre());
+                }
+            }
+            case null, default -> {
+                // Tramas que esta versión no usa entre nodos: se ignoran
+            }
+        }
+    }
+
+    /**
+     * Da de alta a un usuario de otro nodo y lo anuncia a los usuarios de este. Si ya estaba (por
+     * ejemplo, porque el otro nodo ha vuelto a abrir su enlace), solo se anota el enlace nuevo.
+     */
+    private void conectarRemoto(long id, String nombre, int origen, Socket enlace) {
+        SesionRemota existente = remotos.get(id);
+        if (existente != null) {
+            existente.setEnlace(enlace);
+            return;
+        }
+        SesionRemota remota = new SesionRemota(id, nombre, origen, enlace);
+        remotos.put(id, remota);
+        remotosPorNombre.put(RegistroSesiones.clave(nombre), remota);
+        sesiones.difundir(TramaSalida.deTexto(TipoTrama.CONEXION, id, 0, nombre), null);
+    }
+
+    /**
+     * Da de baja a un usuario de otro nodo, lo saca de su sala y avisa a los usuarios de este.
+     */
+    private void desconectarRemoto(SesionRemota remota) {
+        if (!remotos.remove(remota.getId(), remota)) {
+            return;
+        }
+        remotosPorNombre.remove(RegistroSesiones.clave(remota.getNombreUsuario()), remota);
+        remota.cerrar();
+        salas.salir(remota);
+        sesiones.difundir(TramaSalida.deTexto(TipoTrama.DESCONEXION, remota.getId(), 0, remota.getNombreUsuario()), null);
+    }
+
+    /**
+     * @return La trama con la que este nodo se presenta a otro.
+     */
+    private byte[] saludo() {
+        TramaSalida trama = TramaSalida.deTexto(TipoTrama.NODO, nodo, 0, "");
+        byte[] bytes = new byte[trama.longitud()];
+        trama.copiar(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Enlace que abre este nodo con otro para enviarle la presencia y los mensajes de sus usuarios.
+     * Se vuelve a abrir siempre que se pierde.
+     */
+    private final class EnlaceSaliente implements Runnable {
+
+        private final InetSocketAddress direccion;
+        private final String nombre;
+
+        // Tramas pendientes de enviar, o null mientras el enlace no está abierto
+        private volatile ColaSalida cola;
+        private volatile Socket socket;
+
+        private final byte[] bufferEscritura = new byte[TAMANO_ESCRITURA];
+
+        private EnlaceSaliente(InetSocketAddress direccion) {
+            this.direccion = direccion;
+            this.nombre = direccion.getHostString() + ":" + direccion.getPort();
+        }
+
+        /**
+         * Encola una trama para el otro nodo. Si el enlace no está abierto, la trama se pierde; si
+         * la cola está llena, el enlace se reinicia.
+         */
+        void encolar(TramaSalida trama) {
+            ColaSalida pendientes = cola;
+            if (pendientes != null && !pendientes.encolar(trama, false)) {
+                pendientes.cerrar();
+                cerrarSocket();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int destino = 0;
+                try (Socket conexion = new Socket()) {
+                    socket = conexion;
+                    conexion.connect(new InetSocketAddress(direccion.getHostString(), direccion.getPort()), ESPERA_SALUDO_MS);
+                    conexion.setTcpNoDelay(true);
+                    conexion.setSoTimeout(ESPERA_SALUDO_MS);
+                    OutputStream salida = conexion.getOutputStream();
+                    salida.write(saludo());
+                    TramaEntrante respuesta = new TramaEntrante();
+                    respuesta.leerDe(new DataInputStream(conexion.getInputStream()));
+                    if (respuesta.getTipo() != TipoTrama.NODO) {
+                        throw new ProtocolException("El par no ha respondido como nodo");
+                    }
+                    destino = (int) respuesta.getRemitente();
+                    porNodo.put(destino, this);
+                    abrirCola();
+                    MainServidor.log("Enlace con el nodo " + destino + " (" + nombre + ") establecido.");
+                    escribirPendientes(salida);
+                } catch (IOException | InterruptedException ex) {
+                    if (destino != 0) {
+                        MainServidor.log("Enlace con el nodo " + destino + " perdido: " + ex.getMessage());
+                    }
+                } finally {
+                    ColaSalida pendientes = cola;
+                    cola = null;
+                    if (pendientes != null) {
+                        pendientes.cerrar();
+                    }
+                    porNodo.remove(destino, this);
+                }
+                try {
+                    Thread.sleep(RECONEXION_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Crea la cola del enlace con la presencia de todos los usuarios de este nodo y la deja
+         * disponible para las tramas siguientes, todo con el cerrojo de la presencia tomado.
+         */
+        private void abrirCola() {
+            ColaSalida nueva = config.nuevaColaCluster();
+            synchronized (Cluster.this) {
+                for (Map.Entry<Long, Presencia> local : locales.entrySet()) {
+                    Presencia presencia = local.getValue();
+                    nueva.encolar(TramaSalida.deTexto(TipoTrama.CONEXION, local.getKey(), 0, presencia.nombre), false);
+                    if (presencia.sala != null) {
+                        nueva.encolar(TramaSalida.deTexto(TipoTrama.UNIRSE, local.getKey(), 0, presencia.sala), false);
+                    }
+                }
+                cola = nueva;
+            }
+        }
+
+        /**
+         * Escribe las tramas de la cola, agrupando en el búfer todas las que haya acumuladas,
+         * hasta que la cola se cierre o falle la escritura.
+         */
+        private void escribirPendientes(OutputStream salida) throws IOException, InterruptedException {
+            ColaSalida pendientes = cola;
+            TramaSalida trama;
+            while ((trama = pendientes.tomar()) != null) {
+                int usados = 0;
+                do {
+                    int copiados = 0;
+                    while (copiados < trama.longitud()) {
+                        if (usados == bufferEscritura.length) {
+                            salida.write(bufferEscritura, 0, usados);
+                            usados = 0;
+                        }
+                        int cantidad = Math.min(trama.longitud() - copiados, bufferEscritura.length - usados);
+                        trama.copiar(copiados, bufferEscritura, usados, cantidad);
+                        copiados += cantidad;
+                        usados += cantidad;
+                    }
+                } while ((trama = pendientes.sondear()) != null);
+                salida.write(bufferEscritura, 0, usados);
+            }
+            throw new IOException("la cola de salida se ha llenado");
+        }
+
+        private void cerrarSocket() {
+            Socket conexion = socket;
+            try {
+                if (conexion != null) {
+                    conexion.close();
+                }
+            } catch (IOException ex) {
+                // El enlace se va a reiniciar de todos modos
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package chat.servidor;
+
+/**
+ * Cola acotada con las tramas pendientes de enviar a un usuario. Quien reenvía un mensaje solo
+ * encola la trama y sigue con el siguiente destinatario; la escritura en el socket la hace el
+ * escritor propio de la sesión. Así un usuario lento no bloquea al emisor ni al resto de usuarios.
+ *
+ * Cuando la cola está llena se aplica la {@link PoliticaDesborde} configurada. Las tramas de control
+ * ({@link TramaSalida#isControl()}), como la bienvenida o los avisos, nunca se descartan para hacer
+ * hueco: sin ellas el usuario no sabría que ha entrado ni por qué se le corta. Además guarda
+ * métricas de la cola: profundidad actual, profundidad máxima alcanzada, tramas encoladas y
+ * tramas descartadas. Las tramas que no llegan a encolarse o que se descartan se anotan en las
+ * {@link Metricas} del servidor.
+ *
+ * @author sdacatrinei
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ColaSalida {
+
+    /**
+     * Qué hacer cuando llega una trama y la cola del destinatario está llena.
+     */
+    public enum PoliticaDesborde {
+        // Se descarta la trama más antigua que no sea de control para hacer hueco a la nueva; si
+        // todas lo son, se descarta la nueva, o se desconecta al usuario si también es de control
+        DESCARTAR_ANTIGUO,
+        // Se desconecta al usuario que no lee sus mensajes
+        DESCONECTAR,
+        // El emisor espera a que haya hueco, hasta un tiempo máximo; si se agota se desconecta
+        // al usuario. En el servidor NIO no se puede bloquear al reactor, así que allí se
+        // comporta como DESCONECTAR.
+        CONTRAPRESION
+    }
+
+    private final PoliticaDesborde politica;
+    private final long esperaMaximaNanos;
+
+    // Búfer circular con las tramas pendientes, protegido por el cerrojo
+    private final TramaSalida[] tramas;
+    private int cabeza;
+    private int cantidad;
+    private boolean cerrada;
+
+    // ReentrantLock en lugar de synchronized para no fijar los hilos virtuales que esperan
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    private final Condition noVacia = cerrojo.newCondition();
+    private final Condition noLlena = cerrojo.newCondition();
+
+    // Métricas de la cola (se leen sin cerrojo, solo con fines informativos)
+    private volatile int profundidadMaxima;
+    private volatile long encoladas;
+    private volatile long descartadas;
+
+    /**
+     * @param capacidad Número máximo de tramas pendientes.
+     * @param politica Qué hacer cuando la cola está llena.
+     * @param esperaMaximaMs Tiempo máximo que espera el emisor con la política CONTRAPRESION.
+     */
+    public ColaSalida(int capacidad, PoliticaDesborde politica, long esperaMaximaMs) {
+        this.tramas = new TramaSalida[capacidad];
+        this.politica = politica;
+        this.esperaMaximaNanos = TimeUnit.MILLISECONDS.toNanos(esperaMaximaMs);
+    }
+
+    /**
+     * Añade una trama al final de la cola aplicando la política de desborde si está llena.
+     *
+     * @param trama Trama a enviar; se comparte con otros destinatarios.
+     * @param puedeEsperar false si quien llama no debe bloquearse nunca (por ejemplo, un reactor).
+     * @return false si la trama no se pudo encolar y el usuario debe desconectarse.
+     */
+    public boolean encolar(TramaSalida trama, boolean puedeEsperar) {
+        cerrojo.lock();
+        try {
+            if (cerrada) {
+                trama.descartada();
+                return false;
+            }
+            if (cantidad == tramas.length) {
+                switch (politica) {
+                    case DESCARTAR_ANTIGUO -> {
+                        if (!descartarAntigua()) {
+                            trama.descartada();
+                            if (trama.isControl()) {
+                                return false;
+                            }
+                            descartadas++;
+                            return true;
+                        }
+                    }
+                    case DESCONECTAR -> {
+                        trama.descartada();
+                        return false;
+                    }
+                    case CONTRAPRESION -> {
+                        if (!puedeEsperar || !esperarHueco()) {
+                            trama.descartada();
+                            return false;
+                        }
+                    }
+                }
+            }
+            tramas[(cabeza + cantidad) % tramas.length] = trama;
+            cantidad++;
+            encoladas++;
+            if (cantidad > profundidadMaxima) {
+                profundidadMaxima = cantidad;
+            }
+            noVacia.signal();
+            return true;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Descarta la trama más antigua que no sea de control. Se llama con el cerrojo tomado y la
+     * cola llena.
+     *
+     * @return false si todas las tramas de la cola son de control y no se ha descartado ninguna.
+     */
+    private boolean descartarAntigua() {
+        for (int i = 0; i < cantidad; i++) {
+            TramaSalida candidata = tramas[(cabeza + i) % tramas.length];
+            if (!candidata.isControl()) {
+                // Las de control que iban delante avanzan un puesto para ocupar su hueco
+                for (int j = i; j > 0; j--) {
+                    tramas[(cabeza + j) % tramas.length] = tramas[(cabeza + j - 1) % tramas.length];
+                }
+                tramas[cabeza] = null;
+                cabeza = (cabeza + 1) % tramas.length;
+                cantidad--;
+                candidata.descartada();
+                descartadas++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Espera (con el cerrojo tomado) a que haya hueco en la cola, como mucho el tiempo máximo.
+     *
+     * @return true si hay hueco y la cola sigue abierta.
+     */
+    private boolean esperarHueco() {
+        long restante = esperaMaximaNanos;
+        try {
+            while (cantidad == tramas.length && !cerrada) {
+                if (restante <= 0) {
+                    return false;
+                }
+                restante = noLlena.awaitNanos(restante);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !cerrada;
+    }
+
+    /**
+     * Saca la primera trama de la cola, esperando a que haya alguna.
+     *
+     * @return La trama, o null si la cola se ha cerrado y ya no quedan tramas.
+     * @throws InterruptedException Si se interrumpe el hilo mientras espera.
+     */
+    public TramaSalida tomar() throws InterruptedException {
+        cerrojo.lock();
+        try {
+            while (cantidad == 0 && !cerrada) {
+                noVacia.await();
+            }
+            return cantidad == 0 ? null : extraer();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Saca la primera trama de la cola sin esperar.
+     *
+     * @return La trama, o null si la cola está vacía.
+     */
+    public TramaSalida sondear() {
+        cerrojo.lock();
+        try {
+            return cantidad == 0 ? null : extraer();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Cierra la cola: no admite más tramas y despierta a quien esté esperando. Las tramas que
+     * ya estaban encoladas se pueden seguir sacando.
+     */
+    public void cerrar() {
+        cerrojo.lock();
+        try {
+            cerrada = true;
+            noVacia.signalAll();
+            noLlena.signalAll();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Quita la trama de la cabeza de la cola. Se llama con el cerrojo tomado y la cola no vacía.
+     */
+    private TramaSalida extraer() {
+        TramaSalida trama = tramas[cabeza];
+        tramas[cabeza] = null;
+        cabeza = (cabeza + 1) % tramas.length;
+        cantidad--;
+        noLlena.signal();
+        return trama;
+    }
+
+    /**
+     * @return Número de tramas pendientes ahora mismo.
+     */
+    public int getProfundidad() {
+        cerrojo.lock();
+        try {
+            return cantidad;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public boolean estaVacia() {
+        return getProfundidad() == 0;
+    }
+
+    public int getProfundidadMaxima() {
+        return profundidadMaxima;
+    }
+
+    public long getEncoladas() {
+        return encoladas;
+    }
+
+    public long getDescartadas() {
+        return descartadas;
+    }
+
+    /**
+     * Devuelve un resumen de las métricas de la cola para registrarlo en el log.
+     *
+     * @return Texto con las métricas de la cola.
+     */
+    public String resumen() {
+        return "encoladas: " + encoladas + ", descartadas: " + descartadas
+                + ", profundidad máxima: " + profundidadMaxima + "/" + tramas.length;
+    }
+}
@@ -0,0 +1,546 @@
+package chat.servidor;
+
+/**
+ * Opciones de arranque del servidor. Se construyen a partir de los argumentos de la línea
+ * de comandos con el formato "--opcion" o "--opcion=valor"; cualquier opción no indicada
+ * conserva su valor por defecto.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Protocolo;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Configuracion {
+
+    // Puerto en el que el servidor escuchará las conexiones entrantes
+    private int puerto = 5050;
+
+    // Límite de conexiones simultáneas permitidas
+    private int limiteConexiones = 5;
+
+    // Conexiones que pueden esperar a que se libere un hueco cuando se alcanza el límite
+    private int colaEspera = 10;
+
+    // Tiempo máximo (ms) que una conexión puede pasar en la cola de espera antes de rechazarla
+    private int esperaMaximaMs = 30000;
+
+    // Conexiones pendientes de aceptar que el sistema operativo mantiene en el socket del servidor
+    private int backlog = 50;
+
+    // Tramas que pueden quedar pendientes de enviar a cada usuario
+    private int colaSalida = 256;
+
+    // Qué hacer cuando la cola de salida de un usuario está llena
+    private ColaSalida.PoliticaDesborde desborde = ColaSalida.PoliticaDesborde.DESCARTAR_ANTIGUO;
+
+    // Tiempo máximo (ms) que espera un emisor con la política de contrapresión
+    private int esperaSalidaMs = 1000;
+
+    // Archivo de log y tamaño del búfer de líneas pendientes de escribir
+    private String logArchivo = "log.txt";
+    private int logBuffer = 65536;
+
+    // Volcado por grupos: se vuelca al acumular estas líneas o al pasar este intervalo (ms)
+    private int logGrupo = 512;
+    private int logIntervaloMs = 200;
+
+    // Rotación del log: tamaño máximo (bytes), periodo (minutos) y archivos antiguos que se conservan
+    private long logTamanoMaximo = 10L * 1024 * 1024;
+    private int logRotacionMin = 24 * 60;
+    private int logArchivos = 5;
+
+    // Si es false el texto de los mensajes del chat solo se escribe en el archivo de log, no en consola
+    private boolean ecoMensajes = true;
+
+    // Si es true se rechaza a los usuarios que saludan sin haber acordado antes una clave de cifrado
+    private boolean cifradoObligatorio = true;
+
+    // Si es true se usa el servidor clásico de un hilo por usuario en lugar del servidor NIO
+    private boolean bloqueante = false;
+
+    // Si es true el servidor bloqueante atiende a cada usuario en un hilo virtual en lugar de uno de plataforma
+    private boolean hilosVirtuales = true;
+
+    // Número de hilos reactores (selectores) del servidor NIO
+    private int reactores = Runtime.getRuntime().availableProcessors();
+
+    // Hilos que reparten los mensajes de las salas; cada sala se asigna siempre al mismo
+    private int hilosSalas = Runtime.getRuntime().availableProcessors();
+
+    // Cada cuántos segundos se registran las métricas de las salas (0 = nunca)
+    private int metricasSalasS = 60;
+
+    // Puerto local en el que se consultan las métricas en texto plano (0 = no se abre)
+    private int metricasPuerto = 0;
+
+    // Número de este servidor dentro del cluster (0 = no forma parte de ninguno)
+    private int nodo = 0;
+
+    // Puerto en el que se aceptan los enlaces de los demás nodos y dirección de cada uno de ellos
+    private int clusterPuerto = 0;
+    private final List<InetSocketAddress> pares = new ArrayList<>();
+
+    // Tramas que pueden quedar pendientes de enviar a cada nodo antes de reiniciar su enlace
+    private int colaCluster = 65536;
+
+    // Segundos sin recibir nada de un usuario tras los que se le envía un latido, y tras los que se
+    // le desconecta; el latido tiene que llegar antes. Con 0 no se vigila a nadie: ni latidos ni
+    // desconexiones
+    private int latidoS = 30;
+    private int inactividadS = 90;
+
+    // Tiempo máximo (ms) que se espera al apagar el servidor a que se envíe lo pendiente a los usuarios
+    private int cierreMs = 5000;
+
+    // Tramas y bytes por segundo que puede enviar cada sesión (0 = sin límite)
+    private int limiteMensajes = 100;
+    private int limiteBytes = 1024 * 1024;
+
+    // Tramas y bytes por segundo que pueden enviar entre todas las sesiones de una misma IP (0 = sin límite)
+    private int limiteIpMensajes = 0;
+    private int limiteIpBytes = 0;
+
+    // Segundos de envío al ritmo límite que se admiten de golpe en una ráfaga
+    private int rafagaS = 2;
+
+    // Qué hacer con las tramas que superan algún límite de envío
+    private LimiteEntrada.Exceso exceso = LimiteEntrada.Exceso.FRENAR;
+
+    // Tamaño máximo (bytes) de una trama recibida; si su longitud lo supera se cierra la conexión sin leerla
+    private int tramaMaxima = Protocolo.LONGITUD_MAXIMA_LECTURA;
+
+    // Carpeta en la que cada sala guarda su historial (null = no se guarda)
+    private String historial = "historial";
+
+    // Tamaño (bytes) de cada segmento del historial y segmentos que se conservan por sala
+    private int historialSegmentoBytes = 8 * 1024 * 1024;
+    private int historialSegmentos = 4;
+
+    // Salas que pueden tener historial en disco a la vez; al pasar de ahí se borra el de la sala
+    // cerrada que lleva más tiempo sin mensajes
+    private int historialSalas = 100;
+
+    // Mensajes del historial que se repiten a quien entra en una sala
+    private int historialMensajes = 50;
+
+    // Mensajes que se envían como mucho a quien pide el historial, y tiempo mínimo (ms) entre dos
+    // peticiones del mismo usuario en una sala
+    private int historialMaximo = 1000;
+    private int historialIntervaloMs = 1000;
+
+    // Tamaño (bytes) a partir del cual se comprimen las tramas para los usuarios que lo admiten
+    // (0 = nunca) y nivel de deflate, de 1 (más rápido) a 9 (más pequeño)
+    private int comprimirDesde = 512;
+    private int nivelCompresion = 1;
+
+    /**
+     * Crea la configuración a partir de los argumentos recibidos en el método main.
+     *
+     * @param args Argumentos de la línea de comandos.
+     * @return La configuración resultante.
+     * @throws IllegalArgumentException Si alguna opción no se reconoce o su valor no es válido.
+     */
+    public static Configuracion desdeArgumentos(String[] args) {
+        Configuracion config = new Configuracion();
+        for (String arg : args) {
+            // Separamos el nombre de la opción de su valor (si lo tiene)
+            int igual = arg.indexOf('=');
+            String opcion = igual < 0 ? arg : arg.substring(0, igual);
+            String valor = igual < 0 ? null : arg.substring(igual + 1);
+            switch (opcion) {
+                case "--puerto" -> config.puerto = entero(opcion, valor, 1);
+                case "--limite" -> config.limiteConexiones = entero(opcion, valor, 1);
+                case "--cola" -> config.colaEspera = entero(opcion, valor, 0);
+                case "--espera-ms" -> config.esperaMaximaMs = entero(opcion, valor, 1);
+                case "--backlog" -> config.backlog = entero(opcion, valor, 1);
+                case "--cola-salida" -> config.colaSalida = entero(opcion, valor, 1);
+                case "--desborde" -> config.desborde = politica(valor);
+                case "--espera-salida-ms" -> config.esperaSalidaMs = entero(opcion, valor, 1);
+                case "--log" -> config.logArchivo = texto(opcion, valor);
+                case "--log-buffer" -> config.logBuffer = entero(opcion, valor, 1);
+                case "--log-grupo" -> config.logGrupo = entero(opcion, valor, 1);
+                case "--log-intervalo-ms" -> config.logIntervaloMs = entero(opcion, valor, 1);
+                case "--log-max-bytes" -> config.logTamanoMaximo = entero(opcion, valor, 1);
+                case "--log-rotacion-min" -> config.logRotacionMin = entero(opcion, valor, 1);
+                case "--log-archivos" -> config.logArchivos = entero(opcion, valor, 1);
+                case "--sin-eco-mensajes" -> config.ecoMensajes = false;
+                case "--cifrado" -> config.cifradoObligatorio = modoCifrado(valor);
+                case "--reactores" -> config.reactores = entero(opcion, valor, 1);
+                case "--bloqueante" -> config.bloqueante = true;
+                case "--hilos" -> config.hilosVirtuales = tipoHilos(valor);
+                case "--hilos-salas" -> config.hilosSalas = entero(opcion, valor, 1);
+                case "--metricas-salas-s" -> config.metricasSalasS = entero(opcion, valor, 0);
+                case "--metricas-puerto" -> config.metricasPuerto = entero(opcion, valor, 0);
+                case "--nodo" -> config.nodo = entero(opcion, valor, 1);
+                case "--cluster-puerto" -> config.clusterPuerto = entero(opcion, valor, 1);
+                case "--pares" -> config.pares.addAll(direcciones(opcion, valor));
+                case "--cola-cluster" -> config.colaCluster = entero(opcion, valor, 1);
+                case "--latido-s" -> config.latidoS = entero(opcion, valor, 1);
+                case "--inactividad-s" -> config.inactividadS = entero(opcion, valor, 0);
+                case "--cierre-ms" -> config.cierreMs = entero(opcion, valor, 0);
+                case "--limite-mensajes" -> config.limiteMensajes = entero(opcion, valor, 0);
+                case "--limite-bytes" -> config.limiteBytes = entero(opcion, valor, 0);
+                case "--limite-ip-mensajes" -> config.limiteIpMensajes = entero(opcion, valor, 0);
+                case "--limite-ip-bytes" -> config.limiteIpBytes = entero(opcion, valor, 0);
+                case "--rafaga-s" -> config.rafagaS = entero(opcion, valor, 1);
+                case "--exceso" -> config.exceso = accionExceso(valor);
+                case "--trama-maxima" -> config.tramaMaxima = entero(opcion, valor, 64);
+                case "--historial" -> config.historial = texto(opcion, valor);
+                case "--sin-historial" -> config.historial = null;
+                // Cada segmento tiene que poder guardar al menos un mensaje del tamaño máximo
+                case "--historial-segmento-bytes" -> config.historialSegmentoBytes = entero(opcion, valor,
+                        2 * Protocolo.LONGITUD_MAXIMA);
+                case "--historial-segmentos" -> config.historialSegmentos = entero(opcion, valor, 1);
+                case "--historial-salas" -> config.historialSalas = entero(opcion, valor, 1);
+                case "--historial-mensajes" -> config.historialMensajes = entero(opcion, valor, 0);
+                case "--historial-maximo" -> config.historialMaximo = entero(opcion, valor, 1);
+                case "--historial-intervalo-ms" -> config.historialIntervaloMs = entero(opcion, valor, 0);
+                case "--comprimir-desde" -> config.comprimirDesde = entero(opcion, valor, 0);
+                case "--nivel-compresion" -> config.nivelCompresion = entero(opcion, valor, 1);
+                default -> throw new IllegalArgumentException("Opción desconocida: " + arg);
+            }
+        }
+        if (config.nodo > RegistroSesiones.NODO_MAXIMO) {
+            throw new IllegalArgumentException("--nodo debe ser como mucho " + RegistroSesiones.NODO_MAXIMO);
+        }
+        if (config.tramaMaxima > Protocolo.LONGITUD_MAXIMA_LECTURA) {
+            throw new IllegalArgumentException("--trama-maxima debe ser como mucho " + Protocolo.LONGITUD_MAXIMA_LECTURA);
+        }
+        if (config.nivelCompresion > 9) {
+            throw new IllegalArgumentException("--nivel-compresion debe ser como mucho 9");
+        }
+        if (config.inactividadS > 0 && config.latidoS >= config.inactividadS) {
+            throw new IllegalArgumentException("--latido-s (" + config.latidoS + ") debe ser menor que --inactividad-s ("
+                    + config.inactividadS + "), o no daría tiempo a responder al latido antes de la desconexión");
+        }
+        if (config.isCluster() && (config.nodo == 0 || config.clusterPuerto == 0)) {
+            throw new IllegalArgumentException("Un nodo de un cluster necesita --nodo y --cluster-puerto");
+        }
+        return config;
+    }
+
+    /**
+     * Convierte el valor de una opción numérica, comprobando que no sea menor que el mínimo.
+     */
+    private static int entero(String opcion, String valor, int minimo) {
+        try {
+            int numero = Integer.parseInt(valor);
+            if (numero < minimo) {
+                throw new IllegalArgumentException(opcion + " debe ser al menos " + minimo);
+            }
+            return numero;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Valor no válido para " + opcion + ": " + valor);
+        }
+    }
+
+    /**
+     * Comprueba que una opción de texto tenga valor.
+     */
+    private static String texto(String opcion, String valor) {
+        if (valor == null || valor.isEmpty()) {
+            throw new IllegalArgumentException("Falta el valor de " + opcion);
+        }
+        return valor;
+    }
+
+    /**
+     * Interpreta una lista de direcciones "host:puerto" separadas por comas.
+     */
+    private static List<InetSocketAddress> direcciones(String opcion, String valor) {
+        List<InetSocketAddress> direcciones = new ArrayList<>();
+        for (String direccion : texto(opcion, valor).split(",")) {
+            int dosPuntos = direccion.lastIndexOf(':');
+            if (dosPuntos <= 0) {
+                throw new IllegalArgumentException("Valor no válido para " + opcion + ": " + direccion + " (host:puerto)");
+            }
+            int puerto = entero(opcion, direccion.substring(dosPuntos + 1), 1);
+            direcciones.add(InetSocketAddress.createUnresolved(direccion.substring(0, dosPuntos), puerto));
+        }
+        return direcciones;
+    }
+
+    /**
+     * Interpreta el valor de la opción "--hilos": "virtuales" o "plataforma".
+     */
+    private static boolean tipoHilos(String valor) {
+        if ("virtuales".equals(valor)) {
+            return true;
+        }
+        if ("plataforma".equals(valor)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Valor no válido para --hilos: " + valor + " (virtuales o plataforma)");
+    }
+
+    /**
+     * Interpreta el valor de la opción "--cifrado": "obligatorio" u "opcional".
+     */
+    private static boolean modoCifrado(String valor) {
+        if ("obligatorio".equals(valor)) {
+            return true;
+        }
+        if ("opcional".equals(valor)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Valor no válido para --cifrado: " + valor + " (obligatorio u opcional)");
+    }
+
+    /**
+     * Interpreta el valor de la opción "--desborde": "descartar-antiguo", "desconectar" o "contrapresion".
+     */
+    private static ColaSalida.PoliticaDesborde politica(String valor) {
+        if (valor != null) {
+            for (ColaSalida.PoliticaDesborde politica : ColaSalida.PoliticaDesborde.values()) {
+                if (politica.name().replace('_', '-').equalsIgnoreCase(valor)) {
+                    return politica;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Valor no válido para --desborde: " + valor
+                + " (descartar-antiguo, desconectar o contrapresion)");
+    }
+
+    /**
+     * Interpreta el valor de la opción "--exceso": "frenar", "descartar" o "desconectar".
+     */
+    private static LimiteEntrada.Exceso accionExceso(String valor) {
+        if (valor != null) {
+            for (LimiteEntrada.Exceso accion : LimiteEntrada.Exceso.values()) {
+                if (accion.name().equalsIgnoreCase(valor)) {
+                    return accion;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Valor no válido para --exceso: " + valor
+                + " (frenar, descartar o desconectar)");
+    }
+
+    /**
+     * Crea la cola de salida de una nueva sesión con la capacidad y la política configuradas.
+     *
+     * @return Una cola de salida vacía.
+     */
+    public ColaSalida nuevaColaSalida() {
+        return new ColaSalida(colaSalida, desborde, esperaSalidaMs);
+    }
+
+    public int getPuerto() {
+        return puerto;
+    }
+
+    public int getLimiteConexiones() {
+        return limiteConexiones;
+    }
+
+    public int getColaEspera() {
+        return colaEspera;
+    }
+
+    public int getEsperaMaximaMs() {
+        return esperaMaximaMs;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public String getLogArchivo() {
+        return logArchivo;
+    }
+
+    public int getLogBuffer() {
+        return logBuffer;
+    }
+
+    public int getLogGrupo() {
+        return logGrupo;
+    }
+
+    public int getLogIntervaloMs() {
+        return logIntervaloMs;
+    }
+
+    public long getLogTamanoMaximo() {
+        return logTamanoMaximo;
+    }
+
+    public int getLogRotacionMin() {
+        return logRotacionMin;
+    }
+
+    public int getLogArchivos() {
+        return logArchivos;
+    }
+
+    public boolean isEcoMensajes() {
+        return ecoMensajes;
+    }
+
+    public boolean isCifradoObligatorio() {
+        return cifradoObligatorio;
+    }
+
+    public boolean isBloqueante() {
+        return bloqueante;
+    }
+
+    public boolean isHilosVirtuales() {
+        return hilosVirtuales;
+    }
+
+    public int getReactores() {
+        return reactores;
+    }
+
+    public int getHilosSalas() {
+        return hilosSalas;
+    }
+
+    public int getMetricasSalasS() {
+        return metricasSalasS;
+    }
+
+    /**
+     * @return El puerto local de las métricas en texto plano, o 0 si no se abre.
+     */
+    public int getMetricasPuerto() {
+        return metricasPuerto;
+    }
+
+    /**
+     * @return El número de este servidor dentro del cluster, o 0 si no forma parte de ninguno.
+     */
+    public int getNodo() {
+        return nodo;
+    }
+
+    /**
+     * @return true si se han indicado otros nodos con los que formar un cluster.
+     */
+    public boolean isCluster() {
+        return !pares.isEmpty();
+    }
+
+    public int getClusterPuerto() {
+        return clusterPuerto;
+    }
+
+    /**
+     * @return La dirección de cada uno de los demás nodos del cluster, sin resolver.
+     */
+    public List<InetSocketAddress> getPares() {
+        return pares;
+    }
+
+    /**
+     * Crea la cola de las tramas pendientes de enviar a otro nodo. Si se llena, el enlace con ese
+     * nodo se reinicia.
+     *
+     * @return Una cola de salida vacía.
+     */
+    public ColaSalida nuevaColaCluster() {
+        return new ColaSalida(colaCluster, ColaSalida.PoliticaDesborde.DESCONECTAR, 0);
+    }
+
+    public int getLatidoS() {
+        return latidoS;
+    }
+
+    /**
+     * @return Segundos sin recibir nada de un usuario tras los que se le desconecta (siempre más
+     *         que {@link #getLatidoS()}), o 0 si no se vigila a nadie y tampoco se envían latidos.
+     */
+    public int getInactividadS() {
+        return inactividadS;
+    }
+
+    public int getCierreMs() {
+        return cierreMs;
+    }
+
+    /**
+     * @return Tramas por segundo que puede enviar cada sesión, o 0 si no hay límite.
+     */
+    public int getLimiteMensajes() {
+        return limiteMensajes;
+    }
+
+    /**
+     * @return Bytes por segundo que puede enviar cada sesión, o 0 si no hay límite.
+     */
+    public int getLimiteBytes() {
+        return limiteBytes;
+    }
+
+    /**
+     * @return Tramas por segundo que pueden enviar las sesiones de una IP entre todas, o 0 si no hay límite.
+     */
+    public int getLimiteIpMensajes() {
+        return limiteIpMensajes;
+    }
+
+    /**
+     * @return Bytes por segundo que pueden enviar las sesiones de una IP entre todas, o 0 si no hay límite.
+     */
+    public int getLimiteIpBytes() {
+        return limiteIpBytes;
+    }
+
+    public int getRafagaS() {
+        return rafagaS;
+    }
+
+    public LimiteEntrada.Exceso getExceso() {
+        return exceso;
+    }
+
+    public int getTramaMaxima() {
+        return tramaMaxima;
+    }
+
+    /**
+     * @return La carpeta del historial de las salas, o null si no se guarda.
+     */
+    public String getHistorial() {
+        return historial;
+    }
+
+    public int getHistorialSegmentoBytes() {
+        return historialSegmentoBytes;
+    }
+
+    public int getHistorialSegmentos() {
+        return historialSegmentos;
+    }
+
+    public int getHistorialSalas() {
+        return historialSalas;
+    }
+
+    public int getHistorialMensajes() {
+        return historialMensajes;
+    }
+
+    public int getHistorialMaximo() {
+        return historialMaximo;
+    }
+
+    public int getHistorialIntervaloMs() {
+        return historialIntervaloMs;
+    }
+
+    /**
+     * @return Tamaño a partir del cual se comprimen las tramas para quien lo admite, o 0 si nunca.
+     */
+    public int getComprimirDesde() {
+        return comprimirDesde;
+    }
+
+    public int getNivelCompresion() {
+        return nivelCompresion;
+    }
+}
@@ -0,0 +1,210 @@
+package chat.servidor;
+
+/**
+ * Controla cuántas conexiones atiende el servidor a la vez. Mientras haya hueco, las conexiones
+ * se admiten al momento; cuando se alcanza el límite pasan a una cola de espera acotada y se admiten
+ * en orden de llegada a medida que otros usuarios se desconectan. Si la cola está llena, o una
+ * conexión espera más del tiempo máximo, se rechaza. Lleva la cuenta de las conexiones aceptadas,
+ * encoladas, rechazadas y caducadas.
+ *
+ * El control no sabe nada del tipo de conexión: lo que hay que hacer para admitir, encolar o
+ * rechazar lo decide el {@link Manejador} que recibe en el constructor.
+ *
+ * @author sdacatrinei
+ * @param <T> Tipo de conexión (Socket en el servidor bloqueante, SocketChannel en el NIO).
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ControlAdmision<T> {
+
+    /**
+     * Acciones que el servidor realiza según la decisión tomada para cada conexión.
+     * Nunca se llaman con el cerrojo del control tomado.
+     */
+    public interface Manejador<T> {
+
+        // La conexión puede empezar a atenderse
+        void admitir(T conexion);
+
+        // La conexión queda a la espera de que se libere un hueco
+        void encolar(T conexion);
+
+        // La conexión no se va a atender y debe cerrarse
+        void rechazar(T conexion);
+    }
+
+    // Conexión en la cola de espera junto con la tarea que la rechazará si no se admite a tiempo
+    private class Espera {
+        private final T conexion;
+        private volatile ScheduledFuture<?> vencimiento;
+
+        private Espera(T conexion) {
+            this.conexion = conexion;
+        }
+    }
+
+    private final int limite;
+    private final int capacidadCola;
+    private final long esperaMaximaMs;
+    private final Manejador<T> manejador;
+
+    // Estado protegido por el cerrojo de this
+    private final ArrayDeque<Espera> cola = new ArrayDeque<>();
+    private int activas;
+    private boolean lleno;
+
+    // Hilo que rechaza las conexiones que llevan demasiado tiempo esperando
+    private final ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+        Thread hilo = new Thread(tarea, "admision");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    // Contadores de conexiones
+    private final LongAdder aceptadas = new LongAdder();
+    private final LongAdder encoladas = new LongAdder();
+    private final LongAdder rechazadas = new LongAdder();
+    private final LongAdder caducadas = new LongAdder();
+
+    /**
+     * @param limite Número máximo de conexiones atendidas a la vez.
+     * @param capacidadCola Número máximo de conexiones esperando (0 para rechazar directamente).
+     * @param esperaMaximaMs Tiempo máximo que una conexión puede pasar en la cola.
+     * @param manejador Acciones a realizar con cada conexión.
+     */
+    public ControlAdmision(int limite, int capacidadCola, long esperaMaximaMs, Manejador<T> manejador) {
+        this.limite = limite;
+        this.capacidadCola = capacidadCola;
+        this.esperaMaximaMs = esperaMaximaMs;
+        this.manejador = manejador;
+    }
+
+    /**
+     * Decide qué hacer con una conexión recién aceptada.
+     *
+     * @param conexion La conexión entrante.
+     */
+    public void solicitar(T conexion) {
+        Espera espera = null;
+        boolean admitida = false;
+        boolean avisarLleno = false;
+        synchronized (this) {
+            if (activas < limite) {
+                activas++;
+                admitida = true;
+            } else {
+                // Solo avisamos una vez cada vez que el servidor se llena
+                avisarLleno = !lleno;
+                lleno = true;
+                if (cola.size() < capacidadCola) {
+                    espera = new Espera(conexion);
+                    cola.add(espera);
+                }
+            }
+        }
+
+        if (admitida) {
+            aceptadas.increment();
+        } else if (espera != null) {
+            encoladas.increment();
+        } else {
+            rechazadas.increment();
+        }
+        if (avisarLleno) {
+            MainServidor.log("Límite de conexiones alcanzado (" + limite + "). " + resumen());
+        }
+
+        if (admitida) {
+            manejador.admitir(conexion);
+        } else if (espera != null) {
+            manejador.encolar(conexion);
+            Espera programada = espera;
+            espera.vencimiento = temporizador.schedule(() -> caducar(programada), esperaMaximaMs, TimeUnit.MILLISECONDS);
+        } else {
+            manejador.rechazar(conexion);
+        }
+    }
+
+    /**
+     * Indica que una conexión admitida ha terminado. Si hay conexiones esperando, el hueco
+     * pasa directamente a la primera de la cola.
+     */
+    public void liberar() {
+        Espera siguiente;
+        boolean avisarHueco = false;
+        synchronized (this) {
+            siguiente = cola.poll();
+            if (siguiente == null) {
+                activas--;
+                avisarHueco = lleno;
+                lleno = false;
+            }
+        }
+
+        if (avisarHueco) {
+            MainServidor.log("Vuelve a haber hueco para nuevas conexiones. " + resumen());
+        }
+        if (siguiente != null) {
+            if (siguiente.vencimiento != null) {
+                siguiente.vencimiento.cancel(false);
+            }
+            aceptadas.increment();
+            manejador.admitir(siguiente.conexion);
+        }
+    }
+
+    /**
+     * Rechaza una conexión que ha agotado su tiempo de espera, si sigue en la cola.
+     */
+    private void caducar(Espera espera) {
+        synchronized (this) {
+            if (!cola.remove(espera)) {
+                return; // Ya se admitió mientras tanto
+            }
+        }
+        caducadas.increment();
+        rechazadas.increment();
+        manejador.rechazar(espera.conexion);
+    }
+
+    /**
+     * Devuelve un resumen de los contadores para registrarlo en el log.
+     *
+     * @return Texto con los contadores de conexiones.
+     */
+    public String resumen() {
+        return "Aceptadas: " + aceptadas.sum() + ", en cola: " + getEnCola()
+                + ", encoladas: " + encoladas.sum() + ", rechazadas: " + rechazadas.sum()
+                + " (caducadas: " + caducadas.sum() + ")";
+    }
+
+    public synchronized int getActivas() {
+        return activas;
+    }
+
+    public synchronized int getEnCola() {
+        return cola.size();
+    }
+
+    public long getAceptadas() {
+        return aceptadas.sum();
+    }
+
+    public long getEncoladas() {
+        return encoladas.sum();
+    }
+
+    public long getRechazadas() {
+        return rechazadas.sum();
+    }
+
+    public long getCaducadas() {
+        return caducadas.sum();
+    }
+}
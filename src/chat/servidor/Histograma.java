@@ -0,0 +1,108 @@
+package chat.servidor;
+
+/**
+ * Histograma concurrente de latencias con escala log-lineal, al estilo de HdrHistogram: cada
+ * potencia de dos se divide en {@value #SUBDIVISIONES} intervalos iguales, así que cualquier valor
+ * se guarda con un error relativo menor del 3 % y el histograma ocupa lo mismo registre lo que
+ * registre. Varios hilos pueden registrar a la vez sin cerrojos. Lo usan las {@link Metricas} del
+ * servidor y la prueba de carga de los bancos de pruebas.
+ *
+ * @author sdacatrinei
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public final class Histograma {
+
+    // Bits de cada potencia de dos que se conservan (32 intervalos por potencia)
+    private static final int BITS_SUBDIVISION = 5;
+    private static final int SUBDIVISIONES = 1 << BITS_SUBDIVISION;
+
+    // Los valores menores que SUBDIVISIONES tienen cada uno su intervalo; después, uno por cada
+    // subdivisión de cada potencia de dos hasta Long.MAX_VALUE
+    private final AtomicLongArray cuentas = new AtomicLongArray((64 - BITS_SUBDIVISION) * SUBDIVISIONES);
+
+    private final AtomicLong maximo = new AtomicLong();
+
+    /**
+     * Registra un valor; los negativos cuentan como cero.
+     *
+     * @param valor El valor, por ejemplo una latencia en nanosegundos.
+     */
+    public void registrar(long valor) {
+        valor = Math.max(0, valor);
+        cuentas.incrementAndGet(intervalo(valor));
+        if (valor > maximo.get()) {
+            maximo.accumulateAndGet(valor, Math::max);
+        }
+    }
+
+    /**
+     * @return Número de valores registrados.
+     */
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < cuentas.length(); i++) {
+            total += cuentas.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return El mayor valor registrado, exacto.
+     */
+    public long maximo() {
+        return maximo.get();
+    }
+
+    /**
+     * Devuelve el valor por debajo del cual queda el porcentaje indicado de los registrados.
+     *
+     * @param porcentaje Entre 0 y 100, por ejemplo 99.9.
+     * @return El límite superior del intervalo en el que cae ese percentil, o 0 si no hay valores.
+     */
+    public long percentil(double porcentaje) {
+        long total = total();
+        if (total == 0) {
+            return 0;
+        }
+        long objetivo = Math.max(1, (long) Math.ceil(total * porcentaje / 100));
+        long acumulado = 0;
+        for (int i = 0; i < cuentas.length(); i++) {
+            acumulado += cuentas.get(i);
+            if (acumulado >= objetivo) {
+                return Math.min(limiteSuperior(i), maximo());
+            }
+        }
+        return maximo();
+    }
+
+    /**
+     * Deja el histograma vacío. Lo que se registre mientras tanto puede conservarse o perderse.
+     */
+    public void reiniciar() {
+        for (int i = 0; i < cuentas.length(); i++) {
+            cuentas.set(i, 0);
+        }
+        maximo.set(0);
+    }
+
+    private static int intervalo(long valor) {
+        if (valor < SUBDIVISIONES) {
+            return (int) valor;
+        }
+        int potencia = 63 - Long.numberOfLeadingZeros(valor);
+        int subdivision = (int) (valor >>> (potencia - BITS_SUBDIVISION)) & (SUBDIVISIONES - 1);
+        return (potencia - BITS_SUBDIVISION + 1) * SUBDIVISIONES + subdivision;
+    }
+
+    private static long limiteSuperior(int intervalo) {
+        if (intervalo < SUBDIVISIONES) {
+            return intervalo;
+        }
+        int potencia = intervalo / SUBDIVISIONES + BITS_SUBDIVISION - 1;
+        long subdivision = intervalo % SUBDIVISIONES;
+        return ((SUBDIVISIONES + subdivision + 1) << (potencia - BITS_SUBDIVISION)) - 1;
+    }
+}
@@ -0,0 +1,284 @@
+package chat.servidor;
+
+/**
+ * Historial persistente de los mensajes de una sala. Es un diario en el que solo se añade al final,
+ * repartido en segmentos de tamaño fijo dentro de la carpeta de la sala. Cada segmento son dos
+ * archivos proyectados en memoria: las tramas {@link TipoTrama#HISTORIAL} tal y como se envían y un
+ * índice con el final de cada una. El nombre de ambos es la secuencia del primer mensaje del segmento,
+ * así que la posición de cualquier mensaje se calcula sin recorrer el diario.
+ *
+ * Como las tramas se guardan ya codificadas, repetir el historial a un usuario no copia ni vuelve a
+ * codificar nada: se encolan vistas de solo lectura del propio segmento, agrupando en cada una
+ * tantos mensajes seguidos como quepan en una trama ({@link Protocolo#LONGITUD_MAXIMA}).
+ *
+ * Cuando el segmento actual se llena se empieza otro, y cuando hay más segmentos de los configurados
+ * se borra el más antiguo, de modo que cada sala ocupa como mucho ese número de segmentos. Las
+ * escrituras van a la memoria proyectada y el sistema operativo las lleva al disco, así que el
+ * historial sobrevive a un cierre del servidor. Al abrirlo, el número de mensajes de cada segmento
+ * se recupera del índice: un final a cero marca el primer hueco libre.
+ *
+ * Cuando la sala se retira, su historial se cierra: se lleva al disco lo escrito y se sueltan los
+ * segmentos, cuya proyección se deshace en cuanto dejan de usarla las vistas que aún estén en alguna
+ * cola. Si la sala vuelve a abrirse, se abre de nuevo desde el disco.
+ *
+ * No es seguro para hilos: solo lo usa el hilo de su sala.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Protocolo;
+import chat.util.TipoTrama;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+final class Historial {
+
+    private static final String EXTENSION_TRAMAS = ".tramas";
+    private static final String EXTENSION_INDICE = ".indice";
+
+    // Una trama HISTORIAL ocupa al menos 8 bytes, así que el índice nunca se llena antes que las tramas
+    private static final int BYTES_POR_ENTRADA = 8;
+
+    private static final byte[] VACIO = new byte[0];
+
+    private final Path carpeta;
+    private final int tamanoSegmento;
+    private final int maximoSegmentos;
+
+    // Segmentos del más antiguo al más reciente; solo se escribe en el último
+    private final ArrayDeque<Segmento> segmentos = new ArrayDeque<>();
+
+    // Secuencia del último mensaje guardado (0 si no hay ninguno)
+    private long ultimaSecuencia;
+
+    /**
+     * Segmento del diario: las tramas y, en el índice, la posición en la que termina cada una.
+     */
+    private static final class Segmento {
+        private final long primera; // Secuencia del primer mensaje del segmento
+        private final Path archivoTramas;
+        private final Path archivoIndice;
+        private final MappedByteBuffer tramas;
+        private final MappedByteBuffer indice;
+        private final IntBuffer finales;
+        private int entradas;
+
+        private Segmento(long primera, Path archivoTramas, Path archivoIndice, MappedByteBuffer tramas,
+                MappedByteBuffer indice) {
+            this.primera = primera;
+            this.archivoTramas = archivoTramas;
+            this.archivoIndice = archivoIndice;
+            this.tramas = tramas;
+            this.indice = indice;
+            this.finales = indice.asIntBuffer();
+        }
+
+        /**
+         * Abre un segmento, o lo crea con el tamaño indicado si no existe, y recupera sus entradas.
+         */
+        private static Segmento abrir(Path carpeta, long primera, int tamano) throws IOException {
+            String base = String.format("%020d", primera);
+            Path archivoTramas = carpeta.resolve(base + EXTENSION_TRAMAS);
+            Path archivoIndice = carpeta.resolve(base + EXTENSION_INDICE);
+            // Un segmento que ya existe conserva el tamaño con el que se creó
+            MappedByteBuffer tramas = proyectar(archivoTramas, tamano);
+            MappedByteBuffer indice = proyectar(archivoIndice, tamano / BYTES_POR_ENTRADA * Integer.BYTES);
+            Segmento segmento = new Segmento(primera, archivoTramas, archivoIndice, tramas, indice);
+            segmento.recuperar();
+            return segmento;
+        }
+
+        private static MappedByteBuffer proyectar(Path archivo, int tamano) throws IOException {
+            try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long existente = canal.size();
+                // Proyectar más allá del final amplía el archivo sin escribir los bytes (archivo disperso)
+                return canal.map(FileChannel.MapMode.READ_WRITE, 0, existente > 0 ? existente : tamano);
+            }
+        }
+
+        /**
+         * Cuenta las entradas buscando el primer final a cero; si el servidor se cerró a medias,
+         * se descartan las entradas que no sean crecientes o se salgan del segmento.
+         */
+        private void recuperar() {
+            int anterior = 0;
+            while (entradas < finales.capacity()) {
+                int fin = finales.get(entradas);
+                if (fin <= anterior || fin > tramas.capacity()) {
+                    break;
+                }
+                anterior = fin;
+                entradas++;
+            }
+            for (int i = entradas; i < finales.capacity() && finales.get(i) != 0; i++) {
+                finales.put(i, 0);
+            }
+        }
+
+        private int inicio(int entrada) {
+            return entrada == 0 ? 0 : finales.get(entrada - 1);
+        }
+
+        private int fin(int entrada) {
+            return finales.get(entrada);
+        }
+
+        private long siguiente() {
+            return primera + entradas;
+        }
+
+        private boolean cabe(int longitud) {
+            return entradas < finales.capacity() && tramas.capacity() - inicio(entradas) >= longitud;
+        }
+
+        private void borrar() throws IOException {
+            // Las vistas que aún estén en alguna cola siguen siendo válidas: la proyección no se
+            // deshace hasta que dejan de usarse
+            Files.deleteIfExists(archivoTramas);
+            Files.deleteIfExists(archivoIndice);
+        }
+    }
+
+    private Historial(Path carpeta, int tamanoSegmento, int maximoSegmentos) {
+        this.carpeta = carpeta;
+        this.tamanoSegmento = tamanoSegmento;
+        this.maximoSegmentos = maximoSegmentos;
+    }
+
+    /**
+     * Abre el historial que hay en una carpeta, creándola si no existe.
+     *
+     * @param carpeta Carpeta de la sala.
+     * @param tamanoSegmento Bytes de tramas de cada segmento nuevo.
+     * @param maximoSegmentos Segmentos que se conservan; al pasar de ahí se borra el más antiguo.
+     * @return El historial, listo para añadir mensajes.
+     * @throws IOException Si no se puede leer la carpeta o proyectar algún segmento.
+     */
+    static Historial abrir(Path carpeta, int tamanoSegmento, int maximoSegmentos) throws IOException {
+        Files.createDirectories(carpeta);
+        List<Long> primeras = new ArrayList<>();
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(carpeta, "*" + EXTENSION_TRAMAS)) {
+            for (Path archivo : archivos) {
+                String nombre = archivo.getFileName().toString();
+                try {
+                    primeras.add(Long.parseLong(nombre.substring(0, nombre.length() - EXTENSION_TRAMAS.length())));
+                } catch (NumberFormatException ex) {
+                    // No es un segmento del historial
+                }
+            }
+        }
+        primeras.sort(null);
+        Historial historial = new Historial(carpeta, tamanoSegmento, maximoSegmentos);
+        for (long primera : primeras) {
+            historial.segmentos.addLast(Segmento.abrir(carpeta, primera, tamanoSegmento));
+        }
+        if (!historial.segmentos.isEmpty()) {
+            historial.ultimaSecuencia = historial.segmentos.getLast().siguiente() - 1;
+        }
+        historial.aplicarRetencion();
+        return historial;
+    }
+
+    /**
+     * @return La secuencia del último mensaje guardado, o 0 si no hay ninguno.
+     */
+    long getUltimaSecuencia() {
+        return ultimaSecuencia;
+    }
+
+    /**
+     * Añade un mensaje al final del historial, escribiendo su trama directamente en el segmento.
+     * Si el nombre y el texto juntos no caben en una trama, se guarda sin el texto para que la
+     * secuencia no tenga huecos.
+     *
+     * @param secuencia Número del mensaje en la sala; si no es el siguiente al último, empieza un segmento.
+     * @param remitente Identificador de quien lo envió.
+     * @param marcaTiempo Momento en que el servidor lo recibió.
+     * @param autor Nombre de quien lo envió, en UTF-8.
+     * @param texto Texto del mensaje, en UTF-8.
+     * @throws IOException Si no se puede crear un segmento nuevo.
+     */
+    void anotar(long secuencia, long remitente, long marcaTiempo, byte[] autor, byte[] texto) throws IOException {
+        int longitud = Protocolo.longitudConNombre(remitente, secuencia, marcaTiempo, autor.length, texto.length);
+        if (longitud < 0) {
+            texto = VACIO;
+            longitud = Protocolo.longitudConNombre(remitente, secuencia, marcaTiempo, autor.length, 0);
+        }
+        Segmento actual = segmentos.peekLast();
+        if (actual == null || actual.siguiente() != secuencia || !actual.cabe(longitud)) {
+            actual = Segmento.abrir(carpeta, secuencia, Math.max(tamanoSegmento, longitud));
+            segmentos.addLast(actual);
+            aplicarRetencion();
+        }
+        int inicio = actual.inicio(actual.entradas);
+        ByteBuffer destino = actual.tramas.duplicate().position(inicio);
+        Protocolo.escribirConNombre(destino, TipoTrama.HISTORIAL, remitente, secuencia, marcaTiempo, autor, texto);
+        // El final se anota después de la trama: si el servidor se cae entre medias, la trama no cuenta
+        actual.finales.put(actual.entradas, inicio + longitud);
+        actual.entradas++;
+        ultimaSecuencia = secuencia;
+    }
+
+    /**
+     * Devuelve los mensajes guardados posteriores a una secuencia, como mucho los últimos indicados.
+     * Cada buffer es una vista de solo lectura de un segmento con varios mensajes seguidos, que en
+     * total no pasan de {@link Protocolo#LONGITUD_MAXIMA} salvo que uno solo ya los supere.
+     *
+     * @param posterior Se devuelven los mensajes con una secuencia mayor que esta.
+     * @param maximo Número máximo de mensajes.
+     * @return Las vistas, en orden; vacío si no hay mensajes.
+     */
+    List<ByteBuffer> desde(long posterior, int maximo) {
+        long primera = Math.max(posterior + 1, ultimaSecuencia - maximo + 1);
+        List<ByteBuffer> lotes = new ArrayList<>();
+        for (Segmento segmento : segmentos) {
+            if (segmento.siguiente() <= primera) {
+                continue;
+            }
+            int entrada = (int) Math.max(0, primera - segmento.primera);
+            while (entrada < segmento.entradas) {
+                int inicio = segmento.inicio(entrada);
+                int ultima = entrada;
+                while (ultima + 1 < segmento.entradas
+                        && segmento.fin(ultima + 1) - inicio <= Protocolo.LONGITUD_MAXIMA) {
+                    ultima++;
+                }
+                lotes.add(segmento.tramas.slice(inicio, segmento.fin(ultima) - inicio).asReadOnlyBuffer());
+                entrada = ultima + 1;
+            }
+        }
+        return lotes;
+    }
+
+    /**
+     * Cierra el historial: lleva al disco lo escrito y suelta los segmentos. Después no se puede
+     * usar; para seguir con la sala hay que volver a abrirlo.
+     */
+    void cerrar() {
+        for (Segmento segmento : segmentos) {
+            segmento.tramas.force();
+            segmento.indice.force();
+        }
+        segmentos.clear();
+    }
+
+    /**
+     * Borra los segmentos más antiguos hasta quedarse con el máximo configurado.
+     */
+    private void aplicarRetencion() throws IOException {
+        while (segmentos.size() > maximoSegmentos) {
+            segmentos.removeFirst().borrar();
+        }
+    }
+}
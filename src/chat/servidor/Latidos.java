@@ -0,0 +1,93 @@
+package chat.servidor;
+
+/**
+ * Vigila que las sesiones sigan vivas. Una conexión que se corta sin cerrarse (el equipo del
+ * usuario se apaga o se pierde la red) no da ningún error al leer, así que sin vigilancia la
+ * sesión seguiría en su sala para siempre y cada mensaje se seguiría encolando para ella.
+ *
+ * Si un usuario pasa un rato sin enviar nada, el servidor le envía un {@link TipoTrama#LATIDO},
+ * al que su cliente responde con un {@link TipoTrama#ECO}; si sigue sin enviar nada durante el
+ * tiempo de inactividad, se le desconecta. Lo mismo vale para las conexiones que nunca llegan a
+ * saludar. {@link Configuracion} garantiza que el latido llega antes que la desconexión; con un
+ * tiempo de inactividad de 0 no se vigila ninguna sesión. Todas las comprobaciones las hace una
+ * sola {@link RuedaTemporizadores}, con una tarea pendiente por sesión que se vuelve a programar
+ * para cuando toque la siguiente.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.TipoTrama;
+import java.util.concurrent.TimeUnit;
+
+final class Latidos {
+
+    // Duración de cada tic de la rueda y número de ranuras (una vuelta dura 51,2 segundos)
+    private static final long TIC_MS = 100;
+    private static final int RANURAS = 512;
+
+    private final long latidoNanos;
+    private final long inactividadNanos;
+
+    // Se crea al vigilar la primera sesión, para no arrancar el hilo si no hay ninguna
+    private RuedaTemporizadores rueda;
+
+    /**
+     * @param config Configuración del servidor, con el intervalo de los latidos y el tiempo de inactividad.
+     */
+    Latidos(Configuracion config) {
+        this.latidoNanos = TimeUnit.SECONDS.toNanos(config.getLatidoS());
+        this.inactividadNanos = TimeUnit.SECONDS.toNanos(config.getInactividadS());
+    }
+
+    /**
+     * Empieza a vigilar una sesión recién aceptada. Deja de vigilarla sola en cuanto se cierra.
+     *
+     * @param sesion La sesión.
+     */
+    void vigilar(Sesion sesion) {
+        if (inactividadNanos == 0) {
+            return;
+        }
+        rueda().programar(latidoNanos, () -> comprobar(sesion));
+    }
+
+    private synchronized RuedaTemporizadores rueda() {
+        if (rueda == null) {
+            rueda = new RuedaTemporizadores(TIC_MS, RANURAS, "latidos");
+        }
+        return rueda;
+    }
+
+    /**
+     * Comprueba cuánto hace que la sesión no envía nada: le envía un latido si ha pasado el
+     * intervalo de los latidos y la desconecta si ha pasado el tiempo de inactividad. Se ejecuta
+     * en el hilo de la rueda.
+     */
+    private void comprobar(Sesion sesion) {
+        if (!sesion.isAbierta()) {
+            return;
+        }
+        long ahora = System.nanoTime();
+        long silencio = ahora - sesion.getUltimaLectura();
+        if (silencio >= inactividadNanos) {
+            String nombre = sesion.getNombreUsuario();
+            MainServidor.log((nombre != null ? nombre : "Usuario Desconocido") + " lleva "
+                    + TimeUnit.NANOSECONDS.toSeconds(silencio) + " s sin dar señales de vida; se le desconecta.");
+            sesion.desconectar();
+            return;
+        }
+        long siguiente;
+        if (silencio >= latidoNanos) {
+            // Si ya tiene tramas pendientes, esas mismas sirven para comprobar la conexión; además
+            // así el hilo de la rueda nunca espera a que haya hueco en la cola. A quien aún no ha
+            // saludado no se le envía nada: lo primero que recibe es la respuesta a su saludo
+            if (sesion.getNombreUsuario() != null && sesion.getColaSalida().estaVacia()) {
+                sesion.enviar(TramaSalida.aviso(TipoTrama.LATIDO, ""));
+            }
+            siguiente = Math.min(latidoNanos, inactividadNanos - silencio);
+        } else {
+            siguiente = latidoNanos - silencio;
+        }
+        rueda().programar(siguiente, () -> comprobar(sesion));
+    }
+}
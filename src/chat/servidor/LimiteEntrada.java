@@ -0,0 +1,278 @@
+package chat.servidor;
+
+/**
+ * Límites de lo que puede enviar cada usuario al servidor: tramas y bytes por segundo de cada
+ * sesión y de todas las sesiones que llegan desde la misma dirección IP, y tamaño máximo de una
+ * trama. Así un usuario que envía sin parar no multiplica su ritmo por el número de miembros de
+ * su sala, ni consigue más abriendo varias conexiones desde el mismo equipo.
+ *
+ * Cada límite es un cubo de fichas que admite ráfagas de unos segundos al ritmo configurado. El
+ * cubo se implementa con el algoritmo GCRA: en lugar de fichas guarda el instante teórico en el
+ * que quedaría lleno otra vez, en un solo AtomicLong, y admitir una trama es una lectura del reloj
+ * y una comparación e intercambio, sin cerrojos. Los cubos de una dirección IP los comparten los
+ * hilos de todas sus sesiones; los de una sesión solo los usa el hilo que la lee.
+ *
+ * Lo que se hace con las tramas que superan algún límite depende del {@link Exceso} configurado.
+ * La {@link Cuota} de cada sesión aplica los límites al leer cada trama, y las tramas que los
+ * superan se anotan en las {@link Metricas} del servidor.
+ *
+ * @author sdacatrinei
+ */
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class LimiteEntrada {
+
+    /**
+     * Qué hacer cuando una trama supera alguno de los límites.
+     */
+    public enum Exceso {
+        // Se atiende la trama, pero después de esperar lo necesario para volver al ritmo permitido;
+        // mientras tanto no se lee nada más de esa sesión
+        FRENAR,
+        // Se descarta la trama sin atenderla y se avisa al usuario
+        DESCARTAR,
+        // Se desconecta al usuario
+        DESCONECTAR
+    }
+
+    /**
+     * Resultado de {@link Cuota#admitir(int)} para una trama que no se debe atender.
+     */
+    public static final long RECHAZADA = -1;
+
+    private static final long NANOS_POR_SEGUNDO = TimeUnit.SECONDS.toNanos(1);
+
+    private final Configuracion config;
+
+    // Cubos compartidos por las sesiones de cada dirección IP, mientras tenga alguna conectada
+    private final ConcurrentHashMap<InetAddress, PorIp> porIp = new ConcurrentHashMap<>();
+
+    /**
+     * @param config Configuración del servidor, con los límites y la acción en caso de exceso.
+     */
+    public LimiteEntrada(Configuracion config) {
+        this.config = config;
+    }
+
+    /**
+     * Crea la cuota de una nueva sesión. Hay que liberarla con {@link Cuota#liberar()} cuando la
+     * sesión se cierre.
+     *
+     * @param direccion Dirección IP desde la que se conecta el usuario.
+     * @return La cuota de la sesión.
+     */
+    public Cuota abrir(InetAddress direccion) {
+        PorIp ip = null;
+        if (direccion != null && (config.getLimiteIpMensajes() > 0 || config.getLimiteIpBytes() > 0)) {
+            // compute es atómico por dirección, así que la cuenta de sesiones no necesita más sincronización
+            ip = porIp.compute(direccion, (clave, actual) -> {
+                PorIp entrada = actual != null ? actual : new PorIp(config);
+                entrada.sesiones++;
+                return entrada;
+            });
+        }
+        return new Cuota(direccion, ip);
+    }
+
+    /**
+     * Cubo de fichas con el algoritmo GCRA. Cada unidad (una trama o un byte) adelanta un
+     * intervalo el instante teórico en que el cubo quedaría lleno; una trama cabe si ese instante
+     * no se aleja del actual más que la capacidad del cubo.
+     */
+    static final class Cubo {
+
+        // Nanosegundos que tarda en reponerse una unidad y capacidad del cubo en nanosegundos
+        private final long intervalo;
+        private final long capacidad;
+
+        // Instante (System.nanoTime) en que el cubo quedaría lleno si no llegara nada más
+        private final AtomicLong lleno;
+
+        /**
+         * @param porSegundo Unidades que se reponen por segundo.
+         * @param rafaga Unidades que caben en el cubo, es decir, que se admiten seguidas.
+         */
+        Cubo(long porSegundo, long rafaga) {
+            this.intervalo = Math.max(1, NANOS_POR_SEGUNDO / porSegundo);
+            this.capacidad = rafaga * intervalo;
+            this.lleno = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Saca del cubo las fichas de una trama.
+         *
+         * @param cantidad Unidades que ocupa la trama.
+         * @param ahora Instante actual (System.nanoTime).
+         * @param forzar true si se sacan aunque no haya bastantes, quedando el cubo en deuda.
+         * @return 0 si había fichas suficientes; si no, los nanosegundos que faltan para que las
+         *         haya (con forzar a false, el cubo no cambia).
+         */
+        long sacar(long cantidad, long ahora, boolean forzar) {
+            long coste = cantidad * intervalo;
+            while (true) {
+                long actual = lleno.get();
+                long siguiente = Math.max(actual, ahora) + coste;
+                long falta = siguiente - ahora - capacidad;
+                if (falta > 0 && !forzar) {
+                    return falta;
+                }
+                if (lleno.compareAndSet(actual, siguiente)) {
+                    return Math.max(falta, 0);
+                }
+            }
+        }
+
+        /**
+         * Devuelve al cubo las fichas de una trama que al final no se admite.
+         */
+        void devolver(long cantidad) {
+            lleno.addAndGet(-cantidad * intervalo);
+        }
+    }
+
+    /**
+     * Cubos de una dirección IP y número de sesiones abiertas desde ella.
+     */
+    private static final class PorIp {
+
+        private final Cubo mensajes;
+        private final Cubo bytes;
+
+        // Solo se modifica dentro de compute, con la entrada del mapa bloqueada
+        private int sesiones;
+
+        PorIp(Configuracion config) {
+            this.mensajes = nuevoCubo(config.getLimiteIpMensajes(), config, false);
+            this.bytes = nuevoCubo(config.getLimiteIpBytes(), config, true);
+        }
+    }
+
+    /**
+     * Crea el cubo de un límite, o devuelve null si el límite está desactivado. El cubo admite una
+     * ráfaga de los segundos configurados y, si cuenta bytes, al menos una trama del tamaño máximo.
+     */
+    private static Cubo nuevoCubo(long porSegundo, Configuracion config, boolean porBytes) {
+        if (porSegundo <= 0) {
+            return null;
+        }
+        long rafaga = porSegundo * config.getRafagaS();
+        return new Cubo(porSegundo, porBytes ? Math.max(rafaga, config.getTramaMaxima()) : rafaga);
+    }
+
+    /**
+     * Límites que se aplican a una sesión: sus propios cubos y los de su dirección IP. Solo la usa
+     * el hilo que lee las tramas de la sesión.
+     */
+    public final class Cuota {
+
+        private final InetAddress direccion;
+        private final PorIp ip;
+
+        // Cubos que se aplican, en orden, y si cada uno cuenta bytes o tramas
+        private final Cubo[] cubos;
+        private final boolean[] porBytes;
+
+        // Si ya se ha avisado al usuario de que se descartan sus tramas desde la última admitida
+        private boolean avisado;
+
+        private Cuota(InetAddress direccion, PorIp ip) {
+            this.direccion = direccion;
+            this.ip = ip;
+            Cubo[] todos = {
+                nuevoCubo(config.getLimiteMensajes(), config, false),
+                nuevoCubo(config.getLimiteBytes(), config, true),
+                ip != null ? ip.mensajes : null,
+                ip != null ? ip.bytes : null
+            };
+            int activos = 0;
+            for (Cubo cubo : todos) {
+                if (cubo != null) {
+                    activos++;
+                }
+            }
+            this.cubos = new Cubo[activos];
+            this.porBytes = new boolean[activos];
+            for (int i = 0, j = 0; i < todos.length; i++) {
+                if (todos[i] != null) {
+                    cubos[j] = todos[i];
+                    porBytes[j++] = i % 2 == 1;
+                }
+            }
+        }
+
+        /**
+         * Aplica los límites a una trama recibida.
+         *
+         * @param bytes Tamaño de la trama tal como llegó, con su campo de longitud.
+         * @return 0 si la trama se puede atender ya; con la acción FRENAR, los nanosegundos que hay
+         *         que esperar antes de atenderla; con las demás, {@link #RECHAZADA} si supera algún límite.
+         */
+        public long admitir(int bytes) {
+            if (cubos.length == 0) {
+                return 0;
+            }
+            boolean forzar = config.getExceso() == Exceso.FRENAR;
+            long ahora = System.nanoTime();
+            long espera = 0;
+            for (int i = 0; i < cubos.length; i++) {
+                long falta = cubos[i].sacar(porBytes[i] ? bytes : 1, ahora, forzar);
+                if (falta > 0 && !forzar) {
+                    // Devolvemos lo que ya habíamos sacado de los cubos anteriores
+                    for (int j = 0; j < i; j++) {
+                        cubos[j].devolver(porBytes[j] ? bytes : 1);
+                    }
+                    Metricas.tramaLimitada();
+                    return RECHAZADA;
+                }
+                espera = Math.max(espera, falta);
+            }
+            if (espera > 0) {
+                Metricas.tramaLimitada();
+            } else {
+                avisado = false;
+            }
+            return espera;
+        }
+
+        /**
+         * Indica si hay que avisar al usuario de que se descartan sus tramas: solo la primera vez
+         * desde la última trama admitida, para no responder a cada trama de una ráfaga.
+         *
+         * @return true si todavía no se le ha avisado.
+         */
+        public boolean avisar() {
+            if (avisado) {
+                return false;
+            }
+            avisado = true;
+            return true;
+        }
+
+        /**
+         * @return Qué hacer con las tramas que superan algún límite.
+         */
+        public Exceso getExceso() {
+            return config.getExceso();
+        }
+
+        /**
+         * @return Tamaño máximo del cuerpo de una trama recibida, sin el campo de longitud.
+         */
+        public int getTramaMaxima() {
+            return config.getTramaMaxima();
+        }
+
+        /**
+         * Deja de contar la sesión entre las de su dirección IP. Si era la última, sus cubos se olvidan.
+         */
+        public void liberar() {
+            if (ip != null) {
+                porIp.computeIfPresent(direccion, (clave, actual) -> --actual.sesiones == 0 ? null : actual);
+            }
+        }
+    }
+}
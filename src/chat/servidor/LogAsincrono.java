@@ -0,0 +1,244 @@
+package chat.servidor;
+
+/**
+ * Log del servidor que no escribe nada desde el hilo que registra la línea. Las líneas se dejan
+ * en un búfer circular acotado y un único hilo de fondo las escribe en la consola y en el archivo
+ * de log por grupos: el archivo solo se vuelca cuando se han acumulado bastantes líneas o cuando
+ * ha pasado el intervalo configurado desde el último volcado.
+ *
+ * El archivo se rota al superar un tamaño máximo o al cumplirse el periodo de rotación: log.txt pasa
+ * a log.txt.1, log.txt.1 a log.txt.2, y así hasta el número de archivos que se conservan.
+ * Si el búfer se llena, las líneas nuevas se descartan y se deja constancia en el propio log.
+ *
+ * En el archivo cada línea empieza por el instante exacto en que se registró, en formato ISO-8601
+ * con milisegundos; en la consola se muestra tal cual.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Reloj;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LogAsincrono implements Runnable {
+
+    // Línea pendiente de escribir, instante en que se registró y si debe mostrarse también por consola
+    private record Linea(String texto, long instante, boolean eco) {
+    }
+
+    private final ArrayBlockingQueue<Linea> pendientes;
+    private final Path archivo;
+    private final int tamanoGrupo;
+    private final long intervaloNanos;
+    private final long tamanoMaximo;
+    private final long periodoRotacionMs;
+    private final int archivosConservados;
+
+    // Consola propia con búfer, que solo se vacía en cada volcado
+    private final PrintStream consola;
+
+    // Estado del archivo actual (solo lo usa el hilo escritor)
+    private final StringBuilder instante = new StringBuilder(40);
+    private final char[] caracteresInstante = new char[40];
+    private Writer escritor;
+    private long bytesEscritos;
+    private long inicioPeriodo;
+
+    // Líneas que no cupieron en el búfer
+    private final LongAdder descartadas = new LongAdder();
+
+    private final Thread hilo = new Thread(this, "log");
+    private volatile boolean cerrado;
+
+    /**
+     * Crea el log y arranca el hilo escritor.
+     *
+     * @param config Configuración del servidor (archivo, búfer, grupo, intervalo y rotación).
+     */
+    public LogAsincrono(Configuracion config) {
+        this.pendientes = new ArrayBlockingQueue<>(config.getLogBuffer());
+        this.archivo = Path.of(config.getLogArchivo());
+        this.tamanoGrupo = config.getLogGrupo();
+        this.intervaloNanos = TimeUnit.MILLISECONDS.toNanos(config.getLogIntervaloMs());
+        this.tamanoMaximo = config.getLogTamanoMaximo();
+        this.periodoRotacionMs = TimeUnit.MINUTES.toMillis(config.getLogRotacionMin());
+        this.archivosConservados = config.getLogArchivos();
+        this.consola = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 16384),
+                false, System.out.charset());
+        abrir();
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Deja una línea pendiente de escribir. Nunca bloquea: si el búfer está lleno la línea se descarta.
+     *
+     * @param texto La línea completa, ya con su marca de tiempo.
+     * @param eco true si la línea debe mostrarse también por consola.
+     */
+    public void registrar(String texto, boolean eco) {
+        if (cerrado || !pendientes.offer(new Linea(texto, Reloj.ahora(), eco))) {
+            descartadas.increment();
+        }
+    }
+
+    /**
+     * Deja de aceptar líneas, espera a que el hilo escritor escriba las pendientes y cierra el archivo.
+     */
+    public void cerrar() {
+        cerrado = true;
+        hilo.interrupt();
+        try {
+            hilo.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bucle del hilo escritor: escribe las líneas por lotes y vuelca el archivo por grupos.
+     */
+    @Override
+    public void run() {
+        List<Linea> lote = new ArrayList<>(tamanoGrupo);
+        int sinVolcar = 0;
+        long ultimoVolcado = System.nanoTime();
+        while (!cerrado || !pendientes.isEmpty()) {
+            try {
+                Linea primera = pendientes.poll(intervaloNanos, TimeUnit.NANOSECONDS);
+                if (primera != null) {
+                    lote.add(primera);
+                    pendientes.drainTo(lote, tamanoGrupo - 1);
+                }
+            } catch (InterruptedException ex) {
+                // Nos interrumpen al cerrar; el bucle escribe lo que quede y termina
+            }
+
+            for (Linea linea : lote) {
+                escribir(linea);
+            }
+            sinVolcar += lote.size();
+            lote.clear();
+            informarDescartadas();
+
+            // Volcado por grupos: por número de líneas o por tiempo transcurrido
+            long ahora = System.nanoTime();
+            if (sinVolcar >= tamanoGrupo || (sinVolcar > 0 && ahora - ultimoVolcado >= intervaloNanos)) {
+                volcar();
+                sinVolcar = 0;
+                ultimoVolcado = ahora;
+            }
+        }
+        volcar();
+        cerrarArchivo();
+    }
+
+    /**
+     * Si se han descartado líneas desde la última vez, lo deja anotado en el log.
+     */
+    private void informarDescartadas() {
+        long cantidad = descartadas.sumThenReset();
+        if (cantidad > 0) {
+            escribir(new Linea(MainServidor.conHora("Log saturado: se han descartado " + cantidad + " líneas."),
+                    Reloj.ahora(), true));
+        }
+    }
+
+    private void escribir(Linea linea) {
+        if (linea.eco()) {
+            consola.println(linea.texto());
+        }
+        if (escritor == null) {
+            return;
+        }
+        try {
+            rotarSiHaceFalta();
+            instante.setLength(0);
+            Reloj.anadirIso8601(instante, linea.instante()).append(' ');
+            // Copiamos el instante a un array reutilizado para no crear un String por línea
+            instante.getChars(0, instante.length(), caracteresInstante, 0);
+            escritor.write(caracteresInstante, 0, instante.length());
+            escritor.write(linea.texto());
+            escritor.write(System.lineSeparator());
+            // Aproximado: cuenta caracteres, que coinciden con los bytes salvo en textos no ASCII
+            bytesEscritos += instante.length() + linea.texto().length() + System.lineSeparator().length();
+        } catch (IOException ex) {
+            consola.println("Error al escribir en " + archivo + ": " + ex.getMessage());
+        }
+    }
+
+    private void volcar() {
+        consola.flush();
+        if (escritor != null) {
+            try {
+                escritor.flush();
+            } catch (IOException ex) {
+                consola.println("Error al escribir en " + archivo + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rota el archivo si supera el tamaño máximo o si ha terminado su periodo.
+     */
+    private void rotarSiHaceFalta() throws IOException {
+        boolean porTamano = bytesEscritos >= tamanoMaximo;
+        boolean porTiempo = System.currentTimeMillis() - inicioPeriodo >= periodoRotacionMs;
+        if (!porTamano && !porTiempo) {
+            return;
+        }
+        cerrarArchivo();
+        // Desplazamos los archivos antiguos: log.txt.N-1 → log.txt.N, ..., log.txt → log.txt.1
+        for (int i = archivosConservados - 1; i >= 1; i--) {
+            Path anterior = Path.of(archivo + "." + i);
+            if (Files.exists(anterior)) {
+                Files.move(anterior, Path.of(archivo + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (Files.exists(archivo)) {
+            Files.move(archivo, Path.of(archivo + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        abrir();
+    }
+
+    private void abrir() {
+        try {
+            escritor = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(archivo,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 65536);
+            bytesEscritos = Files.size(archivo);
+            inicioPeriodo = System.currentTimeMillis();
+        } catch (IOException e) {
+            // Si ocurre un error al abrir el archivo, seguimos registrando solo por consola
+            escritor = null;
+            consola.println("Error al abrir " + archivo + ": " + e.getMessage());
+            consola.flush();
+        }
+    }
+
+    private void cerrarArchivo() {
+        if (escritor != null) {
+            try {
+                escritor.close();
+            } catch (IOException ex) {
+                consola.println("Error al cerrar " + archivo + ": " + ex.getMessage());
+            }
+            escritor = null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package chat.servidor;
+
+/**
+ * Agrupa tramas pequeñas para una misma sesión, como las {@link TipoTrama#CONEXION} con las que se
+ * presenta a quien entra a los usuarios que ya estaban conectados, en unas pocas {@link TramaSalida}
+ * con varias tramas seguidas, igual que los lotes del historial. Cada lote ocupa un solo hueco de la
+ * cola de salida y, si la sesión está cifrada, se cifra como una sola trama: presentar a miles de
+ * usuarios no llena la cola de quien entra ni le obliga a descartar nada.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class LoteTramas {
+
+    // Tamaño máximo de cada lote; uno mayor se envía en varios
+    private static final int BYTES_MAXIMOS = 64 * 1024;
+
+    private final Sesion sesion;
+    private final TipoTrama tipo;
+    private final long marcaTiempo = Reloj.ahora();
+
+    // Tramas acumuladas todavía sin enviar (se reserva con la primera)
+    private ByteBuffer pendiente;
+
+    /**
+     * @param sesion Sesión a la que se envían los lotes.
+     * @param tipo Tipo de todas las tramas del lote.
+     */
+    LoteTramas(Sesion sesion, TipoTrama tipo) {
+        this.sesion = sesion;
+        this.tipo = tipo;
+    }
+
+    /**
+     * Añade al lote una trama con un texto; si el lote ya no admite más, se envía antes.
+     *
+     * @param remitente Identificador del usuario al que se refiere la trama.
+     * @param texto Carga de la trama, como el nombre del usuario.
+     */
+    void anadir(long remitente, String texto) {
+        byte[] carga = texto.getBytes(StandardCharsets.UTF_8);
+        int longitud = Protocolo.longitudTrama(remitente, 0, marcaTiempo, carga.length);
+        if (pendiente == null) {
+            pendiente = ByteBuffer.allocate(Math.max(BYTES_MAXIMOS, longitud));
+        } else if (pendiente.remaining() < longitud) {
+            enviar();
+        }
+        Protocolo.escribir(pendiente, tipo, remitente, 0, marcaTiempo, carga);
+    }
+
+    /**
+     * Envía a la sesión lo que quede en el lote, en un buffer directo del tamaño justo.
+     */
+    void enviar() {
+        if (pendiente == null || pendiente.position() == 0) {
+            return;
+        }
+        pendiente.flip();
+        ByteBuffer contenido = ByteBuffer.allocateDirect(pendiente.remaining()).put(pendiente).flip();
+        pendiente.clear();
+        sesion.enviar(new TramaSalida(contenido));
+    }
+}
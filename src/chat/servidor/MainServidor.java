@@ -3,119 +3,118 @@ package chat.servidor;
 /**
  * Clase principal del servidor que maneja las conexiones de los usuarios,
  * registra logs de actividad y controla la cantidad de conexiones activas.
- * El servidor se ejecuta en el puerto 5050 y permite un máximo de 5 conexiones simultáneas.
+ * Por defecto el servidor se ejecuta en el puerto 5050 con el servidor NIO y permite un máximo
+ * de 5 conexiones simultáneas; con la opción "--bloqueante" se usa el servidor clásico de un hilo
+ * por usuario (ver {@link Configuracion}). En ambos casos un {@link ControlAdmision} decide qué
+ * conexiones se atienden, cuáles esperan y cuáles se rechazan.
+ * Todo lo que se registra pasa por un {@link LogAsincrono}, que escribe en la consola y en el
+ * archivo de log desde su propio hilo para no frenar a quien atiende a los usuarios.
+ * Al parar el proceso (Ctrl+C o una señal de terminación) el servidor se apaga ordenadamente:
+ * deja de aceptar conexiones, avisa a los usuarios, les envía lo pendiente y vuelca el log.
  * 
  * @author sdacatrinei
  */
 
-import chat.usuario.ControladorUsuario;
-import java.io.FileWriter;
+import chat.util.Reloj;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.lang.reflect.Field;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
 
 public class MainServidor {
 
-    // Puerto en el que el servidor escuchará las conexiones entrantes
-    private static final int PUERTO = 5050;
+    // Aviso que reciben los usuarios que tienen que esperar a que se libere un hueco
+    static final String AVISO_EN_COLA = "Servidor lleno, estás en la cola de espera.";
 
-    // Límite de conexiones simultáneas permitidas
-    private static final int LIMITE_CONEXIONES = 5;
+    // Aviso que reciben los usuarios que no se pueden atender
+    static final String AVISO_RECHAZO = "Servidor lleno, inténtalo más tarde.";
 
-    // Lista que almacena los usuarios conectados al servidor
-    private static List<ControladorUsuario> usuariosConectados = new ArrayList<>();
+    // Aviso que reciben los usuarios que saludan sin cifrar cuando el cifrado es obligatorio
+    public static final String AVISO_SIN_CIFRAR = "Este servidor solo admite conexiones cifradas.";
 
-    // Writer para registrar logs en un archivo
-    private static PrintWriter logWriter;
+    // Aviso que reciben los usuarios cuyas tramas se descartan por enviar demasiado deprisa
+    public static final String AVISO_LIMITE = "Estás enviando demasiado deprisa; tus mensajes se descartan hasta que bajes el ritmo.";
+
+    // Aviso que reciben los usuarios cuando el servidor se apaga
+    static final String AVISO_CIERRE = "El servidor se está apagando.";
+
+    // Log asíncrono con el que se registra todo en la consola y en el archivo de log
+    private static volatile LogAsincrono registro;
+
+    // Si es false los mensajes del chat solo se escriben en el archivo de log
+    private static volatile boolean ecoMensajes = true;
 
     public static void main(String[] args) {
         // Reemplazamos System.out con un PrintStream personalizado que añade una marca de tiempo a los mensajes
         System.setOut(new CustomPrintStream(System.out));
 
         try {
-            // Intentamos abrir el archivo de log para escritura
-            logWriter = new PrintWriter(new FileWriter("log.txt", true));
-        } catch (IOException e) {
-            // Si ocurre un error al abrir el archivo, lo mostramos por consola
-            System.out.println("Error al abrir log.txt: " + e.getMessage());
-        }
-
-        try (ServerSocket serverSocket = new ServerSocket(PUERTO)) {
-            // Imprime un mensaje indicando que el servidor está en ejecución
-            log("Servidor iniciado en el puerto " + PUERTO);
-
-            // Bucle principal que mantiene al servidor en ejecución esperando conexiones
-            while (true) {
-                // Si se ha alcanzado el límite de conexiones, no se aceptan más clientes
-                if (usuariosConectados.size() >= LIMITE_CONEXIONES) {
-                    log("Límite de conexiones alcanzado. No se puede aceptar más clientes.");
-                    continue;
-                }
-
-                // Esperamos a que un cliente se conecte
-                Socket socketCliente = serverSocket.accept();
-                log("Nuevo usuario conectado: " + socketCliente.getInetAddress());
-
-                // Creamos un nuevo manejador para el usuario que se conecta
-                ControladorUsuario manejador = new ControladorUsuario(socketCliente, usuariosConectados);
-                usuariosConectados.add(manejador); // Agregamos el manejador a la lista de usuarios conectados
-                manejador.start(); // Iniciamos el hilo que manejará la comunicación con este usuario
-
-                // Iniciamos un hilo que espera a que el manejador termine para registrar la desconexión del usuario
-                new Thread(() -> {
-                    try {
-                        // Esperamos a que el manejador termine su ejecución
-                        manejador.join();
-
-                        // Usamos reflexión para obtener el nombre del usuario (campo privado en ControladorUsuario)
-                        String nombre = "";
-                        try {
-                            Field field = ControladorUsuario.class.getDeclaredField("nombreUsuario");
-                            field.setAccessible(true); // Permitimos el acceso a un campo privado
-                            nombre = (String) field.get(manejador); // Obtenemos el nombre del usuario
-                        } catch (Exception e) {
-                            nombre = "Desconocido"; // En caso de error, usamos un nombre por defecto
-                        }
-                        // Registramos la desconexión del usuario
-                        log("Usuario " + nombre + " se ha desconectado.");
-                    } catch (InterruptedException e) {
-                        // Si se interrumpe el hilo, lo ignoramos
-                    }
-                }).start(); // Iniciamos el hilo de registro de desconexión
-            }
+            Configuracion config = Configuracion.desdeArgumentos(args);
+
+            registro = new LogAsincrono(config);
+            ecoMensajes = config.isEcoMensajes();
+            Servidor servidor = config.isBloqueante() ? new ServidorBloqueante(config) : new ServidorNIO(config);
+
+            // Al parar con Ctrl+C apagamos el servidor ordenadamente y después escribimos lo
+            // pendiente del log, en el mismo hilo para que el log recoja todo el cierre
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                servidor.detener();
+                cerrarLog();
+            }, "cierre"));
+            servidor.iniciar();
+        } catch (IllegalArgumentException ex) {
+            // Si alguna opción de arranque no es válida, lo registramos y no arrancamos
+            log("Opciones de arranque no válidas: " + ex.getMessage());
         } catch (IOException ex) {
             // Si ocurre un error al intentar iniciar el servidor, lo registramos
             log("Error al iniciar el servidor: " + ex.getMessage());
         } finally {
-            // Al finalizar, cerramos el escritor del log si es que fue creado correctamente
-            if (logWriter != null) {
-                logWriter.close();
-            }
+            // Al finalizar, escribimos lo pendiente y cerramos el log si es que fue creado
+            cerrarLog();
+        }
+    }
+
+    private static void cerrarLog() {
+        LogAsincrono log = registro;
+        if (log != null) {
+            log.cerrar();
         }
     }
 
+    /**
+     * Añade la hora actual al principio de un texto, con el mismo formato que los mensajes del chat.
+     * @param texto El texto al que se le añade la hora.
+     * @return El texto con la marca de tiempo.
+     */
+    static String conHora(String texto) {
+        return Reloj.conHora(texto);
+    }
+
     /**
      * Método que registra un mensaje con una marca de tiempo en la consola y en el archivo de log.
      * @param mensaje El mensaje que se desea registrar.
      */
-    private static void log(String mensaje) {
-        // Creamos un formato de hora para la marca de tiempo
-        String timestamp = new SimpleDateFormat("HH:mm").format(new Date());
-        // Componemos el mensaje con la marca de tiempo
-        String logMessage = "[" + timestamp + "] " + mensaje;
-        // Imprimimos el mensaje en la consola
-        System.out.println(logMessage);
-        // También lo escribimos en el archivo de log
-        if (logWriter != null) {
-            logWriter.println(logMessage);
-            logWriter.flush(); // Nos aseguramos de que el mensaje se grabe inmediatamente
+    static void log(String mensaje) {
+        // Componemos el mensaje con la marca de tiempo y lo dejamos pendiente de escribir
+        registrar(conHora(mensaje), true);
+    }
+
+    /**
+     * Registra una línea de la conversación del chat. Se muestra también por consola salvo que el
+     * servidor se haya arrancado con "--sin-eco-mensajes".
+     * @param linea La línea completa, ya con su marca de tiempo.
+     */
+    public static void registrarMensaje(String linea) {
+        registrar(linea, ecoMensajes);
+    }
+
+    private static void registrar(String linea, boolean eco) {
+        LogAsincrono log = registro;
+        if (log != null) {
+            log.registrar(linea, eco);
+        } else if (System.out instanceof CustomPrintStream consola) {
+            // Aún no hay log (por ejemplo, si las opciones no son válidas): solo por consola
+            consola.imprimir(linea);
+        } else {
+            System.out.println(linea);
         }
     }
 
@@ -132,16 +131,17 @@ public class MainServidor {
             // Si el mensaje no comienza con una marca de tiempo, le añadimos la hora
             String modified = s;
             if (!s.startsWith("[")) {
-                String timestamp = new SimpleDateFormat("HH:mm").format(new Date());
-                modified = "[" + timestamp + "] " + s;
-            }
-            // Imprimimos el mensaje modificado en la consola
-            super.println(modified);
-            // También lo registramos en el archivo de log
-            if (logWriter != null) {
-                logWriter.println(modified);
-                logWriter.flush(); // Nos aseguramos de que se grabe inmediatamente
+                modified = conHora(s);
             }
+            // Lo dejamos pendiente en el log, que lo escribe en la consola y en el archivo
+            registrar(modified, true);
+        }
+
+        /**
+         * Imprime directamente en la consola, sin pasar por el log.
+         */
+        void imprimir(String s) {
+            super.println(s);
         }
     }
 }
\ No newline at end of file
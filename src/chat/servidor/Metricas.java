@@ -0,0 +1,369 @@
+package chat.servidor;
+
+/**
+ * Métricas del servidor: sesiones activas, conexiones aceptadas y rechazadas, tramas y bytes
+ * recibidos y enviados, tramas descartadas, tramas que superan los límites de envío, tramas pendientes en las colas de salida y latencia de
+ * entrega de los mensajes, desde que se reciben hasta que se escriben al último destinatario.
+ *
+ * Los contadores son estáticos y repartidos ({@link LongAdder}), para que los reactores y los hilos
+ * de las sesiones los incrementen sin competir entre sí: registrar una trama cuesta unos pocos
+ * nanosegundos. La latencia se guarda en un {@link Histograma}, una vez por mensaje. Las sesiones
+ * activas, las conexiones y las colas de salida se leen del {@link ControlAdmision} y del
+ * {@link RegistroSesiones} del servidor solo al consultar las métricas.
+ *
+ * Las métricas se publican por JMX como "chat.servidor:type=Metricas" y, si se indica un puerto, en
+ * texto plano en ese puerto de la interfaz local, con el formato de exposición de Prometheus:
+ * {@code curl http://localhost:9090/metricas}.
+ *
+ * @author sdacatrinei
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public final class Metricas implements MetricasMBean {
+
+    // Tiempo máximo que se espera a que el cliente termine de enviar su petición
+    private static final int ESPERA_PETICION_MS = 2000;
+
+    private static final LongAdder tramasRecibidas = new LongAdder();
+    private static final LongAdder bytesRecibidos = new LongAdder();
+    private static final LongAdder tramasEnviadas = new LongAdder();
+    private static final LongAdder bytesEnviados = new LongAdder();
+    private static final LongAdder mensajesRecibidos = new LongAdder();
+    private static final LongAdder tramasDescartadas = new LongAdder();
+    private static final LongAdder tramasLimitadas = new LongAdder();
+    private static final LongAdder tramasComprimidas = new LongAdder();
+    private static final LongAdder bytesAhorrados = new LongAdder();
+
+    // Nanosegundos desde que llega un mensaje hasta que se escribe (o descarta) para su último destinatario
+    private static final Histograma latenciaEntrega = new Histograma();
+
+    private final ControlAdmision<?> admision;
+    private final RegistroSesiones<?> sesiones;
+
+    /**
+     * @param admision Control de admisión del servidor, con los contadores de conexiones.
+     * @param sesiones Sesiones conectadas, para contar las activas y recorrer sus colas de salida.
+     */
+    public Metricas(ControlAdmision<?> admision, RegistroSesiones<?> sesiones) {
+        this.admision = admision;
+        this.sesiones = sesiones;
+    }
+
+    /**
+     * Anota una trama recibida de un usuario.
+     */
+    public static void tramaRecibida() {
+        tramasRecibidas.increment();
+    }
+
+    /**
+     * Anota los bytes leídos del socket de un usuario.
+     *
+     * @param bytes Bytes leídos, cifrados o no.
+     */
+    public static void bytesRecibidos(long bytes) {
+        bytesRecibidos.add(bytes);
+    }
+
+    /**
+     * Anota un mensaje de chat (de sala o privado) recibido de un usuario.
+     */
+    public static void mensajeRecibido() {
+        mensajesRecibidos.increment();
+    }
+
+    /**
+     * Anota los bytes escritos en el socket de un usuario.
+     *
+     * @param bytes Bytes escritos, cifrados o no.
+     */
+    public static void bytesEnviados(long bytes) {
+        bytesEnviados.add(bytes);
+    }
+
+    /**
+     * Anota una trama escrita entera para un destinatario.
+     */
+    static void tramaEnviada() {
+        tramasEnviadas.increment();
+    }
+
+    /**
+     * Anota una trama que no llegó a escribirse para un destinatario porque su cola estaba llena o cerrada.
+     */
+    static void tramaDescartada() {
+        tramasDescartadas.increment();
+    }
+
+    /**
+     * Anota una trama recibida que supera los límites de envío de su sesión o de su IP.
+     */
+    static void tramaLimitada() {
+        tramasLimitadas.increment();
+    }
+
+    /**
+     * Anota una trama comprimida para los destinatarios que admiten compresión (una vez, aunque se
+     * envíe a muchos).
+     */
+    static void tramaComprimida() {
+        tramasComprimidas.increment();
+    }
+
+    /**
+     * Anota los bytes que se han dejado de escribir al enviar a un destinatario una trama comprimida.
+     *
+     * @param bytes Diferencia entre la trama sin comprimir y la comprimida.
+     */
+    static void bytesAhorrados(long bytes) {
+        bytesAhorrados.add(bytes);
+    }
+
+    /**
+     * Anota la latencia de entrega de un mensaje.
+     *
+     * @param nanos Nanosegundos desde que se recibió hasta que se escribió al último destinatario.
+     */
+    static void entrega(long nanos) {
+        latenciaEntrega.registrar(nanos);
+    }
+
+    /**
+     * Registra las métricas en JMX y, si el puerto no es 0, atiende las peticiones de métricas en
+     * texto plano en ese puerto de la interfaz local, en un hilo propio.
+     *
+     * @param puerto Puerto del punto de consulta en texto plano, o 0 para no abrirlo.
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public void publicar(int puerto) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat.servidor:type=Metricas"));
+        } catch (JMException ex) {
+            MainServidor.log("No se pueden publicar las métricas por JMX: " + ex.getMessage());
+        }
+        if (puerto == 0) {
+            return;
+        }
+        ServerSocket servidor = new ServerSocket(puerto, 16, InetAddress.getLoopbackAddress());
+        Thread hilo = new Thread(() -> atender(servidor), "metricas");
+        hilo.setDaemon(true);
+        hilo.start();
+        MainServidor.log("Métricas en http://localhost:" + puerto + "/metricas");
+    }
+
+    /**
+     * Responde a cada conexión con las métricas y la cierra. Sirve tanto a clientes HTTP
+     * (Prometheus, curl) como a una conexión sin petición (nc).
+     */
+    private void atender(ServerSocket servidor) {
+        while (true) {
+            try (Socket cliente = servidor.accept()) {
+                cliente.setSoTimeout(ESPERA_PETICION_MS);
+                leerPeticion(cliente);
+                byte[] cuerpo = texto().getBytes(StandardCharsets.UTF_8);
+                OutputStream salida = cliente.getOutputStream();
+                salida.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                        + "Content-Length: " + cuerpo.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                salida.write(cuerpo);
+            } catch (IOException ex) {
+                // El cliente se ha ido antes de recibir la respuesta; atendemos al siguiente
+            }
+        }
+    }
+
+    /**
+     * Lee las cabeceras de la petición hasta la línea vacía, para no cerrar la conexión con datos
+     * sin leer. Si no llega nada en el tiempo de espera, se responde igualmente.
+     */
+    private static void leerPeticion(Socket cliente) throws IOException {
+        BufferedReader entrada = new BufferedReader(new InputStreamReader(cliente.getInputStream(), StandardCharsets.US_ASCII));
+        try {
+            String linea;
+            while ((linea = entrada.readLine()) != null && !linea.isEmpty()) {
+                // Solo hay una respuesta posible; la petición no se interpreta
+            }
+        } catch (SocketTimeoutException ex) {
+            // Sin petición completa: respondemos con lo que hay
+        }
+    }
+
+    /**
+     * Devuelve todas las métricas en el formato de exposición de texto de Prometheus.
+     *
+     * @return Una línea por métrica.
+     */
+    public String texto() {
+        StringBuilder texto = new StringBuilder(2048);
+        valor(texto, "chat_sesiones_activas", "gauge", "Sesiones conectadas, hayan saludado o no.", getSesionesActivas());
+        valor(texto, "chat_conexiones_en_cola", "gauge", "Conexiones esperando a que se libere un hueco.", getConexionesEnCola());
+        valor(texto, "chat_conexiones_aceptadas_total", "counter", "Conexiones admitidas.", getConexionesAceptadas());
+        valor(texto, "chat_conexiones_rechazadas_total", "counter", "Conexiones rechazadas, incluidas las caducadas.", getConexionesRechazadas());
+        valor(texto, "chat_conexiones_caducadas_total", "counter", "Conexiones rechazadas tras esperar demasiado en la cola.", getConexionesCaducadas());
+        valor(texto, "chat_tramas_recibidas_total", "counter", "Tramas recibidas de los usuarios.", getTramasRecibidas());
+        valor(texto, "chat_bytes_recibidos_total", "counter", "Bytes de las tramas recibidas.", getBytesRecibidos());
+        valor(texto, "chat_tramas_limitadas_total", "counter", "Tramas recibidas que superan los límites de envío (frenadas, descartadas o motivo de desconexión).", getTramasLimitadas());
+        valor(texto, "chat_mensajes_recibidos_total", "counter", "Mensajes de chat (de sala o privados) recibidos.", getMensajesRecibidos());
+        valor(texto, "chat_tramas_enviadas_total", "counter", "Tramas escritas, una por destinatario.", getTramasEnviadas());
+        valor(texto, "chat_bytes_enviados_total", "counter", "Bytes escritos en los sockets de los usuarios.", getBytesEnviados());
+        valor(texto, "chat_tramas_comprimidas_total", "counter", "Tramas comprimidas, una por mensaje o lote del historial aunque se envíen a muchos.", getTramasComprimidas());
+        valor(texto, "chat_bytes_ahorrados_total", "counter", "Bytes que no se escribieron gracias a la compresión, sumados por destinatario.", getBytesAhorrados());
+        valor(texto, "chat_tramas_descartadas_total", "counter", "Tramas que no se escribieron por tener la cola de salida llena o cerrada.", getTramasDescartadas());
+
+        // Un solo recorrido de las sesiones para las dos métricas de las colas
+        long pendientes = 0;
+        int maxima = 0;
+        for (Sesion sesion : sesiones) {
+            int profundidad = sesion.getColaSalida().getProfundidad();
+            pendientes += profundidad;
+            maxima = Math.max(maxima, profundidad);
+        }
+        valor(texto, "chat_cola_salida_pendientes", "gauge", "Tramas pendientes en todas las colas de salida.", pendientes);
+        valor(texto, "chat_cola_salida_maxima", "gauge", "Tramas pendientes en la cola de salida más llena.", maxima);
+
+        texto.append("# HELP chat_latencia_entrega_segundos Desde que llega un mensaje hasta que se escribe al último destinatario.\n")
+                .append("# TYPE chat_latencia_entrega_segundos summary\n");
+        for (String cuantil : new String[] {"0.5", "0.99", "0.999", "1"}) {
+            long nanos = cuantil.equals("1") ? latenciaEntrega.maximo() : latenciaEntrega.percentil(Double.parseDouble(cuantil) * 100);
+            texto.append("chat_latencia_entrega_segundos{quantile=\"").append(cuantil).append("\"} ").append(nanos / 1e9).append('\n');
+        }
+        texto.append("chat_latencia_entrega_segundos_count ").append(latenciaEntrega.total()).append('\n');
+        return texto.toString();
+    }
+
+    private static void valor(StringBuilder texto, String nombre, String tipo, String ayuda, long valor) {
+        texto.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n')
+                .append("# TYPE ").append(nombre).append(' ').append(tipo).append('\n')
+                .append(nombre).append(' ').append(valor).append('\n');
+    }
+
+    @Override
+    public int getSesionesActivas() {
+        return sesiones.tamano();
+    }
+
+    @Override
+    public int getConexionesEnCola() {
+        return admision.getEnCola();
+    }
+
+    @Override
+    public long getConexionesAceptadas() {
+        return admision.getAceptadas();
+    }
+
+    @Override
+    public long getConexionesRechazadas() {
+        return admision.getRechazadas();
+    }
+
+    @Override
+    public long getConexionesCaducadas() {
+        return admision.getCaducadas();
+    }
+
+    @Override
+    public long getTramasRecibidas() {
+        return tramasRecibidas.sum();
+    }
+
+    @Override
+    public long getBytesRecibidos() {
+        return bytesRecibidos.sum();
+    }
+
+    @Override
+    public long getTramasLimitadas() {
+        return tramasLimitadas.sum();
+    }
+
+    @Override
+    public long getTramasEnviadas() {
+        return tramasEnviadas.sum();
+    }
+
+    @Override
+    public long getBytesEnviados() {
+        return bytesEnviados.sum();
+    }
+
+    @Override
+    public long getMensajesRecibidos() {
+        return mensajesRecibidos.sum();
+    }
+
+    @Override
+    public long getTramasComprimidas() {
+        return tramasComprimidas.sum();
+    }
+
+    @Override
+    public long getBytesAhorrados() {
+        return bytesAhorrados.sum();
+    }
+
+    @Override
+    public long getTramasDescartadas() {
+        return tramasDescartadas.sum();
+    }
+
+    @Override
+    public long getColaSalidaPendientes() {
+        long pendientes = 0;
+        for (Sesion sesion : sesiones) {
+            pendientes += sesion.getColaSalida().getProfundidad();
+        }
+        return pendientes;
+    }
+
+    @Override
+    public int getColaSalidaMaxima() {
+        int maxima = 0;
+        for (Sesion sesion : sesiones) {
+            maxima = Math.max(maxima, sesion.getColaSalida().getProfundidad());
+        }
+        return maxima;
+    }
+
+    @Override
+    public long getLatenciaEntregaP50Micros() {
+        return latenciaEntrega.percentil(50) / 1000;
+    }
+
+    @Override
+    public long getLatenciaEntregaP99Micros() {
+        return latenciaEntrega.percentil(99) / 1000;
+    }
+
+    @Override
+    public long getLatenciaEntregaP999Micros() {
+        return latenciaEntrega.percentil(99.9) / 1000;
+    }
+
+    @Override
+    public long getLatenciaEntregaMaximaMicros() {
+        return latenciaEntrega.maximo() / 1000;
+    }
+
+    @Override
+    public long getMensajesMedidos() {
+        return latenciaEntrega.total();
+    }
+
+    @Override
+    public void reiniciarLatencias() {
+        latenciaEntrega.reiniciar();
+    }
+}
@@ -0,0 +1,64 @@
+package chat.servidor;
+
+/**
+ * Atributos de {@link Metricas} que se publican por JMX, por ejemplo para verlos con jconsole.
+ * Los contadores son totales desde que arrancó el servidor.
+ *
+ * @author sdacatrinei
+ */
+
+public interface MetricasMBean {
+
+    int getSesionesActivas();
+
+    int getConexionesEnCola();
+
+    long getConexionesAceptadas();
+
+    long getConexionesRechazadas();
+
+    long getConexionesCaducadas();
+
+    long getTramasRecibidas();
+
+    long getBytesRecibidos();
+
+    // Tramas recibidas que superan los límites de envío de su sesión o de su IP
+    long getTramasLimitadas();
+
+    long getTramasEnviadas();
+
+    long getBytesEnviados();
+
+    long getMensajesRecibidos();
+
+    // Tramas comprimidas (una por mensaje o lote del historial) y bytes que se han dejado de
+    // escribir gracias a ellas, sumados por destinatario
+    long getTramasComprimidas();
+
+    long getBytesAhorrados();
+
+    long getTramasDescartadas();
+
+    // Suma y máximo de las tramas pendientes en las colas de salida de las sesiones
+    long getColaSalidaPendientes();
+
+    int getColaSalidaMaxima();
+
+    // Latencia desde que llega un mensaje hasta que se escribe al último destinatario, en microsegundos
+    long getLatenciaEntregaP50Micros();
+
+    long getLatenciaEntregaP99Micros();
+
+    long getLatenciaEntregaP999Micros();
+
+    long getLatenciaEntregaMaximaMicros();
+
+    long getMensajesMedidos();
+
+    /**
+     * Empieza a medir la latencia de entrega desde cero. Los mensajes que se entreguen mientras
+     * tanto pueden contarse o no.
+     */
+    void reiniciarLatencias();
+}
@@ -0,0 +1,161 @@
+package chat.servidor;
+
+/**
+ * Bucle de eventos del servidor NIO. Cada reactor tiene su propio Selector y atiende a un
+ * subconjunto de las sesiones: lee los mensajes entrantes cuando el canal está listo y vacía
+ * las colas de salida de las sesiones que tienen mensajes pendientes. Todas las operaciones
+ * sobre los canales de sus sesiones se hacen desde el hilo del reactor. Las sesiones que superan
+ * su límite de envío dejan de leerse durante un tiempo; el reactor las reanuda cuando vence, sin
+ * más hilos ni temporizadores que la espera del propio selector.
+ *
+ * Un fallo inesperado al atender a una sesión solo cierra esa sesión: el reactor lo registra y
+ * sigue atendiendo a las demás. Si otro hilo cierra una sesión (por inactividad o al apagar)
+ * mientras el reactor la atiende, su clave queda cancelada: se da por cerrada esa sesión y se sigue
+ * con el resto de claves y escrituras pendientes.
+ *
+ * @author sdacatrinei
+ */
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+class Reactor implements Runnable {
+
+    private final Selector selector;
+
+    // Sesiones aceptadas que todavía no se han registrado en el selector
+    private final Queue<SesionNIO> pendientesRegistro = new ConcurrentLinkedQueue<>();
+
+    // Sesiones con mensajes en su cola de salida que hay que intentar escribir
+    private final Queue<SesionNIO> pendientesEscritura = new ConcurrentLinkedQueue<>();
+
+    // Sesiones que no se leen hasta su instante de reanudación, la más próxima primero (solo las usa el reactor)
+    private final PriorityQueue<SesionNIO> pausadas = new PriorityQueue<>(
+            Comparator.comparingLong(SesionNIO::getReanudarEn));
+
+    Reactor() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Encarga al reactor una nueva sesión. Se puede llamar desde cualquier hilo.
+     */
+    void registrar(SesionNIO sesion) {
+        pendientesRegistro.add(sesion);
+        selector.wakeup();
+    }
+
+    /**
+     * Avisa al reactor de que la sesión tiene mensajes pendientes de escribir.
+     * Se puede llamar desde cualquier hilo.
+     */
+    void solicitarEscritura(SesionNIO sesion) {
+        pendientesEscritura.add(sesion);
+        selector.wakeup();
+    }
+
+    /**
+     * Deja de leer una sesión hasta su instante de reanudación. Solo se llama desde el hilo del reactor.
+     */
+    void pausar(SesionNIO sesion) {
+        pausadas.add(sesion);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(esperaPausas());
+                procesarPausas();
+                procesarRegistros();
+                procesarEscrituras();
+
+                // Atendemos los canales que están listos para leer o escribir
+                Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+                while (claves.hasNext()) {
+                    SelectionKey clave = claves.next();
+                    claves.remove();
+                    SesionNIO sesion = (SesionNIO) clave.attachment();
+                    try {
+                        if (clave.isValid() && clave.isReadable()) {
+                            sesion.leer();
+                        }
+                        if (clave.isValid() && clave.isWritable()) {
+                            sesion.escribir();
+                        }
+                    } catch (CancelledKeyException ex) {
+                        sesion.claveCancelada();
+                    } catch (RuntimeException ex) {
+                        sesion.cerrarPorFallo(ex);
+                    }
+                }
+            } catch (IOException ex) {
+                // Un error del selector no debe detener al reactor; lo registramos y seguimos
+                MainServidor.log("Error en el reactor: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Milisegundos hasta que haya que reanudar la primera sesión pausada, o 0 (sin límite)
+     *         si no hay ninguna.
+     */
+    private long esperaPausas() {
+        SesionNIO primera = pausadas.peek();
+        if (primera == null) {
+            return 0;
+        }
+        long nanos = primera.getReanudarEn() - System.nanoTime();
+        // select(0) esperaría indefinidamente, así que como poco se espera un milisegundo
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    private void procesarPausas() {
+        long ahora = System.nanoTime();
+        SesionNIO sesion;
+        while ((sesion = pausadas.peek()) != null && sesion.getReanudarEn() - ahora <= 0) {
+            pausadas.poll();
+            try {
+                sesion.reanudar();
+            } catch (CancelledKeyException ex) {
+                sesion.claveCancelada();
+            } catch (RuntimeException ex) {
+                sesion.cerrarPorFallo(ex);
+            }
+        }
+    }
+
+    private void procesarRegistros() {
+        SesionNIO sesion;
+        while ((sesion = pendientesRegistro.poll()) != null) {
+            try {
+                sesion.registrar(selector);
+            } catch (CancelledKeyException ex) {
+                sesion.claveCancelada();
+            } catch (RuntimeException ex) {
+                sesion.cerrarPorFallo(ex);
+            }
+        }
+    }
+
+    private void procesarEscrituras() {
+        SesionNIO sesion;
+        while ((sesion = pendientesEscritura.poll()) != null) {
+            try {
+                sesion.escribir();
+            } catch (CancelledKeyException ex) {
+                sesion.claveCancelada();
+            } catch (RuntimeException ex) {
+                sesion.cerrarPorFallo(ex);
+            }
+        }
+    }
+}
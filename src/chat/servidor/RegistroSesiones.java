@@ -0,0 +1,325 @@
+package chat.servidor;
+
+/**
+ * Registro de las sesiones conectadas al servidor. Sustituye a la lista compartida de usuarios:
+ * altas y bajas se hacen en tiempo constante desde cualquier hilo, y recorrer las sesiones para
+ * reenviar un mensaje no copia el registro ni falla aunque otros usuarios entren o salgan mientras
+ * tanto (el recorrido ve las sesiones que había al empezar, y puede ver o no las que cambian durante
+ * el mismo). Además asigna los identificadores de sesión y anuncia las entradas y salidas de
+ * usuarios al resto.
+ *
+ * Cada nombre de usuario lo puede usar una sola sesión a la vez, sin distinguir mayúsculas: el
+ * nombre se reserva de forma atómica en un índice concurrente al saludar, y el mismo índice permite
+ * encontrar la sesión de un usuario por su nombre, y entregarle un mensaje privado, en tiempo
+ * constante sin importar cuántos usuarios haya conectados.
+ *
+ * Si el servidor forma parte de un {@link Cluster}, los identificadores llevan delante el número
+ * del nodo, para que no coincidan con los de los demás nodos; los nombres tampoco pueden coincidir
+ * con los de los usuarios de otros nodos, las entradas y salidas se anuncian también a ellos y los
+ * mensajes privados para un usuario de otro nodo se le envían a ese nodo.
+ *
+ * @author sdacatrinei
+ * @param <S> Tipo de sesión que guarda el registro.
+ */
+
+import chat.util.TipoTrama;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RegistroSesiones<S extends Sesion> implements Iterable<S> {
+
+    // Longitud máxima del nombre de un usuario
+    public static final int LONGITUD_MAXIMA_NOMBRE = 32;
+
+    // Número máximo de un nodo del cluster
+    public static final int NODO_MAXIMO = 1023;
+
+    // Bits del identificador de sesión que se numeran dentro de cada nodo; los de encima son el nodo
+    private static final int BITS_SESION = 40;
+
+    // Cada cuánto se comprueba al apagar si ya se ha enviado lo pendiente
+    private static final long ESPERA_VACIADO_MS = 10;
+
+    // Clave de las sesiones que todavía no han reservado un nombre (ningún nombre válido está vacío)
+    private static final String SIN_NOMBRE = "";
+
+    // Todas las sesiones, tengan o no nombre de usuario todavía, con la clave de su nombre en el índice
+    private final ConcurrentHashMap<S, String> sesiones = new ConcurrentHashMap<>();
+
+    // Índice de las sesiones por nombre de usuario en minúsculas
+    private final ConcurrentHashMap<String, S> porNombre = new ConcurrentHashMap<>();
+
+    // Último identificador de sesión asignado (el 0 se reserva para el servidor)
+    private final AtomicLong ultimoId;
+
+    // Cluster del que forma parte el servidor, o null si funciona solo
+    private volatile Cluster cluster;
+
+    // true mientras se despide a todas las sesiones al apagar el servidor
+    private volatile boolean despidiendo;
+
+    /**
+     * Crea el registro de un servidor que no forma parte de ningún cluster.
+     */
+    public RegistroSesiones() {
+        this(0);
+    }
+
+    /**
+     * @param nodo Número del servidor dentro del cluster (0 si no forma parte de ninguno).
+     */
+    public RegistroSesiones(int nodo) {
+        this.ultimoId = new AtomicLong((long) nodo << BITS_SESION);
+    }
+
+    /**
+     * Conecta el registro al cluster del servidor. Se llama al crear el cluster.
+     */
+    void unirCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @return Un identificador de sesión nuevo, distinto de todos los asignados antes.
+     */
+    public long nuevoId() {
+        return ultimoId.incrementAndGet();
+    }
+
+    /**
+     * Añade una sesión recién aceptada.
+     *
+     * @param sesion La sesión que se agrega.
+     */
+    public void agregar(S sesion) {
+        sesiones.put(sesion, SIN_NOMBRE);
+    }
+
+    /**
+     * Reserva para la sesión el nombre que ha enviado su usuario, para poder buscarla por él.
+     * Quien llama asigna después el nombre a la sesión; hasta entonces no recibe lo que se difunde.
+     *
+     * @param sesion La sesión del usuario, que todavía no tiene nombre.
+     * @param nombre El nombre del usuario.
+     * @return null si se ha reservado, o el aviso que explica al usuario por qué no.
+     */
+    public String reservarNombre(S sesion, String nombre) {
+        if (!esNombreValido(nombre)) {
+            return "Nombre no válido: usa hasta " + LONGITUD_MAXIMA_NOMBRE + " caracteres sin espacios.";
+        }
+        String clave = clave(nombre);
+        // Si dos nodos reservan el mismo nombre a la vez, ninguno se entera hasta que le llega la entrada del otro
+        Cluster unido = cluster;
+        if (unido != null && unido.nombreEnUso(clave)) {
+            return "El nombre " + nombre + " ya está en uso; elige otro.";
+        }
+        if (porNombre.putIfAbsent(clave, sesion) != null) {
+            return "El nombre " + nombre + " ya está en uso; elige otro.";
+        }
+        // Si la sesión se ha eliminado mientras tanto, deshacemos la reserva para no dejar el nombre ocupado
+        if (!sesiones.replace(sesion, SIN_NOMBRE, clave)) {
+            porNombre.remove(clave, sesion);
+            return "La conexión se ha cerrado.";
+        }
+        return null;
+    }
+
+    /**
+     * Comprueba que un nombre de usuario no esté vacío, no sea demasiado largo y no tenga espacios
+     * ni caracteres de control, para que se pueda escribir como destinatario de un mensaje privado.
+     */
+    static boolean esNombreValido(String nombre) {
+        if (nombre.isEmpty() || nombre.length() > LONGITUD_MAXIMA_NOMBRE) {
+            return false;
+        }
+        for (int i = 0; i < nombre.length(); i++) {
+            char c = nombre.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String clave(String nombre) {
+        return nombre.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Elimina una sesión del registro y libera su nombre.
+     *
+     * @param sesion La sesión que se elimina.
+     * @return true si la sesión estaba registrada.
+     */
+    public boolean eliminar(S sesion) {
+        String clave = sesiones.remove(sesion);
+        if (clave == null) {
+            return false;
+        }
+        if (!clave.equals(SIN_NOMBRE)) {
+            // Solo quitamos la entrada si sigue apuntando a esta sesión
+            porNombre.remove(clave, sesion);
+        }
+        return true;
+    }
+
+    /**
+     * Busca la sesión de un usuario por su nombre, sin distinguir mayúsculas.
+     *
+     * @param nombre El nombre del usuario.
+     * @return La sesión, o null si no hay ningún usuario conectado con ese nombre.
+     */
+    public S buscar(String nombre) {
+        return porNombre.get(clave(nombre));
+    }
+
+    /**
+     * Entrega un mensaje privado al usuario con ese nombre. Solo se encola en la sesión del
+     * destinatario: no se recorre ni se toca ninguna otra. Si el destinatario está en otro nodo del
+     * cluster, el mensaje se envía solo a ese nodo.
+     *
+     * @param emisor Sesión que envía el mensaje.
+     * @param destinatario Nombre del destinatario.
+     * @param texto Texto del mensaje.
+     * @return false si no hay ningún usuario conectado con ese nombre.
+     */
+    public boolean enviarPrivado(Sesion emisor, String destinatario, String texto) {
+        S sesion = buscar(destinatario);
+        // Una sesión que acaba de reservar su nombre todavía no ha recibido la bienvenida
+        if (sesion == null || sesion.getNombreUsuario() == null) {
+            Cluster unido = cluster;
+            return unido != null && unido.enviarPrivado(emisor.getId(), destinatario, texto);
+        }
+        entregarPrivado(sesion, emisor.getId(), texto);
+        return true;
+    }
+
+    /**
+     * Encola un mensaje privado en la sesión del destinatario.
+     *
+     * @param sesion Sesión del destinatario.
+     * @param remitente Identificador de quien lo envía, de este nodo o de otro.
+     * @param texto Texto del mensaje.
+     */
+    static void entregarPrivado(Sesion sesion, long remitente, String texto) {
+        TramaSalida trama = TramaSalida.deTexto(TipoTrama.PRIVADO, remitente, 0, texto);
+        trama.medirEntrega(System.nanoTime(), 1);
+        sesion.enviar(trama);
+    }
+
+    /**
+     * Encola la misma trama en todas las sesiones registradas que ya tienen nombre, salvo en la
+     * excluida. Las que aún no han terminado el saludo no reciben nada, para que lo primero que les
+     * llegue sea la respuesta a su saludo. La trama ya está codificada, así que el coste por
+     * destinatario se limita a encolar una referencia.
+     *
+     * @param trama La trama a reenviar.
+     * @param excluida Sesión que no debe recibirla (normalmente el emisor), o null.
+     */
+    public void difundir(TramaSalida trama, S excluida) {
+        for (S sesion : sesiones.keySet()) {
+            if (sesion != excluida && sesion.getNombreUsuario() != null) {
+                sesion.enviar(trama);
+            }
+        }
+    }
+
+    /**
+     * Anuncia la entrada de un usuario que acaba de enviar su nombre: le confirma su identificador,
+     * le presenta a los usuarios que ya estaban conectados, en este nodo o en otro, y avisa a
+     * todos de su llegada.
+     *
+     * @param sesion La sesión del usuario que entra, ya con su nombre.
+     */
+    public void anunciarEntrada(S sesion) {
+        String nombre = sesion.getNombreUsuario();
+        sesion.enviar(TramaSalida.deTexto(TipoTrama.BIENVENIDA, sesion.getId(), 0, nombre));
+        // Los usuarios conectados se le presentan agrupados en unas pocas tramas, no una por usuario
+        LoteTramas presentes = new LoteTramas(sesion, TipoTrama.CONEXION);
+        for (S otra : sesiones.keySet()) {
+            String otroNombre = otra.getNombreUsuario();
+            if (otra != sesion && otroNombre != null) {
+                presentes.anadir(otra.getId(), otroNombre);
+            }
+        }
+        Cluster unido = cluster;
+        if (unido != null) {
+            unido.presentarRemotos(presentes);
+        }
+        presentes.enviar();
+        difundir(TramaSalida.deTexto(TipoTrama.CONEXION, sesion.getId(), 0, nombre), sesion);
+        if (unido != null) {
+            unido.anunciarConexion(sesion.getId(), nombre);
+        }
+    }
+
+    /**
+     * Avisa al resto de usuarios de que un usuario se ha desconectado.
+     *
+     * @param sesion La sesión del usuario que sale.
+     */
+    public void anunciarSalida(S sesion) {
+        if (!despidiendo) {
+            // Al apagar se van todos, así que no hace falta contárselo a los demás usuarios
+            difundir(TramaSalida.deTexto(TipoTrama.DESCONEXION, sesion.getId(), 0, sesion.getNombreUsuario()), sesion);
+        }
+        Cluster unido = cluster;
+        if (unido != null) {
+            unido.anunciarDesconexion(sesion.getId(), sesion.getNombreUsuario());
+        }
+    }
+
+    /**
+     * Despide a todas las sesiones al apagar el servidor: avisa a los usuarios, espera a que se les
+     * envíe lo que tienen pendiente, como mucho el tiempo indicado, y cierra sus conexiones. Las
+     * salidas ya no se anuncian a los demás usuarios del nodo, solo a los demás nodos.
+     *
+     * @param aviso Texto que reciben los usuarios antes de que se cierre su conexión.
+     * @param esperaMs Tiempo máximo que se espera a que se vacíen las colas de salida.
+     */
+    public void despedir(String aviso, long esperaMs) {
+        despidiendo = true;
+        difundir(TramaSalida.aviso(TipoTrama.AVISO, aviso), null);
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(esperaMs);
+        try {
+            while (hayPendientes() && System.nanoTime() - limite < 0) {
+                Thread.sleep(ESPERA_VACIADO_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (S sesion : sesiones.keySet()) {
+            sesion.desconectar();
+        }
+    }
+
+    /**
+     * @return true si a alguna sesión abierta le quedan tramas por enviar.
+     */
+    private boolean hayPendientes() {
+        for (S sesion : sesiones.keySet()) {
+            if (sesion.isAbierta() && !sesion.getColaSalida().estaVacia()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Número de sesiones registradas.
+     */
+    public int tamano() {
+        return sesiones.size();
+    }
+
+    /**
+     * Recorre las sesiones sin copiar el registro; nunca lanza ConcurrentModificationException.
+     */
+    @Override
+    public Iterator<S> iterator() {
+        return sesiones.keySet().iterator();
+    }
+}
@@ -0,0 +1,139 @@
+package chat.servidor;
+
+/**
+ * Temporizador de rueda (hashed wheel) para las tareas periódicas de muchas sesiones, como
+ * comprobar si siguen vivas. En lugar de un temporizador por sesión, un solo hilo avanza una
+ * ranura por tic y ejecuta las tareas de esa ranura: programar una tarea es encolarla, sin
+ * ordenar nada, y cada tic solo recorre las tareas que caen en él. La precisión es de un tic,
+ * más que suficiente para plazos de segundos.
+ *
+ * Las tareas se ejecutan en el hilo de la rueda, así que tienen que ser breves y no bloquearse.
+ * Una tarea que ya no hace falta no se cancela: simplemente no hace nada cuando vence.
+ *
+ * @author sdacatrinei
+ */
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+final class RuedaTemporizadores implements Runnable {
+
+    private final long ticNanos;
+
+    // Cada ranura es una lista enlazada de tareas; solo la usa el hilo de la rueda
+    private final Tarea[] ranuras;
+    private final int mascara;
+
+    // Tareas programadas que el hilo de la rueda aún no ha colocado en su ranura
+    private final Queue<Tarea> nuevas = new ConcurrentLinkedQueue<>();
+
+    // Instante en que arrancó la rueda y número de tics transcurridos (solo los usa el hilo de la rueda)
+    private final long inicio;
+    private long tic;
+
+    /**
+     * Tarea programada, enlazada con las demás de su ranura.
+     */
+    private static final class Tarea {
+
+        private final long vence;
+        private final Runnable accion;
+        private long vueltas;
+        private Tarea siguiente;
+
+        Tarea(long vence, Runnable accion) {
+            this.vence = vence;
+            this.accion = accion;
+        }
+    }
+
+    /**
+     * Crea la rueda y arranca su hilo.
+     *
+     * @param ticMs Duración de cada tic en milisegundos.
+     * @param numeroRanuras Ranuras de la rueda; se redondea a una potencia de dos. Una vuelta dura
+     *        ticMs * numeroRanuras; los plazos más largos dan varias vueltas antes de vencer.
+     * @param nombre Nombre del hilo de la rueda.
+     */
+    RuedaTemporizadores(long ticMs, int numeroRanuras, String nombre) {
+        this.ticNanos = TimeUnit.MILLISECONDS.toNanos(ticMs);
+        this.ranuras = new Tarea[Integer.highestOneBit(Math.max(1, numeroRanuras - 1)) << 1];
+        this.mascara = ranuras.length - 1;
+        this.inicio = System.nanoTime();
+        Thread hilo = new Thread(this, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * Programa una tarea. Se puede llamar desde cualquier hilo, incluido el de la rueda.
+     *
+     * @param retrasoNanos Nanosegundos que deben pasar antes de ejecutarla.
+     * @param accion Lo que se ejecuta al vencer, en el hilo de la rueda.
+     */
+    void programar(long retrasoNanos, Runnable accion) {
+        nuevas.add(new Tarea(System.nanoTime() + Math.max(0, retrasoNanos), accion));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            esperarTic();
+            colocarNuevas();
+            vencer((int) (tic & mascara));
+            tic++;
+        }
+    }
+
+    /**
+     * Duerme hasta el final del tic actual.
+     */
+    private void esperarTic() {
+        long fin = inicio + (tic + 1) * ticNanos;
+        long falta;
+        while ((falta = fin - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(falta);
+        }
+    }
+
+    /**
+     * Pasa las tareas programadas desde la última vez a la ranura en la que vencen.
+     */
+    private void colocarNuevas() {
+        Tarea tarea;
+        while ((tarea = nuevas.poll()) != null) {
+            // Las que ya deberían haber vencido van a la ranura actual
+            long tics = Math.max(tic, (tarea.vence - inicio) / ticNanos);
+            int ranura = (int) (tics & mascara);
+            tarea.vueltas = (tics - tic) / ranuras.length;
+            tarea.siguiente = ranuras[ranura];
+            ranuras[ranura] = tarea;
+        }
+    }
+
+    /**
+     * Ejecuta las tareas de una ranura que vencen en esta vuelta y deja las demás para la siguiente.
+     */
+    private void vencer(int ranura) {
+        Tarea tarea = ranuras[ranura];
+        ranuras[ranura] = null;
+        while (tarea != null) {
+            Tarea siguiente = tarea.siguiente;
+            if (tarea.vueltas > 0) {
+                tarea.vueltas--;
+                tarea.siguiente = ranuras[ranura];
+                ranuras[ranura] = tarea;
+            } else {
+                try {
+                    tarea.accion.run();
+                } catch (RuntimeException ex) {
+                    // Un fallo en una tarea no debe parar la rueda
+                    MainServidor.log("Error en una tarea temporizada: " + ex);
+                }
+            }
+            tarea = siguiente;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package chat.servidor;
+
+/**
+ * Sala de chat con nombre y su propio conjunto de miembros. Cada sala está asignada siempre al
+ * mismo hilo de {@link Salas}, y todo lo que toca a sus miembros (entrar, salir y repartir un
+ * mensaje) se ejecuta en ese hilo: la lista de miembros no necesita sincronización, los mensajes
+ * de una sala se reparten en el orden en que llegaron y las salas de hilos distintos reparten
+ * en paralelo sin compartir ningún bloqueo.
+ *
+ * Cuando una sala que no es la general se queda vacía se retira de {@link Salas}; si después le
+ * llega alguna tarea, se pasa a la sala que la sustituye.
+ *
+ * Cada mensaje recibe en la sala un número de secuencia, que viaja en su trama y continúa el de su
+ * {@link Historial}: con él un usuario que se reconecta puede pedir solo los mensajes que le faltan.
+ *
+ * En un {@link Cluster}, los usuarios de otros nodos que están en la sala son miembros remotos
+ * ({@link SesionRemota}): se presentan a quien entra y su entrada y salida se anuncia como la de
+ * cualquier otro, pero no se les reparte nada, porque de eso se encarga su nodo. Los mensajes de los
+ * miembros de este nodo se envían una sola vez a cada uno de los demás nodos, que los guardan en su
+ * propio historial y los reparten entre sus miembros.
+ *
+ * Los mensajes largos se comprimen también una sola vez, y la trama comprimida se reparte entre
+ * los miembros que la admiten mientras el resto recibe la original. Cada trama comprimida lleva un
+ * solo mensaje, así que lo que ocupa solo depende de lo que escribió su autor; el historial, que se
+ * agrupa con mensajes de varios autores, no se comprime para las sesiones cifradas.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Protocolo;
+import chat.util.TipoTrama;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+final class Sala {
+
+    private final String nombre;
+    private final Salas salas;
+
+    // Hilo al que está asignada la sala; depende solo de su nombre
+    private final Executor hilo;
+
+    // Miembros de la sala y cada miembro por su sesión, para quitarlo sin recorrer la lista
+    // (solo los usa el hilo de la sala)
+    private final List<Miembro> miembros = new ArrayList<>();
+    private final Map<Sesion, Miembro> porSesion = new HashMap<>();
+
+    // Miembros conectados a este nodo, y cuántos de ellos admiten compresión (solo los usa el hilo de la sala)
+    private int locales;
+    private int comprimen;
+
+    // true cuando la sala se ha quedado vacía y se ha retirado (solo lo usa el hilo de la sala)
+    private boolean cerrada;
+
+    // Historial de la sala, que se abre con la primera tarea, y secuencia del último mensaje
+    // (solo los usa el hilo de la sala)
+    private Historial historial;
+    private boolean historialAbierto;
+    private long secuencia;
+
+    // Métricas: solo las escribe el hilo de la sala; cualquier hilo puede leerlas
+    private volatile int numeroMiembros;
+    private volatile long mensajes;
+
+    // Mensajes y momento de la consulta anterior de métricas (solo los usa el hilo de métricas)
+    private long mensajesAnteriores;
+    private long instanteAnterior = System.nanoTime();
+
+    /**
+     * Sesión que está en la sala, con la trama con la que entró y su posición en la lista.
+     */
+    private static final class Miembro {
+        private final Sesion sesion;
+        // Trama UNIRSE que anunció su entrada; se reutiliza para presentárselo a los que lleguen después
+        private final TramaSalida entrada;
+        // Nombre del usuario en UTF-8, tal y como se guarda en el historial
+        private final byte[] autor;
+        // false si el usuario está conectado a otro nodo del cluster
+        private final boolean local;
+        // true si se le pueden enviar tramas comprimidas
+        private final boolean comprime;
+        private int posicion;
+        // Si ya ha pedido el historial en la sala y cuándo (System.nanoTime) lo pidió por última vez
+        private boolean pidioHistorial;
+        private long ultimoHistorial;
+
+        private Miembro(Sesion sesion, TramaSalida entrada, int posicion) {
+            this.sesion = sesion;
+            this.entrada = entrada;
+            this.autor = sesion.getNombreUsuario().getBytes(StandardCharsets.UTF_8);
+            this.local = !(sesion instanceof SesionRemota);
+            this.comprime = local && sesion.isCompresion();
+            this.posicion = posicion;
+        }
+    }
+
+    Sala(String nombre, Salas salas, Executor hilo) {
+        this.nombre = nombre;
+        this.salas = salas;
+        this.hilo = hilo;
+    }
+
+    /**
+     * Ejecuta una tarea en el hilo de la sala. Si la sala se ha retirado antes de que llegue su
+     * turno, la tarea se ejecuta sobre la sala que la sustituye, que está en el mismo hilo porque
+     * el hilo depende solo del nombre; así no se pierde ni se desordena ningún mensaje.
+     * Se puede llamar desde cualquier hilo.
+     *
+     * @param tarea La tarea que se ejecuta sobre la sala.
+     */
+    void ejecutar(Consumer<Sala> tarea) {
+        hilo.execute(() -> {
+            Sala sala = this;
+            while (sala.cerrada) {
+                sala = salas.obtener(nombre);
+            }
+            tarea.accept(sala);
+            sala.cerrarSiVacia();
+        });
+    }
+
+    /**
+     * Añade una sesión a la sala: le presenta a los miembros que ya estaban, le confirma la entrada
+     * con una trama con su propio identificador, le repite los últimos mensajes del historial y
+     * avisa al resto de su llegada. A un miembro remoto solo se le anuncia a los demás.
+     */
+    void agregar(Sesion sesion) {
+        if (!sesion.isAbierta() || porSesion.containsKey(sesion)) {
+            return; // Se desconectó mientras entraba, o ya estaba dentro
+        }
+        TramaSalida entrada = TramaSalida.deTexto(TipoTrama.UNIRSE, sesion.getId(), 0, nombre);
+        Miembro miembro = new Miembro(sesion, entrada, miembros.size());
+        if (miembro.local) {
+            for (Miembro otro : miembros) {
+                sesion.enviar(otro.entrada);
+            }
+            sesion.enviar(entrada);
+        }
+        repartir(entrada, sesion);
+
+        miembros.add(miembro);
+        porSesion.put(sesion, miembro);
+        numeroMiembros = miembros.size();
+        if (miembro.local) {
+            locales++;
+        }
+        if (miembro.comprime) {
+            comprimen++;
+        }
+        if (miembro.local && salas.getMensajesAlEntrar() > 0) {
+            enviarHistorial(sesion, 0, salas.getMensajesAlEntrar());
+        }
+    }
+
+    /**
+     * Quita una sesión de la sala.
+     *
+     * @param sesion La sesión que sale.
+     * @param avisar true para avisar al resto; al desconectarse ya se avisa con la desconexión.
+     */
+    void quitar(Sesion sesion, boolean avisar) {
+        Miembro miembro = porSesion.remove(sesion);
+        if (miembro == null) {
+            return;
+        }
+        // Movemos el último al hueco que deja, para no desplazar al resto de la lista
+        Miembro ultimo = miembros.remove(miembros.size() - 1);
+        if (ultimo != miembro) {
+            miembros.set(miembro.posicion, ultimo);
+            ultimo.posicion = miembro.posicion;
+        }
+        numeroMiembros = miembros.size();
+        if (miembro.local) {
+            locales--;
+        }
+        if (miembro.comprime) {
+            comprimen--;
+        }
+        if (avisar) {
+            repartir(TramaSalida.deTexto(TipoTrama.DEJAR, sesion.getId(), 0, nombre), null);
+        }
+    }
+
+    /**
+     * Numera un mensaje de chat, lo guarda en el historial y lo reparte entre los miembros de la
+     * sala salvo su emisor, codificándolo una sola vez para todos (y comprimiéndolo una sola vez
+     * para los que admiten compresión, si es largo). Cada trama mide el tiempo que pasa desde que
+     * se recibió el mensaje hasta que se escribe al último de sus destinatarios. Si el emisor es
+     * de este nodo, el mensaje se envía también a los demás nodos del cluster.
+     *
+     * @param emisor Sesión que envió el mensaje.
+     * @param recibida Instante (System.nanoTime) en que el servidor lo recibió, para las métricas.
+     * @param marcaTiempo Momento en que el servidor lo recibió.
+     * @param texto Texto del mensaje en UTF-8.
+     */
+    void difundir(Sesion emisor, long recibida, long marcaTiempo, byte[] texto) {
+        Miembro miembro = porSesion.get(emisor);
+        boolean local = !(emisor instanceof SesionRemota);
+        Historial diario = historial();
+        long numero = ++secuencia;
+        mensajes++; // Solo lo incrementa el hilo de la sala
+        if (diario != null) {
+            byte[] autor = miembro != null
+                    ? miembro.autor
+                    : emisor.getNombreUsuario().getBytes(StandardCharsets.UTF_8);
+            try {
+                diario.anotar(numero, emisor.getId(), marcaTiempo, autor, texto);
+            } catch (IOException ex) {
+                MainServidor.log("No se puede escribir el historial de #" + nombre + "; se deja de guardar: "
+                        + ex.getMessage());
+                salas.cerrarHistorial(nombre, diario);
+                historial = null;
+            }
+        }
+        TramaSalida trama = new TramaSalida(Protocolo.codificar(TipoTrama.MENSAJE, emisor.getId(), numero, marcaTiempo, texto));
+        int destinatarios = miembro != null && miembro.local ? locales - 1 : locales;
+        int conCompresion = miembro != null && miembro.comprime ? comprimen - 1 : comprimen;
+        TramaSalida comprimida = conCompresion > 0 ? salas.comprimir(trama) : null;
+        if (comprimida != null) {
+            comprimida.medirEntrega(recibida, conCompresion);
+            destinatarios -= conCompresion;
+        }
+        trama.medirEntrega(recibida, destinatarios);
+        repartir(trama, comprimida, emisor);
+        if (local) {
+            salas.reenviarAlCluster(nombre, emisor.getId(), marcaTiempo, texto);
+        }
+    }
+
+    /**
+     * Envía a un miembro los mensajes del historial posteriores a una secuencia, como mucho los
+     * últimos indicados. Los mensajes salen tal y como están en el historial, agrupados en unas
+     * pocas tramas, así que no se vuelven a codificar ni ocupan un hueco de la cola cada uno. Si el
+     * miembro admite compresión, cada grupo se le envía comprimido, salvo que la sesión esté
+     * cifrada: un grupo mezcla mensajes de varios autores, y comprimirlos juntos antes de cifrar
+     * dejaría que quien escribe en la sala averiguara el texto de otros por lo que ocupa la trama
+     * cifrada (como en los ataques CRIME y BREACH).
+     *
+     * @param sesion La sesión del miembro.
+     * @param posterior Secuencia del último mensaje que ya tiene.
+     * @param maximo Número máximo de mensajes.
+     */
+    void enviarHistorial(Sesion sesion, long posterior, int maximo) {
+        Historial diario = historial();
+        if (diario == null || !porSesion.containsKey(sesion)) {
+            return;
+        }
+        boolean comprime = sesion.isCompresion() && !sesion.isCifrada();
+        for (ByteBuffer lote : diario.desde(posterior, maximo)) {
+            TramaSalida trama = new TramaSalida(lote);
+            TramaSalida comprimida = comprime ? salas.comprimir(trama) : null;
+            sesion.enviar(comprimida != null ? comprimida : trama);
+        }
+    }
+
+    /**
+     * Atiende la petición de historial de un miembro: le envía como mucho los mensajes configurados
+     * posteriores a la secuencia, salvo que ya lo haya pedido hace menos del intervalo mínimo, en
+     * cuyo caso solo se le avisa.
+     *
+     * @param sesion La sesión del miembro.
+     * @param posterior Secuencia del último mensaje que ya tiene.
+     */
+    void pedirHistorial(Sesion sesion, long posterior) {
+        Miembro miembro = porSesion.get(sesion);
+        if (miembro == null || !miembro.local) {
+            return;
+        }
+        long ahora = System.nanoTime();
+        if (miembro.pidioHistorial && ahora - miembro.ultimoHistorial < salas.getIntervaloHistorialNanos()) {
+            sesion.enviar(TramaSalida.aviso(TipoTrama.AVISO, "Espera un poco antes de volver a pedir el historial."));
+            return;
+        }
+        miembro.pidioHistorial = true;
+        miembro.ultimoHistorial = ahora;
+        enviarHistorial(sesion, posterior, salas.getMaximoHistorial());
+    }
+
+    /**
+     * Abre el historial la primera vez que se necesita y continúa su secuencia.
+     *
+     * @return El historial, o null si la sala no guarda sus mensajes.
+     */
+    private Historial historial() {
+        if (!historialAbierto) {
+            historialAbierto = true;
+            historial = salas.abrirHistorial(nombre);
+            if (historial != null) {
+                secuencia = historial.getUltimaSecuencia();
+            }
+        }
+        return historial;
+    }
+
+    private void repartir(TramaSalida trama, Sesion excluida) {
+        repartir(trama, null, excluida);
+    }
+
+    /**
+     * Reparte una trama entre los miembros locales salvo uno; los que admiten compresión reciben
+     * la versión comprimida, si la hay.
+     */
+    private void repartir(TramaSalida trama, TramaSalida comprimida, Sesion excluida) {
+        for (int i = 0; i < miembros.size(); i++) {
+            Miembro miembro = miembros.get(i);
+            if (miembro.local && miembro.sesion != excluida) {
+                miembro.sesion.enviar(comprimida != null && miembro.comprime ? comprimida : trama);
+            }
+        }
+    }
+
+    /**
+     * Retira la sala si se ha quedado vacía, salvo la general, que existe siempre, y cierra su
+     * historial. La sala que la sustituya, en el mismo hilo, lo vuelve a abrir si lo necesita.
+     */
+    private void cerrarSiVacia() {
+        if (!cerrada && miembros.isEmpty() && !Salas.GENERAL.equals(nombre)) {
+            cerrada = true;
+            salas.retirar(this);
+            if (historial != null) {
+                salas.cerrarHistorial(nombre, historial);
+                historial = null;
+            }
+        }
+    }
+
+    String getNombre() {
+        return nombre;
+    }
+
+    /**
+     * @return Número de usuarios que hay ahora en la sala.
+     */
+    int getNumeroMiembros() {
+        return numeroMiembros;
+    }
+
+    /**
+     * @return Mensajes de chat repartidos en la sala desde que se creó.
+     */
+    long getMensajes() {
+        return mensajes;
+    }
+
+    /**
+     * Resume las métricas de la sala, con el ritmo de mensajes desde la consulta anterior.
+     * Solo se llama desde el hilo de métricas de {@link Salas}.
+     *
+     * @return El resumen, o null si la sala está vacía y no ha tenido mensajes desde la consulta anterior.
+     */
+    String metricas() {
+        long ahora = System.nanoTime();
+        long total = mensajes;
+        long nuevos = total - mensajesAnteriores;
+        double segundos = (ahora - instanteAnterior) / 1e9;
+        mensajesAnteriores = total;
+        instanteAnterior = ahora;
+        int usuarios = numeroMiembros;
+        if (usuarios == 0 && nuevos == 0) {
+            return null;
+        }
+        return String.format("Sala #%s: %d usuarios, %.1f mensajes/s (%d en total)",
+                nombre, usuarios, nuevos / segundos, total);
+    }
+}
@@ -0,0 +1,492 @@
+package chat.servidor;
+
+/**
+ * Directorio de las salas del chat. Cada usuario está en una sola sala a la vez: entra en la
+ * general al saludar y puede cambiar a cualquier otra por su nombre; la sala se crea al entrar
+ * el primero y se retira cuando sale el último. Los mensajes de chat solo se reparten entre los
+ * miembros de la sala del emisor, así que el coste de reenviar un mensaje depende del tamaño de
+ * su sala y no del número total de usuarios conectados.
+ *
+ * Las salas se reparten entre un número fijo de hilos según el hash de su nombre ({@link Sala}):
+ * quien recibe un mensaje solo lo codifica y se lo pasa al hilo de su sala, y las salas de hilos
+ * distintos reparten sus mensajes en paralelo. Si se configura, un hilo aparte registra cada cierto
+ * tiempo el número de usuarios y el ritmo de mensajes de cada sala.
+ *
+ * Salvo que se desactive, cada sala guarda sus mensajes en su propio {@link Historial}, dentro de
+ * una carpeta con su nombre, y a quien entra en ella le repite los últimos. El número de carpetas
+ * está limitado: para abrir el historial de una sala nueva se borra, si hace falta, el de la sala
+ * cerrada que lleva más tiempo sin usarse, así que el disco que ocupa el historial tiene un máximo.
+ * Quien pide el historial recibe como mucho un número de mensajes, y no puede volver a pedirlo
+ * enseguida.
+ *
+ * En un {@link Cluster} cada nodo tiene sus propias salas, con los mismos nombres: los usuarios de
+ * otros nodos están en ellas como miembros remotos, cada cambio de sala de un usuario de este nodo
+ * se anuncia a los demás y cada mensaje se reenvía una vez a cada nodo.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Salas {
+
+    // Sala en la que entran todos los usuarios al saludar; nunca se retira
+    public static final String GENERAL = "general";
+
+    // Longitud máxima del nombre de una sala
+    public static final int LONGITUD_MAXIMA_NOMBRE = 32;
+
+    // Salas que tienen o acaban de tener algún miembro, por nombre
+    private final ConcurrentHashMap<String, Sala> porNombre = new ConcurrentHashMap<>();
+
+    // Sala en la que está cada sesión que ya ha saludado
+    private final ConcurrentHashMap<Sesion, String> salaDe = new ConcurrentHashMap<>();
+
+    // Hilos que reparten los mensajes; cada sala se asigna siempre al mismo
+    private final ExecutorService[] hilos;
+
+    // Carpeta con el historial de cada sala (null si no se guarda), tamaño de sus segmentos,
+    // segmentos que se conservan y mensajes que se repiten al entrar
+    private final Path carpetaHistorial;
+    private final int tamanoSegmento;
+    private final int maximoSegmentos;
+    private final int mensajesAlEntrar;
+
+    // Salas que pueden tener historial en disco a la vez, y salas con el historial abierto, cuyo
+    // historial no se puede borrar para hacer hueco (protegido por sí mismo)
+    private final int maximoSalasHistorial;
+    private final Set<String> historialesAbiertos = new HashSet<>();
+
+    // Mensajes que se envían como mucho a quien pide el historial y tiempo mínimo entre dos peticiones
+    private final int maximoHistorial;
+    private final long intervaloHistorialNanos;
+
+    // Tamaño (bytes) a partir del cual se comprimen las tramas para quien lo admite (0 = nunca) y nivel de deflate
+    private final int comprimirDesde;
+    private final int nivelCompresion;
+
+    // Cluster del que forma parte el servidor, o null si funciona solo
+    private volatile Cluster cluster;
+
+    /**
+     * Crea los hilos de las salas y, si se han configurado, las métricas periódicas.
+     *
+     * @param config Configuración de arranque del servidor.
+     */
+    public Salas(Configuracion config) {
+        this.hilos = new ExecutorService[config.getHilosSalas()];
+        for (int i = 0; i < hilos.length; i++) {
+            String nombreHilo = "sala-" + i;
+            hilos[i] = Executors.newSingleThreadExecutor(tarea -> hiloDemonio(tarea, nombreHilo));
+        }
+        this.carpetaHistorial = config.getHistorial() == null ? null : Path.of(config.getHistorial());
+        this.tamanoSegmento = config.getHistorialSegmentoBytes();
+        this.maximoSegmentos = config.getHistorialSegmentos();
+        this.mensajesAlEntrar = config.getHistorialMensajes();
+        this.maximoSalasHistorial = config.getHistorialSalas();
+        this.maximoHistorial = config.getHistorialMaximo();
+        this.intervaloHistorialNanos = TimeUnit.MILLISECONDS.toNanos(config.getHistorialIntervaloMs());
+        this.comprimirDesde = config.getComprimirDesde();
+        this.nivelCompresion = config.getNivelCompresion();
+        if (config.getMetricasSalasS() > 0) {
+            ScheduledExecutorService metricas = Executors.newSingleThreadScheduledExecutor(
+                    tarea -> hiloDemonio(tarea, "metricas-salas"));
+            metricas.scheduleAtFixedRate(this::registrarMetricas, config.getMetricasSalasS(),
+                    config.getMetricasSalasS(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Conecta las salas al cluster del servidor. Se llama al crear el cluster.
+     */
+    void unirCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    private static Thread hiloDemonio(Runnable tarea, String nombre) {
+        Thread hilo = new Thread(tarea, nombre);
+        hilo.setDaemon(true);
+        return hilo;
+    }
+
+    /**
+     * Mete en la sala general a un usuario que acaba de saludar.
+     *
+     * @param sesion La sesión del usuario, ya con su nombre.
+     */
+    public void entrar(Sesion sesion) {
+        salaDe.put(sesion, GENERAL);
+        anunciarSala(sesion, GENERAL);
+        obtener(GENERAL).ejecutar(sala -> sala.agregar(sesion));
+    }
+
+    /**
+     * Cambia a un usuario a la sala que ha pedido. Si el nombre no es válido o ya está en ella,
+     * se le avisa y no cambia nada.
+     *
+     * @param sesion La sesión del usuario.
+     * @param solicitada Nombre de la sala tal y como lo ha escrito el usuario.
+     */
+    public void unirse(Sesion sesion, String solicitada) {
+        String nombre = normalizar(solicitada);
+        if (nombre == null) {
+            sesion.enviar(TramaSalida.aviso(TipoTrama.AVISO, "Nombre de sala no válido: usa hasta "
+                    + LONGITUD_MAXIMA_NOMBRE + " letras, números, '-' o '_'."));
+            return;
+        }
+        cambiar(sesion, nombre);
+    }
+
+    /**
+     * Saca a un usuario de su sala y lo devuelve a la general.
+     *
+     * @param sesion La sesión del usuario.
+     */
+    public void dejar(Sesion sesion) {
+        cambiar(sesion, GENERAL);
+    }
+
+    private void cambiar(Sesion sesion, String nombre) {
+        String anterior = salaDe.get(sesion);
+        if (anterior == null) {
+            return; // Todavía no ha saludado o ya se está desconectando
+        }
+        if (anterior.equals(nombre)) {
+            sesion.enviar(TramaSalida.aviso(TipoTrama.AVISO, "Ya estás en la sala #" + nombre + "."));
+            return;
+        }
+        // Si la sesión se ha desconectado mientras tanto, ya no la cambiamos de sala
+        if (!salaDe.replace(sesion, anterior, nombre)) {
+            return;
+        }
+        anunciarSala(sesion, nombre);
+        obtener(anterior).ejecutar(sala -> sala.quitar(sesion, true));
+        obtener(nombre).ejecutar(sala -> sala.agregar(sesion));
+    }
+
+    private void anunciarSala(Sesion sesion, String nombre) {
+        Cluster unido = cluster;
+        if (unido != null) {
+            unido.anunciarSala(sesion.getId(), nombre);
+        }
+    }
+
+    /**
+     * Pasa a un usuario de otro nodo a la sala en la que está ahora, sacándolo de la anterior.
+     * Solo se llama desde el hilo que lee el enlace con su nodo.
+     *
+     * @param remota El usuario remoto.
+     * @param nombre Nombre de su nueva sala, ya normalizado por su nodo.
+     */
+    void moverRemota(SesionRemota remota, String nombre) {
+        String anterior = salaDe.put(remota, nombre);
+        if (nombre.equals(anterior)) {
+            return;
+        }
+        if (anterior != null) {
+            obtener(anterior).ejecutar(sala -> sala.quitar(remota, true));
+        }
+        obtener(nombre).ejecutar(sala -> sala.agregar(remota));
+    }
+
+    /**
+     * Reparte entre los miembros de este nodo un mensaje que ha llegado de otro nodo.
+     *
+     * @param emisor El usuario remoto que lo envió.
+     * @param nombre Nombre de la sala.
+     * @param marcaTiempo Momento en que lo recibió su nodo.
+     * @param texto Texto del mensaje en UTF-8.
+     */
+    void difundirRemoto(SesionRemota emisor, String nombre, long marcaTiempo, byte[] texto) {
+        long recibida = System.nanoTime();
+        obtener(nombre).ejecutar(sala -> sala.difundir(emisor, recibida, marcaTiempo, texto));
+    }
+
+    /**
+     * Envía a los demás nodos del cluster un mensaje de un usuario de este nodo. Solo se llama
+     * desde el hilo de la sala.
+     */
+    void reenviarAlCluster(String nombre, long emisor, long marcaTiempo, byte[] texto) {
+        Cluster unido = cluster;
+        if (unido != null) {
+            unido.difundir(nombre, emisor, marcaTiempo, texto);
+        }
+    }
+
+    /**
+     * Reparte un mensaje de chat entre los miembros de la sala del emisor, salvo el propio emisor.
+     * Aquí solo se copia el texto y se anota la hora de llegada; el hilo de la sala le asigna su
+     * número, lo guarda en el historial y lo codifica una sola vez para todos los miembros.
+     *
+     * @param emisor Sesión que envió el mensaje.
+     * @param trama El mensaje recibido; su carga se copia sin decodificarla.
+     */
+    public void difundir(Sesion emisor, TramaEntrante trama) {
+        String nombre = salaDe.get(emisor);
+        if (nombre != null) {
+            long recibida = System.nanoTime();
+            long marcaTiempo = Reloj.ahora();
+            byte[] texto = trama.bytes();
+            obtener(nombre).ejecutar(sala -> sala.difundir(emisor, recibida, marcaTiempo, texto));
+        }
+    }
+
+    /**
+     * Envía a un usuario los mensajes de su sala posteriores a una secuencia, por ejemplo los que
+     * se perdió al reconectarse, como mucho los configurados. Si la secuencia no es un número
+     * válido, o si lo pidió hace muy poco, se le avisa.
+     *
+     * @param sesion La sesión del usuario.
+     * @param posterior Secuencia del último mensaje que ya tiene, en decimal.
+     */
+    public void historial(Sesion sesion, String posterior) {
+        long secuencia;
+        try {
+            secuencia = Long.parseLong(posterior.strip());
+        } catch (NumberFormatException ex) {
+            sesion.enviar(TramaSalida.aviso(TipoTrama.AVISO, "Secuencia de historial no válida: " + posterior));
+            return;
+        }
+        String nombre = salaDe.get(sesion);
+        if (nombre != null) {
+            obtener(nombre).ejecutar(sala -> sala.pedirHistorial(sesion, secuencia));
+        }
+    }
+
+    /**
+     * Saca de su sala a un usuario que se desconecta, sin avisar al resto de la sala: ya reciben
+     * el aviso de su desconexión. Debe llamarse después de que la sesión deje de estar abierta.
+     *
+     * @param sesion La sesión que se cierra.
+     */
+    public void salir(Sesion sesion) {
+        String nombre = salaDe.remove(sesion);
+        if (nombre != null) {
+            obtener(nombre).ejecutar(sala -> sala.quitar(sesion, false));
+        }
+    }
+
+    /**
+     * @param sesion La sesión de un usuario.
+     * @return El nombre de la sala en la que está, o null si todavía no ha saludado.
+     */
+    public String salaDe(Sesion sesion) {
+        return salaDe.get(sesion);
+    }
+
+    /**
+     * Devuelve la sala con ese nombre, creándola si no existe.
+     */
+    Sala obtener(String nombre) {
+        Sala sala = porNombre.get(nombre);
+        if (sala != null) {
+            return sala;
+        }
+        return porNombre.computeIfAbsent(nombre,
+                clave -> new Sala(clave, this, hilos[Math.floorMod(clave.hashCode(), hilos.length)]));
+    }
+
+    /**
+     * Abre el historial de una sala. Solo se llama desde el hilo de la sala.
+     *
+     * @return El historial, o null si no se guarda o no se puede abrir.
+     */
+    Historial abrirHistorial(String nombre) {
+        if (carpetaHistorial == null) {
+            return null;
+        }
+        synchronized (historialesAbiertos) {
+            try {
+                Path carpeta = carpetaHistorial.resolve(nombre);
+                if (!Files.isDirectory(carpeta) && !hacerHuecoHistorial()) {
+                    MainServidor.log("Todas las salas con historial están abiertas; #" + nombre + " no guarda el suyo.");
+                    return null;
+                }
+                Historial historial = Historial.abrir(carpeta, tamanoSegmento, maximoSegmentos);
+                historialesAbiertos.add(nombre);
+                return historial;
+            } catch (IOException ex) {
+                MainServidor.log("No se puede abrir el historial de #" + nombre + ": " + ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Cierra el historial de una sala que se retira (o que deja de guardarlo), de modo que ya se
+     * puede borrar para hacer hueco a otra. Solo se llama desde el hilo de la sala.
+     */
+    void cerrarHistorial(String nombre, Historial historial) {
+        synchronized (historialesAbiertos) {
+            historialesAbiertos.remove(nombre);
+            try {
+                historial.cerrar();
+            } catch (UncheckedIOException ex) {
+                MainServidor.log("No se puede llevar al disco el historial de #" + nombre + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Si ya hay tantas carpetas de historial como salas se admiten, borra las de las salas cerradas
+     * que llevan más tiempo sin usarse hasta dejar sitio para una más. Se llama con el cerrojo de
+     * {@link #historialesAbiertos} tomado.
+     *
+     * @return false si no queda sitio porque todas las salas con historial lo tienen abierto.
+     */
+    private boolean hacerHuecoHistorial() throws IOException {
+        if (!Files.isDirectory(carpetaHistorial)) {
+            return true;
+        }
+        List<Path> cerradas = new ArrayList<>();
+        int total = 0;
+        try (DirectoryStream<Path> carpetas = Files.newDirectoryStream(carpetaHistorial, Files::isDirectory)) {
+            for (Path carpeta : carpetas) {
+                total++;
+                if (!historialesAbiertos.contains(carpeta.getFileName().toString())) {
+                    cerradas.add(carpeta);
+                }
+            }
+        }
+        if (total < maximoSalasHistorial) {
+            return true;
+        }
+        if (total - cerradas.size() >= maximoSalasHistorial) {
+            return false;
+        }
+        Map<Path, FileTime> usos = new HashMap<>();
+        for (Path carpeta : cerradas) {
+            usos.put(carpeta, ultimoUso(carpeta));
+        }
+        cerradas.sort(Comparator.comparing(usos::get));
+        for (int i = 0; total >= maximoSalasHistorial; i++) {
+            Path carpeta = cerradas.get(i);
+            borrarCarpeta(carpeta);
+            total--;
+            MainServidor.log("Se borra el historial de #" + carpeta.getFileName() + " para hacer sitio a otra sala.");
+        }
+        return true;
+    }
+
+    /**
+     * @return La fecha de modificación más reciente de la carpeta de una sala y de sus segmentos.
+     */
+    private static FileTime ultimoUso(Path carpeta) throws IOException {
+        FileTime ultimo = Files.getLastModifiedTime(carpeta);
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(carpeta)) {
+            for (Path archivo : archivos) {
+                FileTime modificado = Files.getLastModifiedTime(archivo);
+                if (modificado.compareTo(ultimo) > 0) {
+                    ultimo = modificado;
+                }
+            }
+        }
+        return ultimo;
+    }
+
+    private static void borrarCarpeta(Path carpeta) throws IOException {
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(carpeta)) {
+            for (Path archivo : archivos) {
+                Files.deleteIfExists(archivo);
+            }
+        }
+        Files.deleteIfExists(carpeta);
+    }
+
+    /**
+     * @return Cuántos de los últimos mensajes de la sala se repiten a quien entra en ella.
+     */
+    int getMensajesAlEntrar() {
+        return mensajesAlEntrar;
+    }
+
+    /**
+     * @return Cuántos mensajes se envían como mucho a quien pide el historial.
+     */
+    int getMaximoHistorial() {
+        return maximoHistorial;
+    }
+
+    /**
+     * @return Tiempo mínimo (nanosegundos) entre dos peticiones de historial de un usuario en una sala.
+     */
+    long getIntervaloHistorialNanos() {
+        return intervaloHistorialNanos;
+    }
+
+    /**
+     * Comprime una trama para los miembros que admiten compresión si llega al tamaño configurado.
+     *
+     * @param trama La trama sin comprimir.
+     * @return La trama comprimida, o null si es pequeña o comprimida no ocuparía menos.
+     */
+    TramaSalida comprimir(TramaSalida trama) {
+        if (comprimirDesde == 0 || trama.longitud() < comprimirDesde) {
+            return null;
+        }
+        return trama.comprimida(nivelCompresion);
+    }
+
+    /**
+     * Retira una sala vacía. Solo se llama desde el hilo de la sala.
+     */
+    void retirar(Sala sala) {
+        porNombre.remove(sala.getNombre(), sala);
+    }
+
+    /**
+     * Normaliza el nombre de una sala: sin espacios alrededor, sin '#' delante y en minúsculas.
+     *
+     * @return El nombre normalizado, o null si no es válido.
+     */
+    static String normalizar(String nombre) {
+        String normalizado = nombre.strip();
+        if (normalizado.startsWith("#")) {
+            normalizado = normalizado.substring(1);
+        }
+        normalizado = normalizado.toLowerCase(Locale.ROOT);
+        if (normalizado.isEmpty() || normalizado.length() > LONGITUD_MAXIMA_NOMBRE) {
+            return null;
+        }
+        for (int i = 0; i < normalizado.length(); i++) {
+            char c = normalizado.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return null;
+            }
+        }
+        return normalizado;
+    }
+
+    /**
+     * Registra el número de usuarios y el ritmo de mensajes de cada sala con actividad.
+     */
+    private void registrarMetricas() {
+        for (Sala sala : porNombre.values()) {
+            String metricas = sala.metricas();
+            if (metricas != null) {
+                MainServidor.log(metricas);
+            }
+        }
+    }
+}
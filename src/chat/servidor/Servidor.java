@@ -0,0 +1,27 @@
+package chat.servidor;
+
+/**
+ * Servidor de chat que se puede arrancar y apagar, ya sea el NIO ({@link ServidorNIO}) o el
+ * bloqueante ({@link ServidorBloqueante}).
+ *
+ * @author sdacatrinei
+ */
+
+import java.io.IOException;
+
+public interface Servidor {
+
+    /**
+     * Acepta conexiones desde el hilo que lo llama hasta que se apaga el servidor.
+     *
+     * @throws IOException Si no se puede abrir el puerto del servidor.
+     */
+    void iniciar() throws IOException;
+
+    /**
+     * Apaga el servidor ordenadamente: deja de aceptar conexiones, avisa a los usuarios, espera a
+     * que se les envíe lo que tienen pendiente y cierra sus conexiones. Vuelve cuando ha terminado.
+     * Se puede llamar desde cualquier hilo, por ejemplo al recibir Ctrl+C.
+     */
+    void detener();
+}
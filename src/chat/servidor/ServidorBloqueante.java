@@ -0,0 +1,198 @@
+package chat.servidor;
+
+/**
+ * Servidor clásico que atiende a cada usuario en su propio hilo, virtual o de plataforma,
+ * usando flujos bloqueantes. Se arranca con la opción "--bloqueante" y se mantiene para poder
+ * compararlo con {@link ServidorNIO}. Las sesiones que dejan de dar señales de vida las
+ * desconecta {@link Latidos}, así que un hilo no se queda esperando para siempre a un usuario
+ * cuya conexión se cortó sin cerrarse.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.usuario.ControladorUsuario;
+import chat.util.TipoTrama;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ServidorBloqueante implements Servidor, ControlAdmision.Manejador<Socket> {
+
+    // Margen sobre el tiempo de cierre configurado que se espera a que termine el apagado
+    private static final long MARGEN_CIERRE_MS = 2000;
+
+    private final Configuracion config;
+
+    // Registro de los usuarios conectados al servidor
+    private final RegistroSesiones<ControladorUsuario> usuariosConectados;
+
+    // Salas del chat y los hilos que reparten sus mensajes
+    private final Salas salas;
+
+    // Enlaces con los demás nodos, o null si el servidor no forma parte de un cluster
+    private final Cluster cluster;
+
+    // Decide qué conexiones se atienden, cuáles esperan y cuáles se rechazan
+    private final ControlAdmision<Socket> admision;
+
+    // Límites de lo que puede enviar cada sesión y cada dirección IP
+    private final LimiteEntrada limites;
+
+    // Comprueba que las sesiones sigan vivas y desconecta las que no
+    private final Latidos latidos;
+
+    // Socket en el que se aceptan conexiones, para cerrarlo al apagar
+    private volatile ServerSocket escucha;
+
+    // Se activa al apagar el servidor; el apagado termina cuando se abre el cerrojo
+    private volatile boolean detenido;
+    private final CountDownLatch terminado = new CountDownLatch(1);
+
+    // Ejecutor con el que se lanza el hilo de cada usuario
+    private final ExecutorService hilos;
+
+    /**
+     * @param config Configuración de arranque del servidor.
+     */
+    public ServidorBloqueante(Configuracion config) {
+        this.config = config;
+        this.usuariosConectados = new RegistroSesiones<>(config.getNodo());
+        this.salas = new Salas(config);
+        this.cluster = config.isCluster() ? new Cluster(config, usuariosConectados, salas) : null;
+        this.admision = new ControlAdmision<>(config.getLimiteConexiones(), config.getColaEspera(),
+                config.getEsperaMaximaMs(), this);
+        this.limites = new LimiteEntrada(config);
+        this.latidos = new Latidos(config);
+        // Cada usuario se atiende en su propio hilo: virtual (por defecto) o de plataforma
+        this.hilos = config.isHilosVirtuales()
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Acepta conexiones desde el hilo que lo llama hasta que se apaga el servidor; entonces
+     * despide a los usuarios y espera a que terminen sus hilos antes de volver.
+     *
+     * @throws IOException Si no se puede abrir el puerto del servidor.
+     */
+    @Override
+    public void iniciar() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(config.getPuerto(), config.getBacklog()); hilos) {
+            escucha = serverSocket;
+            // Imprime un mensaje indicando que el servidor está en ejecución
+            MainServidor.log("Servidor iniciado en el puerto " + config.getPuerto() + " con hilos "
+                    + (config.isHilosVirtuales() ? "virtuales" : "de plataforma"));
+            new Metricas(admision, usuariosConectados).publicar(config.getMetricasPuerto());
+            if (cluster != null) {
+                cluster.iniciar();
+            }
+
+            // Bucle principal que mantiene al servidor en ejecución esperando conexiones;
+            // el control de admisión decide qué hacer con cada una
+            try {
+                while (!detenido) {
+                    admision.solicitar(serverSocket.accept());
+                }
+            } catch (IOException ex) {
+                // Al apagar se cierra el socket y accept falla: solo es un error si no estamos apagando
+                if (!detenido) {
+                    throw ex;
+                }
+            }
+            // Antes de cerrar el ejecutor, que espera a que terminen los hilos de los usuarios
+            usuariosConectados.despedir(MainServidor.AVISO_CIERRE, config.getCierreMs());
+        } finally {
+            terminado.countDown();
+        }
+        MainServidor.log("Servidor detenido.");
+    }
+
+    @Override
+    public void detener() {
+        detenido = true;
+        MainServidor.log("Apagando el servidor...");
+        ServerSocket serverSocket = escucha;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            // El socket ya no acepta conexiones, que es lo que queríamos
+        }
+        try {
+            terminado.await(config.getCierreMs() + MARGEN_CIERRE_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void admitir(Socket socketCliente) {
+        if (detenido) {
+            // Una conexión que esperaba en la cola ya no se va a atender
+            rechazar(socketCliente);
+            admision.liberar();
+            return;
+        }
+        MainServidor.log("Nuevo usuario conectado: " + socketCliente.getInetAddress());
+
+        // Creamos un nuevo manejador para el usuario que se conecta; cuando termine
+        // registramos su desconexión y dejamos su hueco libre
+        ControladorUsuario manejador = new ControladorUsuario(usuariosConectados.nuevoId(), socketCliente,
+                usuariosConectados, salas, config.nuevaColaSalida(), limites.abrir(socketCliente.getInetAddress()),
+                hilos, config.isCifradoObligatorio(), config.getCierreMs(), this::alTerminar);
+        usuariosConectados.agregar(manejador); // Agregamos el manejador al registro de usuarios conectados
+        hilos.execute(manejador); // Ejecutamos la comunicación con este usuario en su propio hilo
+        latidos.vigilar(manejador); // Lo desconectamos si deja de dar señales de vida
+    }
+
+    @Override
+    public void encolar(Socket socketCliente) {
+        enviarAviso(socketCliente, TipoTrama.AVISO, MainServidor.AVISO_EN_COLA);
+    }
+
+    @Override
+    public void rechazar(Socket socketCliente) {
+        enviarAviso(socketCliente, TipoTrama.RECHAZO, MainServidor.AVISO_RECHAZO);
+        try {
+            // Descartamos lo que el cliente haya enviado ya (su nombre) para que el cierre no
+            // provoque un reset que le impida leer el aviso
+            InputStream entrada = socketCliente.getInputStream();
+            entrada.skip(entrada.available());
+            socketCliente.close();
+        } catch (IOException ex) {
+            // La conexión ya no es utilizable; no hay nada más que hacer
+        }
+    }
+
+    /**
+     * Registra la desconexión de un usuario cuando termina su sesión y libera su hueco.
+     * @param manejador El manejador del usuario que se ha desconectado.
+     */
+    private void alTerminar(ControladorUsuario manejador) {
+        String nombre = manejador.getNombreUsuario();
+        MainServidor.log("Usuario " + (nombre != null ? nombre : "Desconocido") + " se ha desconectado.");
+        if (manejador.getColaSalida().getDescartadas() > 0) {
+            MainServidor.log("Cola de salida de " + nombre + ": " + manejador.getColaSalida().resumen());
+        }
+        manejador.getCuota().liberar();
+        admision.liberar();
+    }
+
+    /**
+     * Envía un aviso a una conexión que todavía no tiene manejador.
+     */
+    private void enviarAviso(Socket socketCliente, TipoTrama tipo, String aviso) {
+        try {
+            Channels.newChannel(socketCliente.getOutputStream()).write(TramaSalida.aviso(tipo, aviso).vista());
+        } catch (IOException ex) {
+            // Si el cliente ya se ha ido, no hay a quién avisar
+        }
+    }
+}
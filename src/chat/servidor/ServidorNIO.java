@@ -0,0 +1,340 @@
+package chat.servidor;
+
+/**
+ * Servidor de chat no bloqueante basado en ServerSocketChannel y Selector. En lugar de crear
+ * un hilo por usuario, reparte las conexiones entre un número fijo de reactores (por defecto uno
+ * por núcleo), de modo que miles de usuarios inactivos no consumen hilos del sistema.
+ * Usa el mismo protocolo binario ({@link chat.util.Protocolo}) que el servidor bloqueante, así
+ * que MainUsuario funciona igual con uno que con otro. Los mensajes de chat se reparten en los
+ * hilos de {@link Salas}, de modo que los reactores no se ocupan de reenviarlos a cada miembro.
+ * Las sesiones que dejan de dar señales de vida las desconecta {@link Latidos}.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Cifrado;
+import chat.util.Protocolo;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ServidorNIO implements Servidor, ControlAdmision.Manejador<SocketChannel> {
+
+    // Margen sobre el tiempo de cierre configurado que se espera a que termine el apagado
+    private static final long MARGEN_CIERRE_MS = 2000;
+
+    private final Configuracion config;
+
+    // Sesiones de los usuarios conectados al servidor
+    private final RegistroSesiones<SesionNIO> sesiones;
+
+    // Salas del chat y los hilos que reparten sus mensajes
+    private final Salas salas;
+
+    // Enlaces con los demás nodos, o null si el servidor no forma parte de un cluster
+    private final Cluster cluster;
+
+    private final Reactor[] reactores;
+
+    // Siguiente reactor al que se asignará una sesión (reparto circular)
+    private int siguienteReactor;
+
+    // Decide qué conexiones se atienden, cuáles esperan y cuáles se rechazan
+    private final ControlAdmision<SocketChannel> admision;
+
+    // Límites de lo que puede enviar cada sesión y cada dirección IP
+    private final LimiteEntrada limites;
+
+    // Comprueba que las sesiones sigan vivas y desconecta las que no
+    private final Latidos latidos;
+
+    // Canal en el que se aceptan conexiones, para cerrarlo al apagar
+    private volatile ServerSocketChannel escucha;
+
+    // Se activa al apagar el servidor; el apagado termina cuando se abre el cerrojo
+    private volatile boolean detenido;
+    private final CountDownLatch terminado = new CountDownLatch(1);
+
+    /**
+     * Crea el servidor y los reactores que atenderán las conexiones.
+     *
+     * @param config Configuración de arranque del servidor.
+     * @throws IOException Si no se puede abrir alguno de los selectores.
+     */
+    public ServidorNIO(Configuracion config) throws IOException {
+        this.config = config;
+        this.sesiones = new RegistroSesiones<>(config.getNodo());
+        this.salas = new Salas(config);
+        this.cluster = config.isCluster() ? new Cluster(config, sesiones, salas) : null;
+        this.reactores = new Reactor[config.getReactores()];
+        for (int i = 0; i < reactores.length; i++) {
+            reactores[i] = new Reactor();
+        }
+        this.admision = new ControlAdmision<>(config.getLimiteConexiones(), config.getColaEspera(),
+                config.getEsperaMaximaMs(), this);
+        this.limites = new LimiteEntrada(config);
+        this.latidos = new Latidos(config);
+    }
+
+    /**
+     * Arranca los reactores y acepta conexiones desde el hilo que lo llama hasta que se apaga el
+     * servidor; entonces despide a las sesiones antes de volver.
+     *
+     * @throws IOException Si no se puede abrir el puerto del servidor.
+     */
+    @Override
+    public void iniciar() throws IOException {
+        for (int i = 0; i < reactores.length; i++) {
+            Thread hilo = new Thread(reactores[i], "reactor-" + i);
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        try (ServerSocketChannel servidor = ServerSocketChannel.open()) {
+            escucha = servidor;
+            servidor.bind(new InetSocketAddress(config.getPuerto()), config.getBacklog());
+            MainServidor.log("Servidor NIO iniciado en el puerto " + config.getPuerto()
+                    + " con " + reactores.length + " reactores");
+            new Metricas(admision, sesiones).publicar(config.getMetricasPuerto());
+            if (cluster != null) {
+                cluster.iniciar();
+            }
+
+            // Este hilo solo se dedica a aceptar; el control de admisión decide qué hacer con cada conexión
+            try {
+                while (!detenido) {
+                    admision.solicitar(servidor.accept());
+                }
+            } catch (IOException ex) {
+                // Al apagar se cierra el canal y accept falla: solo es un error si no estamos apagando
+                if (!detenido) {
+                    throw ex;
+                }
+            }
+            sesiones.despedir(MainServidor.AVISO_CIERRE, config.getCierreMs());
+            MainServidor.log("Servidor detenido.");
+        } finally {
+            terminado.countDown();
+        }
+    }
+
+    @Override
+    public void detener() {
+        detenido = true;
+        MainServidor.log("Apagando el servidor...");
+        ServerSocketChannel canal = escucha;
+        try {
+            if (canal != null) {
+                canal.close();
+            }
+        } catch (IOException ex) {
+            // El canal ya no acepta conexiones, que es lo que queríamos
+        }
+        try {
+            terminado.await(config.getCierreMs() + MARGEN_CIERRE_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void admitir(SocketChannel canal) {
+        if (detenido) {
+            // Una conexión que esperaba en la cola ya no se va a atender
+            rechazar(canal);
+            admision.liberar();
+            return;
+        }
+        MainServidor.log("Nuevo usuario conectado: " + canal.socket().getInetAddress());
+        try {
+            canal.configureBlocking(false);
+            canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException ex) {
+            MainServidor.log("Error al preparar la conexión: " + ex.getMessage());
+            cerrarSinSesion(canal);
+            admision.liberar();
+            return;
+        }
+
+        // Repartimos las sesiones entre los reactores de forma circular
+        Reactor reactor;
+        synchronized (reactores) {
+            reactor = reactores[siguienteReactor];
+            siguienteReactor = (siguienteReactor + 1) % reactores.length;
+        }
+        SesionNIO sesion = new SesionNIO(sesiones.nuevoId(), canal, reactor, this, config.nuevaColaSalida(),
+                limites.abrir(canal.socket().getInetAddress()));
+        reactor.registrar(sesion);
+        sesiones.agregar(sesion);
+        latidos.vigilar(sesion);
+    }
+
+    @Override
+    public void encolar(SocketChannel canal) {
+        enviarAviso(canal, TipoTrama.AVISO, MainServidor.AVISO_EN_COLA);
+    }
+
+    @Override
+    public void rechazar(SocketChannel canal) {
+        enviarAviso(canal, TipoTrama.RECHAZO, MainServidor.AVISO_RECHAZO);
+        cerrarSinSesion(canal);
+    }
+
+    /**
+     * Procesa una trama completa recibida de una sesión. Se llama desde el hilo del reactor.
+     *
+     * @param sesion Sesión que envió la trama.
+     * @param trama La trama recibida; solo es válida durante esta llamada.
+     * @throws ProtocolException Si la carga de la trama no tiene el formato de su tipo.
+     */
+    void alRecibir(SesionNIO sesion, TramaEntrante trama) throws ProtocolException {
+        if (sesion.getNombreUsuario() == null) {
+            if (trama.getTipo() == TipoTrama.CLAVE && !sesion.isCifrada()) {
+                // Antes del saludo el usuario puede enviar su clave pública para cifrar la sesión
+                acordarCifrado(sesion, trama);
+                return;
+            }
+            // Después, su primera trama tiene que ser el saludo con su nombre
+            if (trama.getTipo() != TipoTrama.HOLA) {
+                MainServidor.log("Conexión sin saludo inicial; se cierra.");
+                cerrar(sesion, true);
+                return;
+            }
+            if (config.isCifradoObligatorio() && !sesion.isCifrada()) {
+                MainServidor.log("Conexión sin cifrar rechazada.");
+                sesion.escribirDirecto(TramaSalida.aviso(TipoTrama.RECHAZO, MainServidor.AVISO_SIN_CIFRAR));
+                cerrar(sesion, true);
+                return;
+            }
+            // Si el nombre no es válido o ya lo usa otro, se le avisa y se espera otro saludo
+            String nombre = trama.texto();
+            String rechazo = sesiones.reservarNombre(sesion, nombre);
+            if (rechazo != null) {
+                // Se rechaza el saludo, no la conexión: puede volver a saludar con otro nombre
+                sesion.enviar(TramaSalida.aviso(TipoTrama.RECHAZO, rechazo));
+                return;
+            }
+            sesion.setNombreUsuario(nombre);
+            sesion.setCompresion((trama.getMarcas() & Protocolo.MARCA_COMPRESION) != 0);
+            System.out.println(MainServidor.conHora("Usuario " + nombre + " listo para chatear."));
+            sesiones.anunciarEntrada(sesion);
+            salas.entrar(sesion);
+            return;
+        }
+        switch (trama.getTipo()) {
+            case SALIR -> cerrar(sesion, false);
+            case UNIRSE -> salas.unirse(sesion, trama.texto());
+            case DEJAR -> salas.dejar(sesion);
+            case HISTORIAL -> salas.historial(sesion, trama.texto());
+            case LATIDO -> sesion.enviar(TramaSalida.aviso(TipoTrama.ECO, ""));
+            case PRIVADO -> {
+                Metricas.mensajeRecibido();
+                enviarPrivado(sesion, trama.nombre(), trama.textoTrasNombre());
+            }
+            case MENSAJE -> {
+                Metricas.mensajeRecibido();
+                MainServidor.registrarMensaje(MainServidor.conHora("#" + salas.salaDe(sesion) + " "
+                        + sesion.getNombreUsuario() + ": " + trama.texto()));
+                // El hilo de la sala numera el mensaje, lo guarda y lo codifica una sola vez para
+                // todos sus miembros menos el emisor
+                salas.difundir(sesion, trama);
+            }
+            case null, default -> {
+                // Tramas de tipos que el servidor no atiende (o de una versión más reciente): se ignoran
+            }
+        }
+    }
+
+    /**
+     * Entrega un mensaje privado buscando al destinatario por su nombre, o avisa al emisor si no
+     * está conectado.
+     */
+    private void enviarPrivado(SesionNIO sesion, String destinatario, String texto) {
+        if (!sesiones.enviarPrivado(sesion, destinatario, texto)) {
+            sesion.enviar(TramaSalida.aviso(TipoTrama.AVISO, "No hay ningún usuario conectado llamado " + destinatario + "."));
+            return;
+        }
+        MainServidor.registrarMensaje(MainServidor.conHora(sesion.getNombreUsuario() + " → @" + destinatario + ": " + texto));
+    }
+
+    /**
+     * Responde a la clave pública del usuario con la del servidor y pasa a cifrar la sesión.
+     * La respuesta sale en claro; todo lo que se encole después sale cifrado.
+     */
+    private void acordarCifrado(SesionNIO sesion, TramaEntrante trama) {
+        KeyPair par = Cifrado.nuevoParClaves();
+        try {
+            Cifrado cifrado = Cifrado.acordar(par, trama.bytes(), true);
+            sesion.enviar(TramaSalida.enClaro(Cifrado.tramaClave(par)));
+            sesion.establecerCifrado(cifrado);
+        } catch (ProtocolException ex) {
+            MainServidor.log("No se ha podido acordar el cifrado: " + ex.getMessage());
+            cerrar(sesion, true);
+        }
+    }
+
+    /**
+     * Cierra la sesión, la elimina del servidor y avisa al resto de usuarios.
+     *
+     * @param sesion Sesión que se desea cerrar.
+     * @param inesperado true si la conexión se perdió sin recibir "salir()".
+     */
+    void cerrar(SesionNIO sesion, boolean inesperado) {
+        if (!sesion.cerrarCanal()) {
+            return;
+        }
+        sesiones.eliminar(sesion);
+        salas.salir(sesion);
+        admision.liberar();
+        String nombre = sesion.getNombreUsuario();
+        if (nombre == null) {
+            MainServidor.log("Usuario Desconocido se ha desconectado.");
+            return;
+        }
+        if (inesperado) {
+            System.out.println(MainServidor.conHora(nombre + " se ha desconectado inesperadamente."));
+        }
+        sesiones.anunciarSalida(sesion);
+        MainServidor.log("Usuario " + nombre + " se ha desconectado.");
+        if (sesion.getColaSalida().getDescartadas() > 0) {
+            MainServidor.log("Cola de salida de " + nombre + ": " + sesion.getColaSalida().resumen());
+        }
+    }
+
+    /**
+     * Envía un aviso a una conexión que todavía no tiene sesión (el canal sigue en modo bloqueante).
+     */
+    private void enviarAviso(SocketChannel canal, TipoTrama tipo, String aviso) {
+        try {
+            canal.write(TramaSalida.aviso(tipo, aviso).vista());
+        } catch (IOException ex) {
+            // Si el cliente ya se ha ido, no hay a quién avisar
+        }
+    }
+
+    /**
+     * Cierra una conexión que no llegó a tener sesión, descartando antes lo que el cliente haya
+     * enviado (su nombre) para que el cierre no provoque un reset que le impida leer el aviso.
+     */
+    private void cerrarSinSesion(SocketChannel canal) {
+        try {
+            canal.configureBlocking(false);
+            ByteBuffer descarte = ByteBuffer.allocate(512);
+            while (canal.read(descarte) > 0) {
+                descarte.clear();
+            }
+            canal.close();
+        } catch (IOException ex) {
+            // La conexión ya no es utilizable; no hay nada más que hacer
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package chat.servidor;
+
+/**
+ * Conexión de un usuario con el servidor, independientemente de si se atiende con flujos
+ * bloqueantes ({@link chat.usuario.ControladorUsuario}) o con el servidor NIO ({@link SesionNIO}).
+ *
+ * @author sdacatrinei
+ */
+
+public interface Sesion {
+
+    /**
+     * Devuelve el identificador de la sesión, que viaja como remitente en las tramas que origina
+     * su usuario. Lo asigna {@link RegistroSesiones#nuevoId()} y nunca es {@link chat.util.Protocolo#SERVIDOR}.
+     *
+     * @return El identificador de la sesión.
+     */
+    long getId();
+
+    /**
+     * Devuelve el nombre del usuario, o null si todavía no lo ha enviado.
+     *
+     * @return El nombre del usuario conectado.
+     */
+    String getNombreUsuario();
+
+    /**
+     * Encola una trama para el usuario sin esperar a que se escriba en el socket. Si la cola de
+     * salida está llena se aplica su política de desborde, que puede desconectar al usuario.
+     *
+     * @param trama Trama codificada; la misma instancia se comparte entre todos los destinatarios.
+     */
+    void enviar(TramaSalida trama);
+
+    /**
+     * @return La cola de salida de la sesión, para consultar sus métricas.
+     */
+    ColaSalida getColaSalida();
+
+    /**
+     * @return false en cuanto la sesión empieza a cerrarse; después ya no se la añade a ninguna sala.
+     */
+    boolean isAbierta();
+
+    /**
+     * @return Instante (System.nanoTime) en que se recibió algo del usuario por última vez.
+     */
+    long getUltimaLectura();
+
+    /**
+     * @return true si el usuario saludó con {@link chat.util.Protocolo#MARCA_COMPRESION}, es decir,
+     *         si se le pueden enviar tramas comprimidas.
+     */
+    boolean isCompresion();
+
+    /**
+     * @return true si la sesión ya ha acordado una clave y todo lo que se le envía sale cifrado.
+     */
+    boolean isCifrada();
+
+    /**
+     * Cierra la conexión desde fuera del hilo que la atiende, por ejemplo porque el usuario lleva
+     * demasiado tiempo sin dar señales de vida o porque el servidor se está apagando. La sesión
+     * se da de baja igual que si el usuario se hubiera ido sin avisar.
+     */
+    void desconectar();
+}
@@ -0,0 +1,509 @@
+package chat.servidor;
+
+/**
+ * Estado de la conexión de un usuario en el servidor NIO. Guarda el buffer de lectura con los
+ * bytes recibidos que aún no forman una trama completa y la {@link ColaSalida} con las tramas
+ * pendientes de enviar.
+ * La lectura y la escritura en el canal solo las hace el reactor al que pertenece la sesión;
+ * cualquier otro hilo puede encolar tramas con {@link #enviar(TramaSalida)}. Si la sesión está
+ * cifrada, el reactor descifra cada trama al leerla y cifra cada trama al escribirla, en un buffer
+ * de salida propio de la sesión que se reutiliza.
+ * Cada trama leída pasa antes por la {@link LimiteEntrada.Cuota} de la sesión. Si hay que frenarla,
+ * la sesión deja de leer del canal hasta que el reactor la reanuda, y la trama se atiende entonces.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Cifrado;
+import chat.util.Protocolo;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class SesionNIO implements Sesion {
+
+    // Tamaño inicial del buffer de lectura; crece solo si llega una trama más grande
+    private static final int TAMANO_LECTURA_INICIAL = 512;
+
+    private final long id;
+    private final SocketChannel canal;
+    private final Reactor reactor;
+    private final ServidorNIO servidor;
+    private SelectionKey clave;
+
+    // Bytes recibidos pendientes de procesar (siempre en modo escritura entre lecturas)
+    private ByteBuffer lectura = ByteBuffer.allocate(TAMANO_LECTURA_INICIAL);
+
+    // Trama recibida que se reutiliza para todas las lecturas (solo la usa el reactor)
+    private final TramaEntrante entrante = new TramaEntrante();
+
+    // Cifrado acordado con el usuario, o null si la sesión va en claro (solo lo usa el reactor)
+    private Cifrado cifrado;
+    private final TramaEntrante descifrada = new TramaEntrante();
+
+    // Tramas ya cifradas pendientes de escribir; el lote apunta a trozos de este buffer
+    private ByteBuffer salidaCifrada;
+
+    // Trama sacada de la cola que no cupo en el buffer de salida cifrada
+    private TramaSalida sinCifrar;
+
+    // Tramas pendientes de enviar al usuario
+    private final ColaSalida colaSalida;
+
+    // Número máximo de tramas que se escriben juntas en una sola llamada al sistema
+    private static final int TAMANO_LOTE = 16;
+
+    // Tamaño inicial del buffer en el que se cifran las tramas de un lote
+    private static final int TAMANO_SALIDA_CIFRADA = 8 * 1024;
+
+    // Vistas de las tramas que se están escribiendo, entre inicioLote y finLote (solo las usa el reactor)
+    private final ByteBuffer[] lote = new ByteBuffer[TAMANO_LOTE];
+    // Trama de la que sale cada vista del lote, para anotarla como escrita al terminar
+    private final TramaSalida[] tramasLote = new TramaSalida[TAMANO_LOTE];
+    private int inicioLote;
+    private int finLote;
+
+    // Indica si la sesión ya está en la lista de escrituras pendientes del reactor
+    private final AtomicBoolean escrituraSolicitada = new AtomicBoolean();
+
+    // Límites de envío de la sesión (solo la usa el reactor)
+    private final LimiteEntrada.Cuota cuota;
+
+    // Si la sesión ha dejado de leer del canal por superar su límite, y hasta qué instante (System.nanoTime)
+    private boolean pausada;
+    private long reanudarEn;
+
+    // Si la trama al principio del buffer de lectura ya pasó por la cuota antes de pausar la sesión
+    private boolean admitida;
+
+    private volatile String nombreUsuario;
+    // Si el usuario admite tramas comprimidas; se fija al saludar, antes de entrar en ninguna sala
+    private volatile boolean compresion;
+    private final AtomicBoolean cerrada = new AtomicBoolean();
+
+    // Instante (System.nanoTime) de la última lectura con datos; lo consulta el hilo de los latidos
+    private volatile long ultimaLectura = System.nanoTime();
+
+    SesionNIO(long id, SocketChannel canal, Reactor reactor, ServidorNIO servidor, ColaSalida colaSalida,
+            LimiteEntrada.Cuota cuota) {
+        this.id = id;
+        this.canal = canal;
+        this.reactor = reactor;
+        this.servidor = servidor;
+        this.colaSalida = colaSalida;
+        this.cuota = cuota;
+    }
+
+    /**
+     * Registra el canal en el selector del reactor. Solo se llama desde el hilo del reactor.
+     */
+    void registrar(Selector selector) {
+        try {
+            clave = canal.register(selector, SelectionKey.OP_READ, this);
+            // Por si se encoló algún mensaje antes de completar el registro
+            if (!colaSalida.estaVacia()) {
+                escribir();
+            }
+        } catch (ClosedChannelException ex) {
+            servidor.cerrar(this, true);
+        }
+    }
+
+    /**
+     * Lee los bytes disponibles en el canal y entrega al servidor cada trama completa.
+     * Solo se llama desde el hilo del reactor.
+     */
+    void leer() {
+        try {
+            int leidos = canal.read(lectura);
+            if (leidos < 0) {
+                // El usuario cerró la conexión sin enviar "salir()"
+                servidor.cerrar(this, true);
+                return;
+            }
+            if (leidos > 0) {
+                // Una sesión que no consigue leer nada no cuenta como viva
+                Metricas.bytesRecibidos(leidos);
+                ultimaLectura = System.nanoTime();
+            }
+            atenderRecibidas();
+        } catch (IOException ex) {
+            cerrarPorError(ex);
+        }
+    }
+
+    /**
+     * Entrega al servidor las tramas completas que hay en el buffer de lectura, hasta que se acaban
+     * o la sesión tiene que esperar por superar su límite de envío.
+     */
+    private void atenderRecibidas() throws IOException {
+        lectura.flip();
+        while (!cerrada.get()) {
+            // La longitud se comprueba antes de esperar a la carga, para no reservar un buffer enorme
+            int total = Protocolo.longitudPendiente(lectura, cuota.getTramaMaxima());
+            if (total < 0 || lectura.remaining() < total) {
+                // La trama aún no ha llegado completa; ampliamos el buffer si no cabe
+                if (total >= 0 && lectura.capacity() < total) {
+                    ByteBuffer mayor = ByteBuffer.allocate(total);
+                    mayor.put(lectura);
+                    lectura = mayor;
+                    return;
+                }
+                break;
+            }
+            if (!admitida) {
+                long espera = cuota.admitir(total);
+                if (espera == LimiteEntrada.RECHAZADA) {
+                    descartar(total);
+                    continue;
+                }
+                if (espera > 0) {
+                    // La trama se queda en el buffer hasta que el reactor reanude la sesión
+                    admitida = true;
+                    pausar(espera);
+                    break;
+                }
+            }
+            admitida = false;
+            entrante.decodificar(lectura, total);
+            Metricas.tramaRecibida();
+            if (cifrado == null) {
+                servidor.alRecibir(this, entrante);
+            } else if (entrante.getTipo() == TipoTrama.CIFRADA) {
+                cifrado.descifrar(entrante, descifrada);
+                servidor.alRecibir(this, descifrada);
+            } else {
+                throw new ProtocolException("Trama sin cifrar en una sesión cifrada");
+            }
+        }
+        lectura.compact();
+    }
+
+    /**
+     * Salta una trama que supera el límite de envío sin decodificarla, o cierra la sesión si así
+     * está configurado. Al usuario se le avisa solo de la primera de cada racha.
+     */
+    private void descartar(int total) throws ProtocolException {
+        if (cuota.getExceso() == LimiteEntrada.Exceso.DESCONECTAR) {
+            throw new ProtocolException("supera el límite de envío");
+        }
+        lectura.position(lectura.position() + total);
+        if (cifrado != null) {
+            cifrado.saltar();
+        }
+        if (cuota.avisar()) {
+            enviar(TramaSalida.aviso(TipoTrama.AVISO, MainServidor.AVISO_LIMITE));
+        }
+    }
+
+    /**
+     * Deja de leer del canal durante el tiempo indicado. Lo que ya esté en el buffer se atiende al
+     * reanudar.
+     */
+    private void pausar(long nanos) {
+        pausada = true;
+        reanudarEn = System.nanoTime() + nanos;
+        clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+        reactor.pausar(this);
+    }
+
+    /**
+     * Vuelve a leer del canal después de una pausa, empezando por las tramas que ya estaban en el
+     * buffer. Solo se llama desde el hilo del reactor.
+     */
+    void reanudar() {
+        pausada = false;
+        if (cerrada.get() || !clave.isValid()) {
+            return;
+        }
+        try {
+            atenderRecibidas();
+            if (!pausada && clave.isValid()) {
+                clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (IOException ex) {
+            cerrarPorError(ex);
+        }
+    }
+
+    /**
+     * @return Instante (System.nanoTime) en que la sesión pausada vuelve a leerse.
+     */
+    long getReanudarEn() {
+        return reanudarEn;
+    }
+
+    /**
+     * Cierra la sesión tras un error de lectura. Si el usuario envió algo que no cumple el
+     * protocolo o sus límites, se deja constancia en el log.
+     */
+    private void cerrarPorError(IOException ex) {
+        if (ex instanceof ProtocolException) {
+            MainServidor.log("Trama no válida de " + (nombreUsuario != null ? nombreUsuario : "Desconocido")
+                    + ": " + ex.getMessage() + "; se cierra la conexión.");
+        }
+        servidor.cerrar(this, true);
+    }
+
+    /**
+     * Cierra la sesión tras un fallo inesperado al atenderla en el reactor, como un error de
+     * programación con una trama concreta. Se registra y se cierra solo esta sesión.
+     */
+    void cerrarPorFallo(RuntimeException ex) {
+        MainServidor.log("Error inesperado al atender a " + (nombreUsuario != null ? nombreUsuario : "Desconocido")
+                + ": " + ex + "; se cierra la conexión.");
+        try {
+            servidor.cerrar(this, true);
+        } catch (RuntimeException otro) {
+            // Al menos el canal queda cerrado; el resto de la baja se pierde, pero el reactor sigue
+            MainServidor.log("Error al cerrar la sesión tras un fallo: " + otro);
+        }
+    }
+
+    /**
+     * Atiende una sesión cuya clave se ha cancelado mientras el reactor la usaba, normalmente porque
+     * otro hilo ha cerrado el canal. Se libera la marca de escritura para que no quede puesta, y se
+     * completa el cierre si nadie lo ha hecho.
+     */
+    void claveCancelada() {
+        escrituraSolicitada.set(false);
+        if (!cerrada.get()) {
+            servidor.cerrar(this, true);
+        }
+    }
+
+    @Override
+    public void enviar(TramaSalida trama) {
+        if (cerrada.get()) {
+            trama.descartada();
+            return;
+        }
+        // El reactor no puede quedarse esperando: si la cola no admite la trama, desconectamos
+        // a este usuario por no leer sus mensajes
+        if (!colaSalida.encolar(trama, false)) {
+            System.out.println(MainServidor.conHora(nombreUsuario
+                    + " no lee sus mensajes a tiempo; se le desconecta (" + colaSalida.resumen() + ")."));
+            servidor.cerrar(this, true);
+            return;
+        }
+        // Solo avisamos al reactor la primera vez; él vaciará toda la cola de una vez
+        if (escrituraSolicitada.compareAndSet(false, true)) {
+            reactor.solicitarEscritura(this);
+        }
+    }
+
+    @Override
+    public ColaSalida getColaSalida() {
+        return colaSalida;
+    }
+
+    @Override
+    public long getUltimaLectura() {
+        return ultimaLectura;
+    }
+
+    @Override
+    public boolean isCompresion() {
+        return compresion;
+    }
+
+    @Override
+    public void desconectar() {
+        servidor.cerrar(this, false);
+    }
+
+    @Override
+    public boolean isAbierta() {
+        return !cerrada.get();
+    }
+
+    /**
+     * Escribe en el canal todas las tramas pendientes que acepte el socket. Las tramas se envían
+     * por lotes con una escritura agrupada (gathering write), así que varios mensajes acumulados
+     * salen en una sola llamada al sistema. Si el socket no admite más datos, se pide al selector
+     * que avise cuando vuelva a poder escribirse. Solo se llama desde el hilo del reactor.
+     */
+    void escribir() {
+        if (clave == null || !clave.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                while (completarLote()) {
+                    Metricas.bytesEnviados(canal.write(lote, inicioLote, finLote - inicioLote));
+                    // Descartamos las vistas que se han escrito enteras
+                    while (inicioLote < finLote && !lote[inicioLote].hasRemaining()) {
+                        tramasLote[inicioLote].escrita();
+                        tramasLote[inicioLote] = null;
+                        lote[inicioLote++] = null;
+                    }
+                    if (inicioLote < finLote) {
+                        // El socket está lleno: esperamos a que el selector nos avise
+                        clave.interestOps(interesLectura() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    inicioLote = 0;
+                    finLote = 0;
+                }
+                clave.interestOps(interesLectura());
+                escrituraSolicitada.set(false);
+                // Si alguien encoló algo justo antes de liberar la marca, seguimos escribiendo
+                if (colaSalida.estaVacia() || !escrituraSolicitada.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            servidor.cerrar(this, true);
+        }
+    }
+
+    /**
+     * @return OP_READ, o 0 si la sesión está pausada por superar su límite de envío.
+     */
+    private int interesLectura() {
+        return pausada ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Rellena el lote con las tramas de la cola de salida. La trama se comparte con el resto de
+     * destinatarios, así que cada una se añade como una vista con su propia posición.
+     *
+     * @return true si el lote tiene algo que escribir.
+     */
+    private boolean completarLote() {
+        if (inicioLote > 0) {
+            // Movemos al principio lo que quedó sin escribir en la última llamada
+            System.arraycopy(lote, inicioLote, lote, 0, finLote - inicioLote);
+            System.arraycopy(tramasLote, inicioLote, tramasLote, 0, finLote - inicioLote);
+            Arrays.fill(lote, finLote - inicioLote, finLote, null);
+            Arrays.fill(tramasLote, finLote - inicioLote, finLote, null);
+            finLote -= inicioLote;
+            inicioLote = 0;
+        }
+        if (finLote == 0 && salidaCifrada != null) {
+            // Ya no queda nada por escribir en el buffer de salida cifrada: se vuelve a usar desde el principio
+            salidaCifrada.clear();
+        }
+        TramaSalida trama;
+        while (finLote < lote.length && (trama = siguienteTrama()) != null) {
+            if (cifrado == null || trama.isEnClaro()) {
+                tramasLote[finLote] = trama;
+                lote[finLote++] = trama.vista();
+            } else if (agregarCifrada(trama)) {
+                tramasLote[finLote - 1] = trama;
+            } else {
+                sinCifrar = trama; // No cabe hasta que se escriba lo que ya hay en el lote
+                break;
+            }
+        }
+        return finLote > 0;
+    }
+
+    private TramaSalida siguienteTrama() {
+        TramaSalida trama = sinCifrar;
+        if (trama != null) {
+            sinCifrar = null;
+            return trama;
+        }
+        return colaSalida.sondear();
+    }
+
+    /**
+     * Cifra una trama a continuación de las que ya hay en el buffer de salida cifrada y añade al
+     * lote una vista de ese trozo. Si el lote está vacío y la trama no cabe, el buffer crece.
+     *
+     * @return false si la trama no cabe mientras quede algo del lote por escribir.
+     */
+    private boolean agregarCifrada(TramaSalida trama) {
+        int longitud = cifrado.longitudCifrada(trama.longitud());
+        if (salidaCifrada == null) {
+            // Se reserva al escribir por primera vez, para no ocupar memoria en sesiones que no reciben nada
+            salidaCifrada = ByteBuffer.allocateDirect(Math.max(longitud, TAMANO_SALIDA_CIFRADA));
+        } else if (salidaCifrada.remaining() < longitud) {
+            if (finLote > 0) {
+                return false;
+            }
+            salidaCifrada = ByteBuffer.allocateDirect(Math.max(longitud, salidaCifrada.capacity()));
+        }
+        int inicio = salidaCifrada.position();
+        cifrado.cifrar(trama.vista(), salidaCifrada);
+        lote[finLote++] = salidaCifrada.slice(inicio, longitud);
+        return true;
+    }
+
+    /**
+     * Pasa a cifrar y descifrar todas las tramas de la sesión. Las tramas ya encoladas también se
+     * cifran, salvo las creadas con {@link TramaSalida#enClaro(ByteBuffer)}. Solo se llama desde
+     * el hilo del reactor.
+     *
+     * @param cifrado El cifrado acordado con el usuario.
+     */
+    void establecerCifrado(Cifrado cifrado) {
+        this.cifrado = cifrado;
+    }
+
+    @Override
+    public boolean isCifrada() {
+        return cifrado != null;
+    }
+
+    /**
+     * Intenta escribir una trama directamente en el canal, sin pasar por la cola ni cifrarla,
+     * por ejemplo para explicar por qué se cierra la conexión. Si el socket no la admite entera,
+     * se pierde. Solo se llama desde el hilo del reactor.
+     *
+     * @param trama La trama a escribir.
+     */
+    void escribirDirecto(TramaSalida trama) {
+        try {
+            Metricas.bytesEnviados(canal.write(trama.vista()));
+        } catch (IOException ex) {
+            // La conexión se va a cerrar de todos modos
+        }
+    }
+
+    /**
+     * Marca la sesión como cerrada y cierra el canal.
+     *
+     * @return true si la sesión estaba abierta y se ha cerrado en esta llamada.
+     */
+    boolean cerrarCanal() {
+        if (!cerrada.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            canal.close();
+        } catch (IOException ex) {
+            System.out.println("Error al cerrar la conexión: " + ex.getMessage());
+        }
+        colaSalida.cerrar();
+        cuota.liberar();
+        return true;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombreUsuario() {
+        return nombreUsuario;
+    }
+
+    void setNombreUsuario(String nombreUsuario) {
+        this.nombreUsuario = nombreUsuario;
+    }
+
+    void setCompresion(boolean compresion) {
+        this.compresion = compresion;
+    }
+}
@@ -0,0 +1,113 @@
+package chat.servidor;
+
+/**
+ * Usuario conectado a otro nodo del {@link Cluster}. Solo sirve para que las salas de este nodo lo
+ * cuenten entre sus miembros y lo presenten a los usuarios locales: las tramas para él las entrega
+ * su propio nodo, así que aquí no se le envía nada y no tiene cola de salida.
+ *
+ * @author sdacatrinei
+ */
+
+import java.net.Socket;
+
+final class SesionRemota implements Sesion {
+
+    private final long id;
+    private final String nombre;
+    private final int nodo;
+
+    // Enlace por el que llegó su entrada; si se pierde, el usuario deja de estar conectado aquí
+    private volatile Socket enlace;
+
+    private volatile boolean abierta = true;
+
+    SesionRemota(long id, String nombre, int nodo, Socket enlace) {
+        this.id = id;
+        this.nombre = nombre;
+        this.nodo = nodo;
+        this.enlace = enlace;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombreUsuario() {
+        return nombre;
+    }
+
+    /**
+     * No hace nada: las tramas para el usuario las entrega su nodo.
+     */
+    @Override
+    public void enviar(TramaSalida trama) {
+    }
+
+    /**
+     * @return null: la cola de salida del usuario está en su nodo.
+     */
+    @Override
+    public ColaSalida getColaSalida() {
+        return null;
+    }
+
+    @Override
+    public boolean isAbierta() {
+        return abierta;
+    }
+
+    /**
+     * @return El instante actual: su nodo es quien vigila que siga vivo.
+     */
+    @Override
+    public long getUltimaLectura() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return false: a un miembro remoto no se le envía nada, de eso se encarga su nodo.
+     */
+    @Override
+    public boolean isCompresion() {
+        return false;
+    }
+
+    /**
+     * @return false: el cifrado, si lo hay, es cosa de la conexión con su nodo.
+     */
+    @Override
+    public boolean isCifrada() {
+        return false;
+    }
+
+    /**
+     * No hace nada: la conexión del usuario la lleva su nodo.
+     */
+    @Override
+    public void desconectar() {
+    }
+
+    /**
+     * @return Número del nodo al que está conectado.
+     */
+    int getNodo() {
+        return nodo;
+    }
+
+    Socket getEnlace() {
+        return enlace;
+    }
+
+    void setEnlace(Socket enlace) {
+        this.enlace = enlace;
+    }
+
+    /**
+     * Marca al usuario como desconectado, para que ninguna sala lo añada después.
+     */
+    void cerrar() {
+        abierta = false;
+    }
+}
@@ -0,0 +1,196 @@
+package chat.servidor;
+
+/**
+ * Trama ya codificada y lista para enviarse. Se codifica una sola vez por mensaje, en un buffer
+ * directo de solo lectura, y la misma instancia se encola para todos los destinatarios: cada
+ * escritor lee los bytes con su propia vista o con lecturas absolutas, sin copiar ni volver a
+ * codificar el mensaje por cada usuario. Si la sesión está cifrada, su escritor cifra la trama
+ * al escribirla, en su propio buffer, salvo que la trama se haya creado con {@link #enClaro(ByteBuffer)}.
+ *
+ * Las tramas de los mensajes de chat llevan además la cuenta de los destinatarios a los que aún no
+ * se han escrito: cuando se escribe (o se descarta) para el último, se anota en las {@link Metricas}
+ * el tiempo transcurrido desde que se recibió el mensaje.
+ *
+ * Una trama larga se puede comprimir con {@link #comprimida(int)} en otra trama que se encola en su
+ * lugar para los destinatarios que admiten compresión; también se comprime una sola vez para todos.
+ *
+ * La bienvenida, los avisos, los rechazos y las tramas que se envían en claro son tramas de control:
+ * la cola de salida no las descarta para hacer hueco a otras (ver {@link ColaSalida}).
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Compresion;
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+public final class TramaSalida {
+
+    // Bytes de la trama; la posición y el límite de este buffer nunca cambian
+    private final ByteBuffer contenido;
+
+    // true si la trama se envía sin cifrar aunque la sesión ya esté cifrada
+    private final boolean enClaro;
+
+    // true si la cola de salida no debe descartarla para hacer hueco a otras
+    private final boolean control;
+
+    // Destinatarios para los que aún no se ha escrito la trama (0 si no se mide) e instante
+    // (System.nanoTime) en que se recibió el mensaje
+    private volatile int pendientes;
+    private long recibida;
+
+    // Bytes que se ahorran cada vez que se escribe esta trama en lugar de la original sin comprimir
+    private int ahorro;
+
+    private static final AtomicIntegerFieldUpdater<TramaSalida> PENDIENTES =
+            AtomicIntegerFieldUpdater.newUpdater(TramaSalida.class, "pendientes");
+
+    /**
+     * @param contenido Trama completa en modo lectura, o varias seguidas como las del historial de
+     *        una sala. Se hace una copia de solo lectura.
+     */
+    public TramaSalida(ByteBuffer contenido) {
+        this(contenido, false, false);
+    }
+
+    private TramaSalida(ByteBuffer contenido, boolean enClaro, boolean control) {
+        this.contenido = contenido.asReadOnlyBuffer();
+        this.enClaro = enClaro;
+        this.control = control;
+    }
+
+    /**
+     * Crea una trama que se envía sin cifrar, como la respuesta con la clave pública del servidor,
+     * que tiene que salir en claro aunque la sesión pase a estar cifrada justo después de encolarla.
+     *
+     * @param contenido Trama completa en modo lectura.
+     * @return La trama lista para encolar.
+     */
+    public static TramaSalida enClaro(ByteBuffer contenido) {
+        return new TramaSalida(contenido, true, true);
+    }
+
+    /**
+     * Codifica una trama con una carga de texto y la hora actual como marca de tiempo.
+     *
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del usuario al que se refiere la trama, o {@link Protocolo#SERVIDOR}.
+     * @param secuencia Número de la trama dentro de las de su remitente.
+     * @param texto Carga de la trama.
+     * @return La trama lista para encolar.
+     */
+    public static TramaSalida deTexto(TipoTrama tipo, long remitente, long secuencia, String texto) {
+        boolean control = tipo == TipoTrama.BIENVENIDA || tipo == TipoTrama.AVISO || tipo == TipoTrama.RECHAZO;
+        return new TramaSalida(Protocolo.codificar(tipo, remitente, secuencia, Reloj.ahora(), texto), false, control);
+    }
+
+    /**
+     * Codifica un aviso del servidor para un usuario.
+     *
+     * @param tipo {@link TipoTrama#AVISO} o {@link TipoTrama#RECHAZO}.
+     * @param aviso Texto del aviso.
+     * @return La trama lista para enviar.
+     */
+    public static TramaSalida aviso(TipoTrama tipo, String aviso) {
+        return deTexto(tipo, Protocolo.SERVIDOR, 0, aviso);
+    }
+
+    /**
+     * Comprime la trama (o las tramas seguidas que contiene) en una trama
+     * {@link chat.util.TipoTrama#COMPRIMIDA}, que se puede encolar en su lugar para los
+     * destinatarios que la admiten.
+     *
+     * @param nivel Nivel de deflate, de 1 a 9.
+     * @return La trama comprimida, o null si comprimida no ocuparía menos.
+     */
+    TramaSalida comprimida(int nivel) {
+        ByteBuffer comprimida = Compresion.comprimir(contenido, nivel);
+        if (comprimida == null) {
+            return null;
+        }
+        TramaSalida trama = new TramaSalida(comprimida, enClaro, control);
+        trama.ahorro = longitud() - trama.longitud();
+        Metricas.tramaComprimida();
+        return trama;
+    }
+
+    /**
+     * Devuelve una vista propia de la trama, con su propia posición, para escribirla en un canal.
+     *
+     * @return Un buffer que comparte los bytes de la trama.
+     */
+    public ByteBuffer vista() {
+        return contenido.duplicate();
+    }
+
+    /**
+     * Copia una parte de la trama en un array sin modificar el estado de la trama.
+     *
+     * @param desde Posición dentro de la trama desde la que se copia.
+     * @param destino Array en el que se copian los bytes.
+     * @param posicion Posición del array en la que se empieza a escribir.
+     * @param cantidad Número de bytes que se copian.
+     */
+    public void copiar(int desde, byte[] destino, int posicion, int cantidad) {
+        contenido.get(contenido.position() + desde, destino, posicion, cantidad);
+    }
+
+    /**
+     * Empieza a medir la latencia de entrega de la trama. Se llama antes de encolarla para nadie.
+     *
+     * @param recibida Instante (System.nanoTime) en que se recibió el mensaje.
+     * @param destinatarios Número de sesiones en las que se va a encolar.
+     */
+    void medirEntrega(long recibida, int destinatarios) {
+        this.recibida = recibida;
+        this.pendientes = destinatarios;
+    }
+
+    /**
+     * Indica que la trama se ha escrito entera para uno de sus destinatarios.
+     */
+    public void escrita() {
+        Metricas.tramaEnviada();
+        if (ahorro > 0) {
+            Metricas.bytesAhorrados(ahorro);
+        }
+        completar();
+    }
+
+    /**
+     * Indica que la trama no se va a escribir para uno de sus destinatarios.
+     */
+    void descartada() {
+        Metricas.tramaDescartada();
+        completar();
+    }
+
+    private void completar() {
+        // La mayoría de las tramas no se miden: solo se lee el campo, sin operación atómica
+        if (pendientes > 0 && PENDIENTES.decrementAndGet(this) == 0) {
+            Metricas.entrega(System.nanoTime() - recibida);
+        }
+    }
+
+    /**
+     * @return true si es una trama de control, que la cola de salida nunca descarta para hacer hueco.
+     */
+    public boolean isControl() {
+        return control;
+    }
+
+    public boolean isEnClaro() {
+        return enClaro;
+    }
+
+    /**
+     * @return Número de bytes de la trama.
+     */
+    public int longitud() {
+        return contenido.remaining();
+    }
+}
@@ -0,0 +1,806 @@
+package chat.usuario;
+
+/**
+ * Conexión de un usuario con el servidor del chat, para usarla desde cualquier programa: la
+ * consola ({@link MainUsuario}) o las pruebas de carga. No escribe nada en la consola; lo que llega
+ * del servidor se entrega a un {@link Oyente}.
+ *
+ * Los envíos no esperan a la red: cada uno codifica su trama en el hilo que lo pide, la encola y
+ * devuelve un {@link CompletableFuture} que se completa cuando la trama se ha escrito en el socket
+ * (no cuando la recibe nadie). Un hilo escritor vacía la cola: cifra todas las tramas acumuladas
+ * en un mismo búfer y las escribe de una vez, así que muchos mensajes pequeños seguidos salen en
+ * pocas escrituras sin esperar la respuesta de ninguno.
+ *
+ * Si la conexión se pierde, el cliente la vuelve a abrir con el mismo nombre, esperando cada vez
+ * más entre intentos, vuelve a la sala en la que estaba y pide los mensajes de la sala posteriores
+ * al último que vio. Los mensajes que ya había recibido no se entregan dos veces. Lo que se envía
+ * mientras tanto espera en la cola; lo que estaba escribiéndose cuando se perdió la conexión se da
+ * por fallido. Los mensajes propios que el servidor repite en el historial tampoco se entregan: el
+ * usuario ya los tiene, porque los escribió él.
+ *
+ * Si no llega nada del servidor en un rato, el cliente envía un {@link TipoTrama#LATIDO} al que el
+ * servidor responde, aunque el usuario esté escribiendo (el servidor no le devuelve sus propios
+ * mensajes, así que escribir no demuestra que el servidor siga ahí); si no llega nada del servidor
+ * en tres latidos, se da la conexión por perdida. A los latidos del servidor el cliente responde
+ * con un {@link TipoTrama#ECO}.
+ *
+ * Al saludar, el cliente pide que los mensajes largos y el historial le lleguen comprimidos
+ * (salvo que se indique lo contrario con {@link #setCompresion(boolean)}) y los descomprime al
+ * recibirlos, así que el oyente siempre recibe las tramas originales.
+ *
+ * @author sdacatrinei
+ */
+
+import chat.util.Cifrado;
+import chat.util.Compresion;
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClienteChat implements AutoCloseable {
+
+    // Espera máxima para abrir la conexión y esperas mínima y máxima entre intentos de reconexión
+    private static final int ESPERA_CONEXION_MS = 5000;
+    private static final int REINTENTO_MINIMO_MS = 250;
+    private static final int REINTENTO_MAXIMO_MS = 8000;
+
+    // Tramas que se toman de la cola en cada escritura y tamaño del búfer en el que se cifran
+    private static final int LOTE_MAXIMO = 256;
+    private static final int TAMANO_ESCRITURA = 64 * 1024;
+
+    // Espera máxima al cerrar para que salgan las tramas pendientes
+    private static final int ESPERA_CIERRE_MS = 1000;
+
+    /**
+     * Recibe lo que llega del servidor y los cambios en la conexión. Todos los métodos se llaman
+     * desde el hilo lector del cliente, uno detrás de otro.
+     */
+    public interface Oyente {
+
+        /**
+         * Atiende una trama del servidor, ya descifrada. Los latidos, la bienvenida y los mensajes
+         * repetidos al reconectarse no se entregan.
+         *
+         * @param trama La trama; solo es válida durante esta llamada.
+         * @throws ProtocolException Si la carga no tiene el formato de su tipo; se trata como un
+         *         error de la conexión.
+         */
+        void alRecibir(TramaEntrante trama) throws ProtocolException;
+
+        /**
+         * La conexión se ha perdido y el cliente está intentando recuperarla.
+         */
+        default void alPerderConexion(String motivo) {
+        }
+
+        /**
+         * El cliente ha recuperado la conexión y ha vuelto a su sala.
+         */
+        default void alReconectar() {
+        }
+
+        /**
+         * El cliente se ha cerrado y ya no va a recibir nada más.
+         */
+        default void alCerrar(String motivo) {
+        }
+    }
+
+    /**
+     * Trama pendiente de escribir y el resultado que espera quien la envió.
+     */
+    private static final class Envio {
+        private final ByteBuffer trama;
+        private final CompletableFuture<Void> resultado = new CompletableFuture<>();
+        private final boolean ultimo; // El escritor cierra la conexión después de escribirla
+
+        private Envio(ByteBuffer trama, boolean ultimo) {
+            this.trama = trama;
+            this.ultimo = ultimo;
+        }
+    }
+
+    private final String host;
+    private final int puerto;
+    private final Oyente oyente;
+    private boolean cifrar = true;
+    private boolean compresion = true;
+    private int latidoMs = 15_000;
+    private boolean reconectar = true;
+
+    private final LinkedBlockingQueue<Envio> pendientes;
+    private final AtomicLong secuencia = new AtomicLong();
+
+    private volatile String nombre;
+    private volatile long id;
+    private volatile boolean cerrado;
+
+    // Conexión lista para escribir, o null mientras se abre o se recupera (protegida por this para esperarla)
+    private volatile Conexion conexion;
+
+    // Sala en la que está el usuario y mensajes vistos de cada sala (solo los usa el hilo lector)
+    private volatile String sala;
+    private final Map<String, Vistos> vistos = new HashMap<>();
+
+    // Identificadores que ha tenido el usuario en cada conexión, para reconocer sus propios mensajes
+    // en el historial (solo los usa el hilo lector una vez conectado)
+    private final Set<Long> idsPropios = new HashSet<>();
+
+    private Thread lector;
+    private Thread escritor;
+
+    /**
+     * Secuencias de los mensajes vistos de una sala, para no entregar dos veces los que se repiten
+     * al reconectarse (la sala repite los últimos al entrar y después llegan los que se pidieron).
+     * Guarda la mayor y cuáles de las {@link #VENTANA} anteriores han llegado.
+     */
+    private static final class Vistos {
+        private static final int VENTANA = 4096;
+        private final long[] marcas = new long[VENTANA / 64];
+        private long ultima;
+
+        /**
+         * Anota la secuencia de un mensaje recibido.
+         *
+         * @return false si ya se había anotado.
+         */
+        boolean anotar(long secuencia) {
+            if (secuencia > ultima) {
+                // Las posiciones entre la última y esta quedan libres para las secuencias que faltan
+                for (long s = Math.max(ultima + 1, secuencia - VENTANA + 1); s < secuencia; s++) {
+                    marcas[posicion(s) >>> 6] &= ~(1L << posicion(s));
+                }
+                ultima = secuencia;
+            } else if (secuencia <= ultima - VENTANA) {
+                return true; // Demasiado antigua para saberlo: se da por nueva
+            } else if ((marcas[posicion(secuencia) >>> 6] & (1L << posicion(secuencia))) != 0) {
+                return false;
+            }
+            marcas[posicion(secuencia) >>> 6] |= 1L << posicion(secuencia);
+            return true;
+        }
+
+        private static int posicion(long secuencia) {
+            return (int) Math.floorMod(secuencia, (long) VENTANA);
+        }
+    }
+
+    /**
+     * Una conexión abierta con el servidor. Solo la lee el hilo lector y, una vez publicada, solo
+     * escribe en ella el escritor.
+     */
+    private final class Conexion {
+        private final Socket socket = new Socket();
+        private final DataInputStream entrada;
+        private final OutputStream salida;
+        private final TramaEntrante recibida = new TramaEntrante();
+        private final TramaEntrante descifrada = new TramaEntrante();
+        private final TramaEntrante descomprimida = new TramaEntrante();
+        private final Compresion descompresion = new Compresion();
+        private final ByteBuffer bufferEscritura = ByteBuffer.allocate(TAMANO_ESCRITURA);
+        private Cifrado cifrado;
+        private long id;
+        private String rechazo;
+        private volatile long ultimaRecepcion = System.nanoTime(); // Última trama recibida (la anota el lector)
+        private long ultimoLatido = System.nanoTime(); // Último latido enviado (solo lo usa el escritor)
+
+        private Conexion() throws IOException {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, puerto), ESPERA_CONEXION_MS);
+                socket.setSoTimeout(3 * latidoMs);
+                entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                salida = socket.getOutputStream();
+            } catch (IOException ex) {
+                cerrar();
+                throw ex;
+            }
+        }
+
+        /**
+         * Acuerda la clave (si se cifra) y saluda con el nombre hasta que el servidor lo acepta o
+         * lo rechaza con un {@link TipoTrama#RECHAZO}. Los avisos de antes de la bienvenida, como
+         * el de la cola de espera, se entregan al oyente.
+         *
+         * @return null si el servidor ha aceptado el nombre, o el motivo por el que no.
+         */
+        private String saludar(String nombre) throws IOException {
+            if (cifrar) {
+                KeyPair par = Cifrado.nuevoParClaves();
+                escribirDirecto(Cifrado.tramaClave(par));
+                while (true) {
+                    recibida.leerDe(entrada);
+                    if (recibida.getTipo() == TipoTrama.CLAVE) {
+                        cifrado = Cifrado.acordar(par, recibida.bytes(), false);
+                        break;
+                    }
+                    if (recibida.getTipo() == TipoTrama.RECHAZO) {
+                        throw new IOException(recibida.texto());
+                    }
+                    oyente.alRecibir(recibida);
+                }
+            }
+            int marcas = compresion ? Protocolo.MARCA_COMPRESION : 0;
+            escribirDirecto(Protocolo.codificar(TipoTrama.HOLA, marcas, Protocolo.SERVIDOR, secuencia.incrementAndGet(),
+                    Reloj.ahora(), nombre));
+            while (id == 0 && rechazo == null) {
+                leer(this);
+            }
+            return rechazo;
+        }
+
+        /**
+         * Codifica y escribe una trama sin pasar por la cola. Solo se usa antes de publicar la conexión.
+         */
+        private void escribirDirecto(ByteBuffer trama) throws IOException {
+            poner(trama);
+            volcar();
+        }
+
+        /**
+         * Copia (y cifra, si la sesión va cifrada) una trama al búfer de escritura, que debe tener sitio.
+         */
+        private void poner(ByteBuffer trama) {
+            if (cifrado == null) {
+                bufferEscritura.put(trama);
+            } else {
+                cifrado.cifrar(trama, bufferEscritura);
+            }
+        }
+
+        private int longitud(ByteBuffer trama) {
+            return cifrado == null ? trama.remaining() : cifrado.longitudCifrada(trama.remaining());
+        }
+
+        /**
+         * Escribe en el socket todo lo acumulado en el búfer.
+         */
+        private void volcar() throws IOException {
+            if (bufferEscritura.position() > 0) {
+                salida.write(bufferEscritura.array(), 0, bufferEscritura.position());
+                bufferEscritura.clear();
+            }
+        }
+
+        /**
+         * Escribe un lote de tramas agrupándolas en el búfer; las que no caben en él salen solas.
+         */
+        private void escribir(List<Envio> lote) throws IOException {
+            for (Envio envio : lote) {
+                ByteBuffer trama = envio.trama.duplicate();
+                int longitud = longitud(trama);
+                if (longitud > bufferEscritura.remaining()) {
+                    volcar();
+                }
+                if (longitud <= bufferEscritura.remaining()) {
+                    poner(trama);
+                    continue;
+                }
+                ByteBuffer grande = ByteBuffer.allocate(longitud);
+                if (cifrado == null) {
+                    grande.put(trama);
+                } else {
+                    cifrado.cifrar(trama, grande);
+                }
+                salida.write(grande.array(), 0, grande.position());
+            }
+            volcar();
+        }
+
+        private void cerrar() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Ya estaba cerrada
+            }
+        }
+    }
+
+    /**
+     * @param host Nombre o dirección del servidor.
+     * @param puerto Puerto del servidor.
+     * @param oyente Quien recibe lo que llega del servidor.
+     * @param pendientesMaximo Tramas que pueden esperar en la cola de envío; al pasar de ahí los
+     *        envíos fallan enseguida.
+     */
+    public ClienteChat(String host, int puerto, Oyente oyente, int pendientesMaximo) {
+        this.host = host;
+        this.puerto = puerto;
+        this.oyente = oyente;
+        this.pendientes = new LinkedBlockingQueue<>(pendientesMaximo);
+    }
+
+    public ClienteChat(String host, int puerto, Oyente oyente) {
+        this(host, puerto, oyente, 10_000);
+    }
+
+    /**
+     * @param cifrar false para no acordar una clave con el servidor (solo si el servidor admite
+     *        sesiones en claro). Debe indicarse antes de conectar.
+     */
+    public void setCifrado(boolean cifrar) {
+        this.cifrar = cifrar;
+    }
+
+    /**
+     * @param compresion false para no pedir al servidor que comprima los mensajes largos y el
+     *        historial. Debe indicarse antes de conectar.
+     */
+    public void setCompresion(boolean compresion) {
+        this.compresion = compresion;
+    }
+
+    /**
+     * @param latidoMs Tiempo sin recibir nada del servidor tras el que se envía un latido. Debe
+     *        indicarse antes de conectar.
+     */
+    public void setLatidoMs(int latidoMs) {
+        this.latidoMs = latidoMs;
+    }
+
+    /**
+     * @param reconectar false para cerrar el cliente en cuanto se pierda la conexión.
+     */
+    public void setReconexion(boolean reconectar) {
+        this.reconectar = reconectar;
+    }
+
+    /**
+     * Abre la conexión y saluda con el nombre. Si el servidor está lleno, espera aquí su turno.
+     * Si el nombre no se acepta se puede volver a llamar con otro.
+     *
+     * @param nombre Nombre del usuario.
+     * @return null si el servidor ha aceptado el nombre, o el motivo por el que no.
+     * @throws IOException Si no se puede conectar con el servidor o este rechaza la conexión.
+     */
+    public String conectar(String nombre) throws IOException {
+        Conexion nueva = new Conexion();
+        String rechazo;
+        try {
+            rechazo = nueva.saludar(nombre);
+        } catch (IOException ex) {
+            nueva.cerrar();
+            throw ex;
+        }
+        if (rechazo != null) {
+            nueva.cerrar();
+            return rechazo;
+        }
+        this.nombre = nombre;
+        this.id = nueva.id;
+        idsPropios.add(nueva.id);
+        publicar(nueva);
+        lector = Thread.ofVirtual().name("cliente-lector-" + nombre).start(() -> leerSiempre(nueva));
+        escritor = Thread.ofVirtual().name("cliente-escritor-" + nombre).start(this::escribirSiempre);
+        return null;
+    }
+
+    /**
+     * Envía un mensaje a la sala en la que está el usuario.
+     *
+     * @throws IllegalArgumentException Si el texto supera el tamaño máximo de una trama.
+     */
+    public CompletableFuture<Void> enviarMensaje(String texto) {
+        return encolar(codificar(TipoTrama.MENSAJE, texto), false);
+    }
+
+    /**
+     * Envía un mensaje que solo recibe el usuario con ese nombre.
+     *
+     * @throws IllegalArgumentException Si el texto supera el tamaño máximo de una trama.
+     */
+    public CompletableFuture<Void> enviarPrivado(String destinatario, String texto) {
+        return encolar(Protocolo.codificarConNombre(TipoTrama.PRIVADO, Protocolo.SERVIDOR, secuencia.incrementAndGet(),
+                Reloj.ahora(), destinatario.getBytes(StandardCharsets.UTF_8), texto.getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    /**
+     * Pide cambiar de sala; el servidor lo confirma con una trama {@link TipoTrama#UNIRSE} del
+     * propio usuario.
+     */
+    public CompletableFuture<Void> unirse(String sala) {
+        return encolar(codificar(TipoTrama.UNIRSE, sala), false);
+    }
+
+    /**
+     * Pide volver a la sala general.
+     */
+    public CompletableFuture<Void> dejar() {
+        return encolar(codificar(TipoTrama.DEJAR, ""), false);
+    }
+
+    /**
+     * Pide los mensajes de la sala actual posteriores a una secuencia.
+     */
+    public CompletableFuture<Void> pedirHistorial(long posterior) {
+        return encolar(codificar(TipoTrama.HISTORIAL, Long.toString(posterior)), false);
+    }
+
+    /**
+     * @return El identificador que el servidor ha asignado al usuario en la conexión actual (cambia
+     *         al reconectarse).
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return La sala en la que está el usuario, o null si el servidor todavía no lo ha confirmado.
+     */
+    public String getSala() {
+        return sala;
+    }
+
+    /**
+     * @return true si la conexión está abierta y lista para enviar.
+     */
+    public boolean isConectado() {
+        return conexion != null;
+    }
+
+    /**
+     * Avisa al servidor de que el usuario se va, espera un poco a que salga lo pendiente y cierra
+     * la conexión. Lo que no haya salido para entonces se da por fallido.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (cerrado) {
+                return;
+            }
+            cerrado = true;
+            notifyAll();
+        }
+        pendientes.offer(new Envio(codificar(TipoTrama.SALIR, ""), true));
+        try {
+            if (escritor != null) {
+                escritor.join(ESPERA_CIERRE_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Conexion actual = conexion;
+        if (actual != null) {
+            actual.cerrar();
+        }
+        if (escritor != null) {
+            escritor.interrupt();
+            lector.interrupt();
+        }
+    }
+
+    private ByteBuffer codificar(TipoTrama tipo, String texto) {
+        return Protocolo.codificar(tipo, Protocolo.SERVIDOR, secuencia.incrementAndGet(), Reloj.ahora(), texto);
+    }
+
+    private CompletableFuture<Void> encolar(ByteBuffer trama, boolean ultimo) {
+        if (cerrado) {
+            return CompletableFuture.failedFuture(new IOException("El cliente está cerrado"));
+        }
+        Envio envio = new Envio(trama, ultimo);
+        if (!pendientes.offer(envio)) {
+            return CompletableFuture.failedFuture(new IOException("Demasiados envíos pendientes"));
+        }
+        return envio.resultado;
+    }
+
+    // ---- Hilo lector ----
+
+    /**
+     * Lee de la conexión hasta que se pierde y entonces la recupera, hasta que se cierre el cliente.
+     */
+    private void leerSiempre(Conexion actual) {
+        String motivo;
+        while (true) {
+            try {
+                while (true) {
+                    leer(actual);
+                }
+            } catch (SocketTimeoutException ex) {
+                motivo = "el servidor no responde";
+            } catch (IOException ex) {
+                motivo = ex.getMessage() == null ? "conexión cerrada" : ex.getMessage();
+            }
+            retirar(actual);
+            actual.cerrar();
+            if (cerrado || !reconectar) {
+                break;
+            }
+            oyente.alPerderConexion(motivo);
+            actual = recuperar();
+            if (actual == null) {
+                motivo = "cliente cerrado";
+                break;
+            }
+            oyente.alReconectar();
+        }
+        synchronized (this) {
+            cerrado = true;
+            notifyAll();
+        }
+        oyente.alCerrar(motivo);
+    }
+
+    /**
+     * Lee la siguiente trama del servidor y atiende todas las que lleve dentro.
+     */
+    private void leer(Conexion actual) throws IOException {
+        actual.recibida.leerDe(actual.entrada);
+        actual.ultimaRecepcion = System.nanoTime();
+        if (actual.cifrado == null) {
+            entregar(actual, actual.recibida);
+            return;
+        }
+        if (actual.recibida.getTipo() != TipoTrama.CIFRADA) {
+            throw new ProtocolException("Trama sin cifrar en una sesión cifrada");
+        }
+        // El historial de una sala llega con varias tramas dentro de la misma
+        actual.cifrado.descifrarVarias(actual.recibida);
+        while (actual.cifrado.siguiente(actual.descifrada)) {
+            entregar(actual, actual.descifrada);
+        }
+    }
+
+    /**
+     * Atiende una trama o, si es una trama comprimida, todas las que lleva dentro.
+     */
+    private void entregar(Conexion actual, TramaEntrante trama) throws ProtocolException {
+        if (trama.getTipo() != TipoTrama.COMPRIMIDA) {
+            atender(actual, trama);
+            return;
+        }
+        actual.descompresion.descomprimir(trama);
+        while (actual.descompresion.siguiente(actual.descomprimida)) {
+            atender(actual, actual.descomprimida);
+        }
+    }
+
+    /**
+     * Atiende una trama: anota la bienvenida, la sala y el último mensaje visto de cada sala, y
+     * entrega al oyente lo que no esté repetido ni sea un mensaje propio repetido en el historial.
+     */
+    private void atender(Conexion actual, TramaEntrante trama) throws ProtocolException {
+        TipoTrama tipo = trama.getTipo();
+        if (tipo == TipoTrama.LATIDO) {
+            // El servidor comprueba que seguimos aquí; si la cola está llena, ya le llegará otra cosa
+            encolar(codificar(TipoTrama.ECO, ""), false);
+            return;
+        }
+        if (tipo == null || tipo == TipoTrama.ECO) {
+            return;
+        }
+        if (actual.id == 0) {
+            switch (tipo) {
+                case BIENVENIDA -> {
+                    actual.id = trama.getRemitente();
+                    return;
+                }
+                case RECHAZO -> {
+                    // Antes de la bienvenida, un rechazo es la respuesta al saludo; los avisos
+                    // (como el de la cola de espera) se entregan sin más
+                    actual.rechazo = trama.texto();
+                    return;
+                }
+                default -> {
+                }
+            }
+        }
+        switch (tipo) {
+            case UNIRSE -> {
+                if (trama.getRemitente() == actual.id) {
+                    sala = trama.texto();
+                }
+            }
+            case MENSAJE, HISTORIAL -> {
+                // Solo se descartan las repeticiones del historial: un mensaje en directo con una
+                // secuencia ya vista viene de un servidor que ha vuelto a empezar a numerar
+                String actualSala = sala;
+                if (actualSala != null
+                        && !vistos.computeIfAbsent(actualSala, clave -> new Vistos()).anotar(trama.getSecuencia())
+                        && tipo == TipoTrama.HISTORIAL) {
+                    return;
+                }
+                // El servidor no devuelve al autor sus mensajes, así que los propios solo llegan
+                // en el historial; ya quedan anotados como vistos
+                if (tipo == TipoTrama.HISTORIAL && idsPropios.contains(trama.getRemitente())
+                        && nombre.equals(trama.nombre())) {
+                    return;
+                }
+            }
+            default -> {
+            }
+        }
+        oyente.alRecibir(trama);
+    }
+
+    /**
+     * Vuelve a abrir la conexión, esperando cada vez más entre intentos, y recupera la sala y los
+     * mensajes perdidos antes de publicarla.
+     *
+     * @return La conexión nueva, o null si el cliente se ha cerrado mientras tanto.
+     */
+    private Conexion recuperar() {
+        String destino = sala;
+        int espera = REINTENTO_MINIMO_MS;
+        while (!cerrado) {
+            Conexion nueva = null;
+            try {
+                nueva = new Conexion();
+                if (nueva.saludar(nombre) == null) {
+                    id = nueva.id;
+                    idsPropios.add(nueva.id);
+                    reanudar(nueva, destino);
+                    publicar(nueva);
+                    return nueva;
+                }
+            } catch (IOException ex) {
+                // Lo intentamos de nuevo
+            }
+            if (nueva != null) {
+                nueva.cerrar();
+            }
+            try {
+                Thread.sleep(espera);
+            } catch (InterruptedException ex) {
+                return null;
+            }
+            espera = Math.min(espera * 2, REINTENTO_MAXIMO_MS);
+        }
+        return null;
+    }
+
+    /**
+     * Espera a que el servidor meta al usuario en la sala general, lo lleva a la sala en la que
+     * estaba y le pide los mensajes que se ha perdido en ella.
+     */
+    private void reanudar(Conexion nueva, String destino) throws IOException {
+        sala = null;
+        while (sala == null) {
+            leer(nueva);
+        }
+        if (destino != null && !destino.equals(sala)) {
+            nueva.escribirDirecto(codificar(TipoTrama.UNIRSE, destino));
+            while (!destino.equals(sala)) {
+                leer(nueva);
+            }
+        }
+        Vistos anteriores = vistos.get(sala);
+        if (anteriores != null && anteriores.ultima > 0) {
+            nueva.escribirDirecto(codificar(TipoTrama.HISTORIAL, Long.toString(anteriores.ultima)));
+        }
+    }
+
+    private synchronized void publicar(Conexion nueva) {
+        conexion = nueva;
+        notifyAll();
+    }
+
+    private synchronized void retirar(Conexion vieja) {
+        if (conexion == vieja) {
+            conexion = null;
+        }
+    }
+
+    // ---- Hilo escritor ----
+
+    /**
+     * Escribe las tramas encoladas por lotes y, si hace un latido que no llega nada del servidor,
+     * añade un latido al lote (o lo envía solo si no hay nada que escribir).
+     */
+    private void escribirSiempre() {
+        List<Envio> lote = new ArrayList<>();
+        try {
+            while (true) {
+                Envio primero = pendientes.poll(esperaLatido(conexion), TimeUnit.NANOSECONDS);
+                if (primero == null) {
+                    Conexion actual = conexion;
+                    if (actual != null && esperaLatido(actual) == 0) {
+                        anadirLatido(actual, lote);
+                        escribirLote(actual, lote);
+                    }
+                    continue;
+                }
+                lote.add(primero);
+                pendientes.drainTo(lote, LOTE_MAXIMO - 1);
+                Conexion actual = esperarConexion();
+                if (actual == null) {
+                    fallar(lote, "El cliente está cerrado");
+                    break;
+                }
+                boolean ultimo = lote.stream().anyMatch(envio -> envio.ultimo);
+                if (!ultimo && esperaLatido(actual) == 0) {
+                    anadirLatido(actual, lote);
+                }
+                escribirLote(actual, lote);
+                if (ultimo) {
+                    actual.cerrar();
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            fallar(lote, "El cliente está cerrado");
+        }
+        pendientes.drainTo(lote);
+        fallar(lote, "El cliente está cerrado");
+    }
+
+    /**
+     * @return Nanosegundos que faltan para tener que enviar un latido por la conexión (0 si ya
+     *         toca), contando desde lo último que llegó del servidor o el último latido enviado.
+     *         Sin conexión, un latido entero.
+     */
+    private long esperaLatido(Conexion actual) {
+        long latidoNanos = TimeUnit.MILLISECONDS.toNanos(latidoMs);
+        if (actual == null) {
+            return latidoNanos;
+        }
+        long ahora = System.nanoTime();
+        long silencio = Math.min(ahora - actual.ultimaRecepcion, ahora - actual.ultimoLatido);
+        return Math.max(0, latidoNanos - silencio);
+    }
+
+    private void anadirLatido(Conexion actual, List<Envio> lote) {
+        lote.add(new Envio(codificar(TipoTrama.LATIDO, ""), false));
+        actual.ultimoLatido = System.nanoTime();
+    }
+
+    /**
+     * Escribe un lote y completa el resultado de cada trama. Si falla, las da todas por fallidas
+     * y cierra la conexión, que el hilo lector se encargará de recuperar.
+     */
+    private void escribirLote(Conexion actual, List<Envio> lote) {
+        try {
+            actual.escribir(lote);
+            for (Envio envio : lote) {
+                envio.resultado.complete(null);
+            }
+        } catch (IOException ex) {
+            for (Envio envio : lote) {
+                envio.resultado.completeExceptionally(ex);
+            }
+            actual.cerrar();
+        }
+        lote.clear();
+    }
+
+    /**
+     * Espera a que haya una conexión publicada.
+     *
+     * @return La conexión, o null si el cliente se ha cerrado sin ninguna abierta.
+     */
+    private synchronized Conexion esperarConexion() throws InterruptedException {
+        while (conexion == null && !cerrado) {
+            wait();
+        }
+        return conexion;
+    }
+
+    private static void fallar(List<Envio> lote, String motivo) {
+        for (Envio envio : lote) {
+            envio.resultado.completeExceptionally(new IOException(motivo));
+        }
+        lote.clear();
+    }
+}
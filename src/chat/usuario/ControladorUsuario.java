@@ -3,40 +3,104 @@ package chat.usuario;
 /**
  * Esta clase controla la conexión y la comunicación de cada usuario conectado al servidor.
  * Maneja la recepción y el envío de mensajes, la desconexión y la notificación a otros usuarios conectados.
- * Cada instancia de esta clase se ejecuta en un hilo, permitiendo que múltiples usuarios interactúen simultáneamente.
+ * Cada instancia es una tarea (Runnable) que el servidor ejecuta en su propio hilo, de plataforma o virtual,
+ * permitiendo que múltiples usuarios interactúen simultáneamente. Los mensajes para el usuario no se
+ * escriben desde el hilo de quien los envía: se encolan en su {@link ColaSalida} y un segundo hilo de
+ * la sesión los escribe en el socket. Los mensajes viajan en tramas binarias ({@link Protocolo}),
+ * cifradas con la clave que se acuerda antes del saludo ({@link Cifrado}): el hilo lector descifra
+ * lo que llega y el escritor cifra cada trama al copiarla a su búfer. Los mensajes de chat solo se
+ * reenvían a los usuarios de la misma sala ({@link Salas}), en el hilo que reparte los de esa sala.
+ * Cada trama leída pasa antes por la {@link LimiteEntrada.Cuota} de la sesión: si el usuario envía
+ * demasiado deprisa, el hilo lector espera antes de atenderla, la descarta o cierra la conexión.
  * 
  * @author sdacatrinei
  */
 
+import chat.servidor.ColaSalida;
+import chat.servidor.LimiteEntrada;
+import chat.servidor.MainServidor;
+import chat.servidor.Metricas;
+import chat.servidor.RegistroSesiones;
+import chat.servidor.Salas;
+import chat.servidor.Sesion;
+import chat.servidor.TramaSalida;
+import chat.util.Cifrado;
+import chat.util.Protocolo;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.KeyPair;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
-public class ControladorUsuario extends Thread {
+public class ControladorUsuario implements Runnable, Sesion {
 
+    private final long id; // Identificador de la sesión, que viaja como remitente de sus mensajes
     private Socket socket; // Socket para la comunicación con el usuario
-    private DataInputStream inputStream; // Flujo de entrada para recibir mensajes
-    private DataOutputStream outputStream; // Flujo de salida para enviar mensajes
-    private List<ControladorUsuario> usuariosConectados; // Lista de todos los usuarios conectados
-    private String nombreUsuario; // Nombre del usuario conectado
+    private DataInputStream inputStream; // Flujo de entrada para recibir tramas
+    private TramaEntrante entrante = new TramaEntrante(); // Trama recibida, reutilizada en cada lectura
+    private volatile Cifrado cifrado; // Cifrado acordado con el usuario, o null si la sesión va en claro
+    private TramaEntrante descifrada = new TramaEntrante(); // Trama descifrada, reutilizada en cada lectura
+    private boolean cifradoObligatorio; // Si es true se rechaza a los usuarios que saludan sin cifrar
+    private OutputStream outputStream; // Flujo de salida para enviar mensajes (solo lo usa el escritor)
+    private byte[] bufferEscritura = new byte[8192]; // Donde el escritor agrupa los mensajes antes de enviarlos
+    private List<TramaSalida> agrupadas = new ArrayList<>(); // Tramas copiadas al búfer en la escritura en curso
+    private ColaSalida colaSalida; // Mensajes pendientes de enviar al usuario
+    private LimiteEntrada.Cuota cuota; // Límites de lo que puede enviar el usuario (solo la usa el lector)
+    private Executor hilos; // Ejecutor con el que se lanza el hilo escritor
+    private final CountDownLatch escritorTerminado = new CountDownLatch(1); // Se abre cuando termina el hilo escritor
+    private int cierreMs; // Tiempo máximo que se espera al cerrar a que se envíe lo pendiente
+    private RegistroSesiones<ControladorUsuario> usuariosConectados; // Registro de todos los usuarios conectados
+    private Salas salas; // Salas del chat, para reenviar los mensajes a los usuarios de la misma sala
+    private volatile String nombreUsuario; // Nombre del usuario conectado
+    private volatile long ultimaLectura = System.nanoTime(); // Cuándo se recibió la última trama (System.nanoTime)
+    private volatile boolean compresion; // Si el usuario admite tramas comprimidas (lo indica al saludar)
+    private Consumer<ControladorUsuario> alTerminar; // Acción que se ejecuta cuando termina la sesión
 
     /**
      * Constructor de la clase, inicializa los flujos de entrada y salida del socket del usuario.
      * 
+     * @param id Identificador de la sesión.
      * @param socket Conexión del cliente.
-     * @param usuariosConectados Lista de usuarios conectados para poder reenviar mensajes.
+     * @param usuariosConectados Registro de usuarios conectados para avisarles de las conexiones.
+     * @param salas Salas del chat, entre cuyos miembros se reenvían los mensajes.
+     * @param colaSalida Cola en la que se acumulan los mensajes pendientes de enviar al usuario.
+     * @param cuota Límites de envío de la sesión; el servidor la libera cuando termina.
+     * @param hilos Ejecutor en el que se lanza el hilo que escribe los mensajes en el socket.
+     * @param cifradoObligatorio true si se rechaza a los usuarios que saludan sin haber acordado una clave.
+     * @param cierreMs Tiempo máximo que se espera al cerrar la conexión a que se envíen los mensajes pendientes.
+     * @param alTerminar Acción que se ejecuta cuando el usuario se desconecta, por cualquier motivo.
      */
-    public ControladorUsuario(Socket socket, List<ControladorUsuario> usuariosConectados) {
+    public ControladorUsuario(long id, Socket socket, RegistroSesiones<ControladorUsuario> usuariosConectados,
+            Salas salas, ColaSalida colaSalida, LimiteEntrada.Cuota cuota, Executor hilos, boolean cifradoObligatorio,
+            int cierreMs, Consumer<ControladorUsuario> alTerminar) {
+        this.id = id;
+        this.cifradoObligatorio = cifradoObligatorio;
         this.socket = socket;
         this.usuariosConectados = usuariosConectados;
+        this.salas = salas;
+        this.colaSalida = colaSalida;
+        this.cuota = cuota;
+        this.hilos = hilos;
+        this.cierreMs = cierreMs;
+        this.alTerminar = alTerminar;
         try {
             // Inicializa los flujos de datos para la comunicación con el cliente
-            this.inputStream = new DataInputStream(socket.getInputStream());
-            this.outputStream = new DataOutputStream(socket.getOutputStream());
+            this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.outputStream = socket.getOutputStream();
         } catch (IOException ex) {
             // Si ocurre un error al crear los flujos, lo mostramos en consola
             System.out.println("Error al crear el ManejadorUsuario: " + ex.getMessage());
@@ -45,53 +109,192 @@ public class ControladorUsuario extends Thread {
 
     @Override
     public void run() {
+        // Lanzamos el hilo que escribirá en el socket los mensajes encolados para este usuario
+        hilos.execute(this::escribirPendientes);
         try {
-            // Leer el nombre del usuario que se conecta
-            nombreUsuario = inputStream.readUTF();
+            // Antes del saludo el usuario puede enviar su clave pública para cifrar la sesión
+            TramaEntrante trama = leerTrama();
+            if (trama.getTipo() == TipoTrama.CLAVE) {
+                acordarCifrado(trama);
+                trama = leerTrama();
+            }
+            // Leer el saludo con el nombre del usuario que se conecta
+            if (trama.getTipo() != TipoTrama.HOLA) {
+                throw new IOException("Conexión sin saludo inicial");
+            }
+            if (cifradoObligatorio && cifrado == null) {
+                // Todavía no se ha encolado nada para este usuario, así que podemos escribir directamente
+                TramaSalida rechazo = TramaSalida.aviso(TipoTrama.RECHAZO, MainServidor.AVISO_SIN_CIFRAR);
+                Channels.newChannel(outputStream).write(rechazo.vista());
+                System.out.println("[" + obtenerHora() + "] Conexión sin cifrar rechazada.");
+                cerrarConexion();
+                return;
+            }
+            // Si el nombre no es válido o ya lo usa otro, se le avisa y se espera otro saludo
+            String rechazo;
+            while ((rechazo = usuariosConectados.reservarNombre(this, trama.texto())) != null) {
+                enviar(TramaSalida.aviso(TipoTrama.RECHAZO, rechazo));
+                trama = leerTrama();
+                if (trama.getTipo() != TipoTrama.HOLA) {
+                    throw new IOException("Conexión sin saludo inicial");
+                }
+            }
+            nombreUsuario = trama.texto();
+            compresion = (trama.getMarcas() & Protocolo.MARCA_COMPRESION) != 0;
             System.out.println("[" + obtenerHora() + "] Usuario " + nombreUsuario + " listo para chatear.");
-            enviarMensajeConexion(); // Notificar a los demás usuarios que este usuario se ha conectado
+            usuariosConectados.anunciarEntrada(this); // Presentar al usuario y notificar a los demás
+            salas.entrar(this); // Todos empiezan en la sala general
 
             while (true) {
-                // Leer los mensajes enviados por el usuario
-                String mensaje = inputStream.readUTF();
-                if (mensaje.equals("salir()")) {
-                    // Si el mensaje es "salir()", cerramos la conexión
+                // Leer las tramas enviadas por el usuario
+                trama = leerTrama();
+                if (trama.getTipo() == TipoTrama.SALIR) {
+                    // Si el usuario abandona el chat, cerramos la conexión
                     cerrarConexion();
                     break;
                 }
+                if (trama.getTipo() == TipoTrama.UNIRSE) {
+                    salas.unirse(this, trama.texto()); // Cambiar a otra sala
+                    continue;
+                }
+                if (trama.getTipo() == TipoTrama.DEJAR) {
+                    salas.dejar(this); // Volver a la sala general
+                    continue;
+                }
+                if (trama.getTipo() == TipoTrama.HISTORIAL) {
+                    salas.historial(this, trama.texto()); // Mensajes de la sala que se ha perdido
+                    continue;
+                }
+                if (trama.getTipo() == TipoTrama.LATIDO) {
+                    enviar(TramaSalida.aviso(TipoTrama.ECO, "")); // Respondemos para que sepa que seguimos aquí
+                    continue;
+                }
+                if (trama.getTipo() == TipoTrama.PRIVADO) {
+                    Metricas.mensajeRecibido();
+                    enviarPrivado(trama.nombre(), trama.textoTrasNombre()); // Solo para el destinatario
+                    continue;
+                }
+                if (trama.getTipo() != TipoTrama.MENSAJE) {
+                    continue; // Tramas que el servidor no atiende: se ignoran
+                }
 
-                // Mostrar el mensaje recibido en el servidor y reenviarlo a los demás usuarios
-                mostrarMensaje(nombreUsuario, mensaje);
-                reenviarMensaje(nombreUsuario, mensaje);
+                // Mostrar el mensaje recibido en el servidor y reenviarlo a los demás usuarios de su sala
+                Metricas.mensajeRecibido();
+                mostrarMensaje(nombreUsuario, trama.texto());
+                reenviarMensaje(trama);
             }
         } catch (IOException ex) {
             // Si ocurre un error o el usuario se desconecta inesperadamente, lo mostramos y cerramos la conexión
+            if (ex instanceof ProtocolException) {
+                System.out.println("[" + obtenerHora() + "] Trama no válida de " + nombreUsuario + ": " + ex.getMessage()
+                        + "; se cierra la conexión.");
+            }
             System.out.println("[" + obtenerHora() + "] " + nombreUsuario + " se ha desconectado inesperadamente.");
             cerrarConexion();
+        } finally {
+            // Avisamos al servidor de que la sesión ha terminado
+            alTerminar.accept(this);
         }
     }
 
     /**
-     * Método que reenvía el mensaje a todos los usuarios conectados, excluyendo al que envió el mensaje.
-     * 
-     * @param usuario Nombre del usuario que envió el mensaje.
-     * @param mensaje El mensaje que se desea reenviar.
+     * Lee la siguiente trama del usuario que cumple sus límites de envío y, si la sesión está
+     * cifrada, la descifra. Las tramas que se descartan por superar los límites se saltan.
+     *
+     * @return La trama recibida; es válida hasta la siguiente lectura.
      */
-    private void reenviarMensaje(String usuario, String mensaje) {
-        String mensajeFormateado = "[" + obtenerHora() + "] " + usuario + ": " + mensaje;
-        // Recorremos la lista de usuarios conectados y les enviamos el mensaje
-        for (ControladorUsuario usuarioConectado : usuariosConectados) {
+    private TramaEntrante leerTrama() throws IOException {
+        // La longitud se comprueba antes de leer la carga, para no reservar un búfer enorme
+        entrante.leerDe(inputStream, cuota.getTramaMaxima());
+        ultimaLectura = System.nanoTime();
+        Metricas.bytesRecibidos(entrante.longitud());
+        long espera = cuota.admitir(entrante.longitud());
+        while (espera == LimiteEntrada.RECHAZADA) {
+            descartarTrama();
+            entrante.leerDe(inputStream, cuota.getTramaMaxima());
+            ultimaLectura = System.nanoTime();
+            Metricas.bytesRecibidos(entrante.longitud());
+            espera = cuota.admitir(entrante.longitud());
+        }
+        if (espera > 0) {
+            // Mientras esperamos no leemos nada más, así que el socket frena al usuario
             try {
-                // Verificamos que el socket del usuario esté abierto y activo antes de enviar el mensaje
-                if (usuarioConectado.socket != null && !usuarioConectado.socket.isClosed()) {
-                    usuarioConectado.outputStream.writeUTF(mensajeFormateado);
-                    usuarioConectado.outputStream.flush(); // Aseguramos que el mensaje se envíe inmediatamente
-                }
-            } catch (IOException ex) {
-                // Si ocurre un error al reenviar el mensaje, lo mostramos en consola
-                System.out.println("Error al reenviar mensaje: " + ex.getMessage());
+                TimeUnit.NANOSECONDS.sleep(espera);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Lectura interrumpida");
             }
         }
+        Metricas.tramaRecibida();
+        if (cifrado == null) {
+            return entrante;
+        }
+        if (entrante.getTipo() != TipoTrama.CIFRADA) {
+            throw new ProtocolException("Trama sin cifrar en una sesión cifrada");
+        }
+        cifrado.descifrar(entrante, descifrada);
+        return descifrada;
+    }
+
+    /**
+     * Salta una trama que supera el límite de envío, o cierra la sesión si así está configurado.
+     * Al usuario se le avisa solo de la primera de cada racha.
+     */
+    private void descartarTrama() throws ProtocolException {
+        if (cuota.getExceso() == LimiteEntrada.Exceso.DESCONECTAR) {
+            throw new ProtocolException("supera el límite de envío");
+        }
+        if (cifrado != null) {
+            cifrado.saltar(); // Para que la siguiente trama se descifre con su nonce
+        }
+        if (cuota.avisar()) {
+            enviar(TramaSalida.aviso(TipoTrama.AVISO, MainServidor.AVISO_LIMITE));
+        }
+    }
+
+    /**
+     * Responde a la clave pública del usuario con la del servidor y pasa a cifrar la sesión.
+     * La respuesta sale en claro; todo lo que se encole después sale cifrado.
+     */
+    private void acordarCifrado(TramaEntrante trama) throws ProtocolException {
+        KeyPair par = Cifrado.nuevoParClaves();
+        Cifrado acordado = Cifrado.acordar(par, trama.bytes(), true);
+        enviar(TramaSalida.enClaro(Cifrado.tramaClave(par)));
+        cifrado = acordado;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getNombreUsuario() {
+        return nombreUsuario;
+    }
+
+    /**
+     * Método que reenvía el mensaje a los usuarios de la sala del emisor, excluyendo al que envió el mensaje.
+     * 
+     * @param mensaje La trama recibida del usuario; su carga se copia sin decodificarla.
+     */
+    private void reenviarMensaje(TramaEntrante mensaje) {
+        // El hilo de la sala numera el mensaje, lo guarda y encola la misma trama para cada miembro salvo el emisor
+        salas.difundir(this, mensaje);
+    }
+
+    /**
+     * Método que entrega un mensaje privado buscando al destinatario por su nombre, sin pasar por
+     * el resto de usuarios. Si no está conectado, se avisa al emisor.
+     *
+     * @param destinatario Nombre del destinatario.
+     * @param texto El mensaje.
+     */
+    private void enviarPrivado(String destinatario, String texto) {
+        if (!usuariosConectados.enviarPrivado(this, destinatario, texto)) {
+            enviar(TramaSalida.aviso(TipoTrama.AVISO, "No hay ningún usuario conectado llamado " + destinatario + "."));
+            return;
+        }
+        MainServidor.registrarMensaje("[" + obtenerHora() + "] " + nombreUsuario + " → @" + destinatario + ": " + texto);
     }
 
     /**
@@ -101,67 +304,181 @@ public class ControladorUsuario extends Thread {
      * @param mensaje El mensaje que se desea mostrar.
      */
     private void mostrarMensaje(String usuario, String mensaje) {
-        // Imprime en consola el mensaje con la hora y el nombre del usuario
-        System.out.println("[" + obtenerHora() + "] " + usuario + ": " + mensaje);
+        // Registra el mensaje con la hora y el nombre del usuario (en consola salvo "--sin-eco-mensajes")
+        MainServidor.registrarMensaje("[" + obtenerHora() + "] #" + salas.salaDe(this) + " " + usuario + ": " + mensaje);
+    }
+
+    /**
+     * Método que notifica a los demás usuarios cuando un usuario se desconecta.
+     */
+    private void enviarMensajeDesconexion() {
+        if (nombreUsuario != null) {
+            usuariosConectados.anunciarSalida(this); // No se envía al usuario que se desconecta
+        }
+    }
+
+    @Override
+    public void enviar(TramaSalida trama) {
+        // El emisor puede esperar si la política es de contrapresión; si la cola no admite
+        // la trama, desconectamos a este usuario por no leer sus mensajes
+        if (!colaSalida.encolar(trama, true) && !socket.isClosed()) {
+            System.out.println("[" + obtenerHora() + "] " + nombreUsuario
+                    + " no lee sus mensajes a tiempo; se le desconecta (" + colaSalida.resumen() + ").");
+            cerrarSocket();
+        }
+    }
+
+    @Override
+    public ColaSalida getColaSalida() {
+        return colaSalida;
+    }
+
+    @Override
+    public long getUltimaLectura() {
+        return ultimaLectura;
+    }
+
+    @Override
+    public boolean isCompresion() {
+        return compresion;
+    }
+
+    @Override
+    public boolean isCifrada() {
+        return cifrado != null;
     }
 
     /**
-     * Método que notifica a los demás usuarios cuando un nuevo usuario se conecta.
+     * Cierra el socket; el hilo lector falla al leer y da de baja la sesión.
      */
-    private void enviarMensajeConexion() {
-        String mensajeConexion = "[" + obtenerHora() + "] " + nombreUsuario + " se ha conectado";
-        reenviarNotificacion(mensajeConexion); // Reenvía la notificación a todos los usuarios
+    @Override
+    public void desconectar() {
+        cerrarSocket();
     }
 
     /**
-     * Método que notifica a los demás usuarios cuando un usuario se desconecta.
+     * @return Los límites de envío de la sesión.
      */
-    private void enviarMensajeDesconexion() {
-        String mensajeDesconexion = "[" + obtenerHora() + "] " + nombreUsuario + " se ha desconectado";
-        reenviarNotificacion(mensajeDesconexion); // Reenvía la notificación a todos los usuarios
+    public LimiteEntrada.Cuota getCuota() {
+        return cuota;
+    }
+
+    @Override
+    public boolean isAbierta() {
+        return !socket.isClosed();
     }
 
     /**
-     * Método que reenvía una notificación a todos los usuarios conectados (excepto al emisor).
-     * 
-     * @param mensaje El mensaje de notificación a enviar.
+     * Bucle del hilo escritor: saca los mensajes de la cola de salida y los escribe en el socket.
+     * Agrupa en su búfer todos los que haya acumulados antes de escribir, de modo que varios
+     * mensajes seguidos salen en una sola escritura, y después los anota como escritos.
      */
-    private void reenviarNotificacion(String mensaje) {
-        for (ControladorUsuario usuarioConectado : usuariosConectados) {
-            try {
-                // Verificamos que el socket esté abierto y que no sea el usuario que envía la notificación
-                if (usuarioConectado.socket != null && !usuarioConectado.socket.isClosed() && usuarioConectado != this) {
-                    usuarioConectado.outputStream.writeUTF(mensaje);
-                    usuarioConectado.outputStream.flush(); // Aseguramos que el mensaje se envíe inmediatamente
+    private void escribirPendientes() {
+        try {
+            TramaSalida trama;
+            while ((trama = colaSalida.tomar()) != null) {
+                int usados = 0;
+                do {
+                    usados = agrupar(trama, usados);
+                    agrupadas.add(trama);
+                } while ((trama = colaSalida.sondear()) != null);
+                escribirBuffer(usados);
+                for (int i = 0; i < agrupadas.size(); i++) {
+                    agrupadas.get(i).escrita();
+                }
+                agrupadas.clear();
+            }
+        } catch (IOException | InterruptedException ex) {
+            // El socket se ha cerrado; el hilo lector se encarga de cerrar la sesión
+            cerrarSocket();
+        } finally {
+            escritorTerminado.countDown();
+        }
+    }
+
+    /**
+     * Copia una trama en el búfer de escritura, escribiendo en el socket cada vez que se llena.
+     *
+     * @param trama La trama que se agrega (compartida con otros usuarios; no se modifica).
+     * @param usados Bytes del búfer ocupados antes de agregarla.
+     * @return Bytes del búfer ocupados después de agregarla.
+     */
+    private int agrupar(TramaSalida trama, int usados) throws IOException {
+        Cifrado cifradoSesion = cifrado;
+        if (cifradoSesion != null && !trama.isEnClaro()) {
+            // Ciframos la trama directamente en el búfer, que crece si no cabe entera
+            int longitud = cifradoSesion.longitudCifrada(trama.longitud());
+            if (usados + longitud > bufferEscritura.length) {
+                escribirBuffer(usados);
+                usados = 0;
+                if (longitud > bufferEscritura.length) {
+                    bufferEscritura = new byte[longitud];
                 }
-            } catch (IOException ex) {
-                // Si ocurre un error al enviar la notificación, lo mostramos en consola
-                System.out.println("Error al enviar notificación: " + ex.getMessage());
             }
+            cifradoSesion.cifrar(trama.vista(), ByteBuffer.wrap(bufferEscritura, usados, longitud));
+            return usados + longitud;
         }
+        int copiados = 0;
+        while (copiados < trama.longitud()) {
+            if (usados == bufferEscritura.length) {
+                escribirBuffer(usados);
+                usados = 0;
+            }
+            int cantidad = Math.min(trama.longitud() - copiados, bufferEscritura.length - usados);
+            trama.copiar(copiados, bufferEscritura, usados, cantidad);
+            copiados += cantidad;
+            usados += cantidad;
+        }
+        return usados;
+    }
+
+    /**
+     * Escribe en el socket los primeros bytes del búfer de escritura.
+     */
+    private void escribirBuffer(int usados) throws IOException {
+        outputStream.write(bufferEscritura, 0, usados);
+        Metricas.bytesEnviados(usados);
     }
 
     /**
-     * Método para obtener la hora actual en formato HH:mm (hora y minutos).
+     * Método para obtener la hora actual en formato HH:mm (hora y minutos). El texto lo guarda
+     * {@link Reloj} y solo se vuelve a formatear cuando cambia el minuto.
      * 
      * @return La hora actual como un String.
      */
     private String obtenerHora() {
-        return new SimpleDateFormat("HH:mm").format(new Date());
+        return Reloj.horaMinuto();
     }
 
     /**
-     * Método que cierra la conexión del usuario, enviando primero una notificación de desconexión
-     * a los demás usuarios y luego cerrando el socket.
+     * Método que cierra la conexión del usuario, igual que el servidor NIO: primero lo retira del
+     * registro (lo que libera su nombre) y de su sala, después avisa de su desconexión a los demás
+     * usuarios y por último cierra el socket. Así, quien entra mientras tanto ya no lo ve y no se
+     * le siguen encolando mensajes. Antes de cerrar el socket se espera, como mucho
+     * {@code cierreMs}, a que el hilo escritor envíe los mensajes que el usuario aún tenía en cola.
      */
     private void cerrarConexion() {
+        usuariosConectados.eliminar(this); // Remover al usuario del registro
+        salas.salir(this); // Sacarlo de su sala
         enviarMensajeDesconexion(); // Notificar a los demás usuarios sobre la desconexión
+        colaSalida.cerrar(); // El hilo escritor termina en cuanto no quedan mensajes
+        try {
+            escritorTerminado.await(cierreMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        cerrarSocket();
+    }
+
+    /**
+     * Cierra el socket del usuario si sigue abierto. El hilo lector y el escritor terminan
+     * al fallar su siguiente operación sobre él.
+     */
+    private void cerrarSocket() {
         try {
-            // Cerrar el socket y eliminar al usuario de la lista de usuarios conectados
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
-            usuariosConectados.remove(this); // Remover al usuario de la lista
         } catch (IOException ex) {
             // Si ocurre un error al cerrar la conexión, lo mostramos en consola
             System.out.println("Error al cerrar la conexión: " + ex.getMessage());
@@ -1,131 +1,207 @@
 package chat.usuario;
 
 /**
- * Esta clase representa al cliente de chat. Cada instancia de esta clase se conecta al servidor,
- * permite al usuario enviar mensajes, recibir mensajes de otros usuarios y gestionar la conexión.
- * Utiliza un socket para la comunicación y se ejecuta en el hilo principal.
+ * Esta clase representa al cliente de chat en la consola: lee lo que escribe el usuario y muestra
+ * lo que llega del servidor. La conexión la lleva un {@link ClienteChat}, que cifra las tramas,
+ * agrupa los envíos y se reconecta solo si la conexión se pierde. El servidor identifica a cada
+ * usuario con un número, y la consola guarda el nombre que corresponde a cada uno a partir de las
+ * tramas de conexión. El servidor y el puerto se pueden indicar como argumentos (por defecto,
+ * localhost y 5050).
+ * El usuario empieza en la sala general; con "/unirse sala" pasa a otra sala y con "/dejar"
+ * vuelve a la general. Solo recibe los mensajes de la sala en la que está; al entrar en una sala
+ * el servidor le envía también los últimos mensajes de su historial. Con "/privado nombre texto"
+ * envía un mensaje que solo recibe ese usuario, esté en la sala que esté.
+ * Si el servidor no acepta el nombre (porque ya está en uso, por ejemplo), lo siguiente que se
+ * escribe se envía como un nombre nuevo.
  * 
  * @author sdacatrinei
  */
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import chat.util.Reloj;
+import chat.util.TipoTrama;
+import chat.util.TramaEntrante;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
-public class MainUsuario {
+public class MainUsuario implements ClienteChat.Oyente {
 
-    private Socket socket; // El socket de conexión con el servidor
-    private DataInputStream inputStream; // Flujo de entrada para recibir datos del servidor
-    private DataOutputStream outputStream; // Flujo de salida para enviar datos al servidor
-    private String nombreUsuario; // Nombre del usuario conectado
+    private final ClienteChat cliente; // Conexión con el servidor
+    private Map<Long, String> nombres = new HashMap<>(); // Nombre de cada usuario según su identificador (solo lo usa el hilo lector)
+    private String salaActual; // Sala en la que está el usuario (solo la usa el hilo lector)
+    private Map<String, List<String>> presentados = new HashMap<>(); // Usuarios de la sala a la que se está entrando (solo lo usa el hilo lector)
 
     /**
-     * Constructor para inicializar los flujos de entrada y salida del socket.
-     * También se envía el nombre del usuario al servidor para que se registre en el sistema.
-     * 
-     * @param socket Conexión del cliente al servidor.
-     * @param nombre El nombre del usuario para identificarlo en el chat.
+     * @param host Servidor al que se conecta el usuario.
+     * @param puerto Puerto del servidor.
      */
-    public MainUsuario(Socket socket, String nombre) {
-        this.socket = socket;
-        this.nombreUsuario = nombre;
-        try {
-            // Inicializa los flujos de entrada y salida del socket
-            this.inputStream = new DataInputStream(socket.getInputStream());
-            this.outputStream = new DataOutputStream(socket.getOutputStream());
-            // Enviar el nombre del usuario al servidor para que sea registrado
-            outputStream.writeUTF(nombre);
-            outputStream.flush();
-        } catch (IOException ex) {
-            // Si ocurre un error al crear los flujos, mostramos el error y cerramos la conexión
-            System.out.println("Error al crear el usuario: " + ex.getMessage());
-            cerrarConexion();
+    public MainUsuario(String host, int puerto) {
+        this.cliente = new ClienteChat(host, puerto, this);
+    }
+
+    /**
+     * Se conecta con el nombre indicado; si el servidor no lo acepta, muestra el motivo y pide otro.
+     *
+     * @param scn Entrada de la consola.
+     * @param nombre El primer nombre que ha escrito el usuario.
+     * @throws IOException Si no se puede conectar con el servidor.
+     */
+    public void conectar(Scanner scn, String nombre) throws IOException {
+        String rechazo;
+        while ((rechazo = cliente.conectar(nombre)) != null) {
+            System.out.println(rechazo);
+            nombre = scn.nextLine();
         }
     }
 
     /**
      * Método para enviar mensajes al servidor.
-     * Los mensajes se leen desde la consola y se envían al servidor.
-     * Si el mensaje es "salir()", se cierra la conexión.
+     * Los mensajes se leen desde la consola y se envían al servidor sin esperar a que salgan.
+     * Si el mensaje es "salir()", se avisa al servidor y se cierra la conexión; "/unirse sala"
+     * y "/dejar" piden al servidor cambiar de sala y "/privado nombre texto" envía un mensaje privado.
+     *
+     * @param scn Entrada de la consola.
      */
-    public void enviarMensaje() {
-        try {
-            Scanner scn = new Scanner(System.in);
-            System.out.println("Ya puedes chatear, o escribe \"salir()\" para abandonar:");
-            while (socket.isConnected()) {
-                // Leemos el mensaje del usuario
-                String mensaje = scn.nextLine();
-                // Enviamos el mensaje al servidor
-                outputStream.writeUTF(mensaje);
-                outputStream.flush();
-                if (mensaje.equals("salir()")) {
-                    // Si el usuario escribe "salir()", se cierra la conexión
-                    cerrarConexion();
-                    break;
+    public void enviarMensajes(Scanner scn) {
+        System.out.println("Ya puedes chatear. Escribe \"/unirse sala\" para cambiar de sala, \"/dejar\" para"
+                + " volver a la sala general, \"/privado nombre texto\" para escribir solo a un usuario"
+                + " o \"salir()\" para abandonar:");
+        while (scn.hasNextLine()) {
+            // Leemos el mensaje del usuario
+            String mensaje = scn.nextLine();
+            if (mensaje.equals("salir()")) {
+                break;
+            }
+            try {
+                if (mensaje.startsWith("/privado ")) {
+                    enviarPrivado(mensaje.substring("/privado ".length()));
+                } else if (mensaje.startsWith("/unirse ")) {
+                    // El servidor comprueba el nombre de la sala y confirma la entrada
+                    avisarSiFalla(cliente.unirse(mensaje.substring("/unirse ".length())));
+                } else if (mensaje.equals("/dejar")) {
+                    avisarSiFalla(cliente.dejar());
+                } else {
+                    avisarSiFalla(cliente.enviarMensaje(mensaje));
                 }
+            } catch (IllegalArgumentException ex) {
+                System.out.println("No se ha enviado el mensaje: " + ex.getMessage());
             }
-            scn.close();
-        } catch (IOException ex) {
-            // Si ocurre un error al enviar el mensaje, mostramos el error
-            System.out.println("Error al enviar mensaje: " + ex.getMessage());
         }
+        // Se lo decimos al servidor y se cierra la conexión
+        cliente.close();
     }
 
     /**
-     * Método para recibir mensajes del servidor.
-     * Este método se ejecuta en un hilo separado para permitir la recepción simultánea de mensajes
-     * mientras el usuario sigue escribiendo.
+     * Envía un mensaje privado escrito como "nombre texto".
      */
-    public void recibirDatos() {
-        new Thread(() -> {
-            try {
-                while (true) {
-                    // Espera a recibir un mensaje del servidor
-                    String mensajeRecibido = inputStream.readUTF();
-                    // Muestra el mensaje recibido en la consola
-                    mostrarMensaje(mensajeRecibido);
-                }
-            } catch (IOException ex) {
-                // Si ocurre un error o la conexión se cierra, cerramos la conexión localmente
-                cerrarConexion();
-            }
-        }).start();
+    private void enviarPrivado(String orden) {
+        int espacio = orden.indexOf(' ');
+        if (espacio <= 0 || espacio == orden.length() - 1) {
+            System.out.println("Uso: /privado nombre texto");
+            return;
+        }
+        avisarSiFalla(cliente.enviarPrivado(orden.substring(0, espacio), orden.substring(espacio + 1)));
+    }
+
+    private static void avisarSiFalla(CompletableFuture<Void> envio) {
+        envio.exceptionally(ex -> {
+            System.out.println("No se ha enviado el mensaje: " + ex.getMessage());
+            return null;
+        });
+    }
+
+    @Override
+    public void alRecibir(TramaEntrante trama) throws ProtocolException {
+        mostrarMensaje(trama);
+    }
+
+    @Override
+    public void alPerderConexion(String motivo) {
+        System.out.println("Se ha perdido la conexión (" + motivo + "); reconectando...");
+    }
+
+    @Override
+    public void alReconectar() {
+        System.out.println("Conexión recuperada.");
+    }
+
+    /**
+     * La conexión se ha cerrado del todo: termina el programa.
+     */
+    @Override
+    public void alCerrar(String motivo) {
+        System.out.println("Conexión cerrada.");
+        System.exit(0);
     }
 
     /**
-     * Método para mostrar los mensajes recibidos en la consola.
-     * Los mensajes de conexión y desconexión son mostrados siempre, y los mensajes enviados
-     * por el propio usuario son ignorados (se evita el eco de los mensajes).
+     * Método para mostrar los mensajes recibidos en la consola, con la hora en que el servidor
+     * los recibió. El servidor no reenvía a cada usuario sus propios mensajes, así que no hace
+     * falta filtrar el eco. Se llama desde el hilo lector del cliente.
      * 
-     * @param mensaje El mensaje que se desea mostrar.
+     * @param trama La trama recibida.
+     * @throws ProtocolException Si un mensaje del historial no tiene un formato válido.
      */
-    private void mostrarMensaje(String mensaje) {
-        // Si el mensaje es una notificación de conexión o desconexión o si no es un mensaje del usuario actual
-        if (mensaje.contains("se ha conectado") || mensaje.contains("se ha desconectado")
-                || !mensaje.contains(nombreUsuario + ": ")) {
-            System.out.println(mensaje);
+    private void mostrarMensaje(TramaEntrante trama) throws ProtocolException {
+        TipoTrama tipo = trama.getTipo();
+        if (tipo == null) {
+            return; // Tipos desconocidos: no se muestran
+        }
+        String hora = "[" + Reloj.horaMinuto(trama.getMarcaTiempo()) + "] ";
+        switch (tipo) {
+            case MENSAJE -> System.out.println(hora + nombres.getOrDefault(trama.getRemitente(), "?") + ": " + trama.texto());
+            // Mensaje anterior a la entrada en la sala: lleva el nombre de quien lo envió, que puede no estar ya conectado
+            case PRIVADO -> System.out.println(hora + "(privado) " + nombres.getOrDefault(trama.getRemitente(), "?")
+                    + ": " + trama.texto());
+            case HISTORIAL -> System.out.println(hora + trama.nombre() + ": " + trama.textoTrasNombre());
+            case CONEXION -> {
+                String nombre = trama.texto();
+                nombres.put(trama.getRemitente(), nombre);
+                System.out.println(hora + nombre + " se ha conectado");
+            }
+            case DESCONEXION -> {
+                nombres.remove(trama.getRemitente());
+                System.out.println(hora + trama.texto() + " se ha desconectado");
+            }
+            case UNIRSE -> mostrarEntradaSala(hora, trama.getRemitente(), trama.texto());
+            case DEJAR -> {
+                if (trama.texto().equals(salaActual)) {
+                    System.out.println(hora + nombres.getOrDefault(trama.getRemitente(), "?") + " ha dejado #" + salaActual);
+                }
+            }
+            case AVISO -> System.out.println(hora + trama.texto());
+            case RECHAZO -> System.out.println(hora + trama.texto());
+            default -> {
+                // El resto de tramas solo las envía el usuario
+            }
         }
     }
 
     /**
-     * Método para cerrar la conexión del cliente, cerrando los flujos y el socket.
-     * Además, termina la ejecución del programa.
+     * Muestra una trama de entrada en una sala. Al entrar en una sala, el servidor envía primero
+     * una trama por cada usuario que ya estaba en ella y después la del propio usuario, que
+     * confirma la entrada; las de los que estaban se guardan hasta entonces para listarlos juntos.
+     *
+     * @param hora La hora del mensaje ya formateada.
+     * @param remitente Identificador del usuario que está en la sala o entra en ella.
+     * @param sala Nombre de la sala.
      */
-    public synchronized void cerrarConexion() {
-        try {
-            // Cerramos los flujos de entrada y salida, y luego el socket
-            if (socket != null && !socket.isClosed()) {
-                outputStream.close();
-                inputStream.close();
-                socket.close();
-            }
-            System.out.println("Conexión cerrada.");
-            System.exit(0); // Terminamos la ejecución del programa
-        } catch (IOException ex) {
-            // Si ocurre un error al cerrar la conexión, mostramos el error
-            System.out.println("Error al cerrar la conexión: " + ex.getMessage());
+    private void mostrarEntradaSala(String hora, long remitente, String sala) {
+        if (remitente == cliente.getId()) {
+            salaActual = sala;
+            List<String> estaban = presentados.remove(sala);
+            presentados.clear();
+            System.out.println(hora + "Estás en la sala #" + sala
+                    + (estaban == null ? " (no hay nadie más)" : " con " + String.join(", ", estaban)));
+        } else if (sala.equals(salaActual)) {
+            System.out.println(hora + nombres.getOrDefault(remitente, "?") + " ha entrado en #" + sala);
+        } else {
+            presentados.computeIfAbsent(sala, clave -> new ArrayList<>()).add(nombres.getOrDefault(remitente, "?"));
         }
     }
 
@@ -133,24 +209,23 @@ public class MainUsuario {
      * Método principal del programa. Crea una conexión con el servidor y permite al usuario
      * enviar y recibir mensajes.
      * 
-     * @param args Argumentos de la línea de comandos (no utilizados aquí).
+     * @param args Servidor y puerto, opcionales (por defecto, localhost y 5050).
      */
     public static void main(String[] args) {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int puerto = args.length > 1 ? Integer.parseInt(args[1]) : 5050;
         Scanner scn = new Scanner(System.in);
         System.out.println("Bienvenido, escribe tu nombre para empezar:");
         String usuario = scn.nextLine();
+        MainUsuario consola = new MainUsuario(host, puerto);
         try {
-            // Conectarse al servidor en localhost, puerto 5050
-            Socket socket = new Socket("localhost", 5050);
-            MainUsuario cliente = new MainUsuario(socket, usuario);
-            // Iniciar la recepción de mensajes en un hilo
-            cliente.recibirDatos();
-            // Iniciar el envío de mensajes
-            cliente.enviarMensaje();
+            consola.conectar(scn, usuario);
         } catch (IOException ex) {
             // Si ocurre un error al crear la conexión con el servidor, lo mostramos
-            System.out.println("Error al crear el socket para el usuario: " + ex.getMessage());
+            System.out.println("Error al conectar con el servidor: " + ex.getMessage());
+            return;
         }
+        consola.enviarMensajes(scn);
         scn.close();
     }
-}
\ No newline at end of file
+}
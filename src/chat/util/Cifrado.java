@@ -0,0 +1,312 @@
+package chat.util;
+
+/**
+ * Cifrado autenticado de las tramas de una conexión con AES-GCM. La clave de cada conexión se
+ * acuerda al conectarse, antes del saludo: el usuario y el servidor intercambian claves públicas
+ * X25519 efímeras en tramas {@link TipoTrama#CLAVE} y cada uno deriva del secreto común, con
+ * HKDF-SHA256, una clave distinta para cada sentido. A partir de ahí cada trama viaja completa,
+ * cabecera incluida, dentro de la carga de una trama {@link TipoTrama#CIFRADA}.
+ *
+ * El nonce de cada trama es el número de tramas cifradas antes en ese sentido, así que nunca se
+ * repite con la misma clave, y una trama repetida, perdida o reordenada no se puede descifrar.
+ * Cifrar y descifrar no crean buffers: se escribe directamente en el buffer del que llama, y cada
+ * hilo reutiliza su propia instancia de Cipher y sus arrays intermedios para los buffers directos.
+ *
+ * Cada sentido tiene su propio estado: {@link #cifrar} solo debe llamarlo el hilo que escribe en
+ * la conexión y {@link #descifrar} solo el que lee de ella.
+ *
+ * @author sdacatrinei
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class Cifrado {
+
+    // Bytes que añade la etiqueta de autenticación de GCM
+    public static final int LONGITUD_ETIQUETA = 16;
+
+    private static final int LONGITUD_NONCE = 12;
+    private static final int LONGITUD_CLAVE = 16;
+
+    // Un Cipher por hilo: crearlo es caro y no se puede compartir entre hilos
+    private static final ThreadLocal<Cipher> CIFRADORES = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES-GCM no está disponible", ex);
+        }
+    });
+
+    // Arrays intermedios por hilo: AES-GCM sobre buffers directos crea en cada llamada un array del
+    // tamaño de la trama, así que los directos se copian aquí y se cifra siempre entre arrays
+    private static final ThreadLocal<Intermedios> INTERMEDIOS = ThreadLocal.withInitial(Intermedios::new);
+
+    private static final class Intermedios {
+        private byte[] entrada = new byte[512];
+        private byte[] salida = new byte[512];
+
+        private byte[] entrada(int longitud) {
+            if (entrada.length < longitud) {
+                entrada = new byte[longitud];
+            }
+            return entrada;
+        }
+
+        private byte[] salida(int longitud) {
+            if (salida.length < longitud) {
+                salida = new byte[longitud];
+            }
+            return salida;
+        }
+    }
+
+    private final SecretKeySpec claveEnvio;
+    private final SecretKeySpec claveRecepcion;
+
+    // Estado de envío (solo lo usa el hilo que escribe)
+    private long contadorEnvio;
+    private final byte[] nonceEnvio = new byte[LONGITUD_NONCE];
+
+    // Estado de recepción (solo lo usa el hilo que lee)
+    private long contadorRecepcion;
+    private final byte[] nonceRecepcion = new byte[LONGITUD_NONCE];
+    private ByteBuffer descifrada = ByteBuffer.allocate(512);
+
+    private Cifrado(byte[] claveEnvio, byte[] claveRecepcion) {
+        this.claveEnvio = new SecretKeySpec(claveEnvio, "AES");
+        this.claveRecepcion = new SecretKeySpec(claveRecepcion, "AES");
+    }
+
+    /**
+     * Genera un par de claves X25519 efímero para una conexión.
+     *
+     * @return El par de claves.
+     */
+    public static KeyPair nuevoParClaves() {
+        try {
+            return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("X25519 no está disponible", ex);
+        }
+    }
+
+    /**
+     * Codifica la trama {@link TipoTrama#CLAVE} con la clave pública de un par.
+     *
+     * @param par Par de claves propio.
+     * @return La trama lista para enviar sin cifrar.
+     */
+    public static ByteBuffer tramaClave(KeyPair par) {
+        return Protocolo.codificar(TipoTrama.CLAVE, Protocolo.SERVIDOR, 0, 0, par.getPublic().getEncoded());
+    }
+
+    /**
+     * Acuerda las claves de la sesión a partir del par propio y la clave pública del otro extremo.
+     *
+     * @param propio Par de claves propio.
+     * @param clavePublicaAjena Clave pública recibida en la trama {@link TipoTrama#CLAVE}.
+     * @param servidor true en el servidor y false en el usuario, para elegir la clave de cada sentido.
+     * @return El cifrado de la sesión.
+     * @throws ProtocolException Si la clave recibida no es válida.
+     */
+    public static Cifrado acordar(KeyPair propio, byte[] clavePublicaAjena, boolean servidor) throws ProtocolException {
+        try {
+            PublicKey ajena = KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(clavePublicaAjena));
+            KeyAgreement acuerdo = KeyAgreement.getInstance("X25519");
+            acuerdo.init(propio.getPrivate());
+            acuerdo.doPhase(ajena, true);
+            byte[] secreto = acuerdo.generateSecret();
+
+            // HKDF-SHA256: la sal liga las claves a las dos claves públicas intercambiadas
+            byte[] publicaUsuario = servidor ? clavePublicaAjena : propio.getPublic().getEncoded();
+            byte[] publicaServidor = servidor ? propio.getPublic().getEncoded() : clavePublicaAjena;
+            byte[] sal = new byte[publicaUsuario.length + publicaServidor.length];
+            System.arraycopy(publicaUsuario, 0, sal, 0, publicaUsuario.length);
+            System.arraycopy(publicaServidor, 0, sal, publicaUsuario.length, publicaServidor.length);
+            byte[] pseudoaleatoria = hmac(sal, secreto);
+            byte[] haciaServidor = expandir(pseudoaleatoria, "chat-encriptado usuario->servidor");
+            byte[] haciaUsuario = expandir(pseudoaleatoria, "chat-encriptado servidor->usuario");
+            return servidor ? new Cifrado(haciaUsuario, haciaServidor) : new Cifrado(haciaServidor, haciaUsuario);
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            throw new ProtocolException("Clave pública no válida: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Paso de expansión de HKDF para una sola salida: T(1) = HMAC(PRK, info || 0x01).
+     */
+    private static byte[] expandir(byte[] pseudoaleatoria, String info) throws GeneralSecurityException {
+        byte[] etiqueta = info.getBytes(StandardCharsets.UTF_8);
+        byte[] entrada = Arrays.copyOf(etiqueta, etiqueta.length + 1);
+        entrada[etiqueta.length] = 1;
+        return Arrays.copyOf(hmac(pseudoaleatoria, entrada), LONGITUD_CLAVE);
+    }
+
+    private static byte[] hmac(byte[] clave, byte[] datos) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(clave, "HmacSHA256"));
+        return mac.doFinal(datos);
+    }
+
+    /**
+     * Calcula cuánto ocupa la trama cifrada que envuelve a una trama.
+     *
+     * @param longitudPlana Tamaño total de la trama sin cifrar.
+     * @return Tamaño total de la trama {@link TipoTrama#CIFRADA}.
+     */
+    public int longitudCifrada(int longitudPlana) {
+        return Protocolo.longitudTrama(Protocolo.SERVIDOR, contadorEnvio, 0, longitudPlana + LONGITUD_ETIQUETA);
+    }
+
+    /**
+     * Cifra una trama completa y escribe la trama {@link TipoTrama#CIFRADA} que la envuelve en la
+     * posición actual del destino, que debe tener al menos {@link #longitudCifrada(int)} bytes libres.
+     *
+     * @param plana Trama sin cifrar, o varias seguidas; se consume desde su posición hasta su límite.
+     * @param destino Buffer en el que se escribe la trama cifrada.
+     */
+    public void cifrar(ByteBuffer plana, ByteBuffer destino) {
+        int longitudCarga = plana.remaining() + LONGITUD_ETIQUETA;
+        long contador = contadorEnvio++;
+        Protocolo.escribirCabecera(destino, TipoTrama.CIFRADA, Protocolo.SERVIDOR, contador, 0, longitudCarga);
+        int longitudPlana = plana.remaining();
+        try {
+            Cipher cifrador = CIFRADORES.get();
+            cifrador.init(Cipher.ENCRYPT_MODE, claveEnvio, nonce(nonceEnvio, contador));
+            byte[] entrada;
+            int inicio;
+            if (plana.hasArray()) {
+                entrada = plana.array();
+                inicio = plana.arrayOffset() + plana.position();
+            } else {
+                entrada = INTERMEDIOS.get().entrada(longitudPlana);
+                inicio = 0;
+                plana.get(plana.position(), entrada, 0, longitudPlana);
+            }
+            plana.position(plana.limit());
+            if (destino.hasArray()) {
+                int escritos = cifrador.doFinal(entrada, inicio, longitudPlana,
+                        destino.array(), destino.arrayOffset() + destino.position());
+                destino.position(destino.position() + escritos);
+            } else {
+                byte[] salida = INTERMEDIOS.get().salida(longitudCarga);
+                int escritos = cifrador.doFinal(entrada, inicio, longitudPlana, salida, 0);
+                destino.put(salida, 0, escritos);
+            }
+        } catch (GeneralSecurityException ex) {
+            // Con una clave y un nonce válidos AES-GCM no falla al cifrar
+            throw new IllegalStateException("Error al cifrar la trama", ex);
+        }
+    }
+
+    /**
+     * Descifra una trama {@link TipoTrama#CIFRADA} e interpreta la trama que envuelve.
+     *
+     * @param cifrada Trama cifrada recibida.
+     * @param destino Donde se deja la trama descifrada; es válida hasta la siguiente llamada.
+     * @throws ProtocolException Si la trama no es auténtica, está fuera de orden o no envuelve
+     *         exactamente una trama válida.
+     */
+    public void descifrar(TramaEntrante cifrada, TramaEntrante destino) throws ProtocolException {
+        descifrarCarga(cifrada);
+        int total = Protocolo.longitudPendiente(descifrada);
+        if (total != descifrada.remaining()) {
+            throw new ProtocolException("Trama cifrada mal formada");
+        }
+        destino.decodificar(descifrada, total);
+    }
+
+    /**
+     * Descifra una trama {@link TipoTrama#CIFRADA} que puede envolver varias tramas seguidas, como
+     * el historial de una sala que envía el servidor. Las tramas se leen después con {@link #siguiente}.
+     *
+     * @param cifrada Trama cifrada recibida.
+     * @throws ProtocolException Si la trama no es auténtica o está fuera de orden.
+     */
+    public void descifrarVarias(TramaEntrante cifrada) throws ProtocolException {
+        descifrarCarga(cifrada);
+    }
+
+    /**
+     * Cuenta una trama recibida que se descarta sin descifrarla, para que la siguiente se descifre
+     * con su nonce. La trama descartada no se autentica, pero tampoco se usa su contenido.
+     */
+    public void saltar() {
+        contadorRecepcion++;
+    }
+
+    /**
+     * Interpreta la siguiente trama de las que envolvía la última trama descifrada con {@link #descifrarVarias}.
+     *
+     * @param destino Donde se deja la trama; es válida hasta la siguiente llamada.
+     * @return false si ya no quedan tramas.
+     * @throws ProtocolException Si lo que queda no es una trama completa y válida.
+     */
+    public boolean siguiente(TramaEntrante destino) throws ProtocolException {
+        if (!descifrada.hasRemaining()) {
+            return false;
+        }
+        int total = Protocolo.longitudPendiente(descifrada);
+        if (total < 0 || total > descifrada.remaining()) {
+            throw new ProtocolException("Trama cifrada mal formada");
+        }
+        destino.decodificar(descifrada, total);
+        return true;
+    }
+
+    /**
+     * Descifra la carga de una trama cifrada en el buffer de recepción.
+     */
+    private void descifrarCarga(TramaEntrante cifrada) throws ProtocolException {
+        int longitudCarga = cifrada.longitudCarga();
+        if (longitudCarga < LONGITUD_ETIQUETA) {
+            throw new ProtocolException("Trama cifrada incompleta");
+        }
+        if (descifrada.capacity() < longitudCarga) {
+            descifrada = ByteBuffer.allocate(longitudCarga);
+        }
+        descifrada.clear();
+        try {
+            Cipher cifrador = CIFRADORES.get();
+            cifrador.init(Cipher.DECRYPT_MODE, claveRecepcion, nonce(nonceRecepcion, contadorRecepcion++));
+            ByteBuffer origen = cifrada.origenCarga();
+            if (origen.hasArray()) {
+                int longitud = cifrador.doFinal(origen.array(), origen.arrayOffset() + cifrada.inicioCarga(), longitudCarga,
+                        descifrada.array(), descifrada.arrayOffset());
+                descifrada.limit(longitud);
+            } else {
+                byte[] entrada = INTERMEDIOS.get().entrada(longitudCarga);
+                origen.get(cifrada.inicioCarga(), entrada, 0, longitudCarga);
+                int longitud = cifrador.doFinal(entrada, 0, longitudCarga, descifrada.array(), descifrada.arrayOffset());
+                descifrada.limit(longitud);
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new ProtocolException("Trama cifrada no auténtica");
+        }
+    }
+
+    /**
+     * Prepara el nonce de una trama: los 4 primeros bytes a cero y el contador en los 8 últimos.
+     */
+    private static GCMParameterSpec nonce(byte[] nonce, long contador) {
+        for (int i = LONGITUD_NONCE - 1; i >= LONGITUD_NONCE - 8; i--) {
+            nonce[i] = (byte) contador;
+            contador >>>= 8;
+        }
+        return new GCMParameterSpec(LONGITUD_ETIQUETA * 8, nonce);
+    }
+}
@@ -0,0 +1,145 @@
+package chat.util;
+
+/**
+ * Compresión de tramas con deflate. Una trama {@link TipoTrama#COMPRIMIDA} envuelve una o varias
+ * tramas completas, igual que una trama cifrada: el servidor comprime una sola vez cada mensaje
+ * largo de una sala y encola la misma trama comprimida para todos los miembros que la admiten, y
+ * el historial que repite al entrar en una sala, con muchos mensajes seguidos, se comprime en bloque.
+ * Solo se envían tramas comprimidas a quien saluda con la marca {@link Protocolo#MARCA_COMPRESION};
+ * si la sesión está cifrada, lo que se cifra es la trama ya comprimida.
+ *
+ * Comprimir antes de cifrar revela algo del texto: lo que ocupa la trama cifrada depende de cuánto
+ * se parecen entre sí las partes comprimidas juntas, y quien puede meter texto propio junto al de
+ * otro puede ir adivinándolo por la longitud (los ataques CRIME y BREACH). Por eso, en una sesión
+ * cifrada solo se comprimen tramas con el mensaje de un único autor, nunca lotes que mezclen
+ * mensajes de varios.
+ *
+ * Se usa deflate sin la cabecera ni la suma de comprobación de zlib, que no hacen falta porque el
+ * protocolo ya delimita cada trama (y el cifrado la autentica). La secuencia de la trama comprimida
+ * es la longitud de lo que envuelve sin comprimir: quien la recibe reserva justo eso y rechaza la
+ * trama si pasa de {@link Protocolo#LONGITUD_MAXIMA_LECTURA} o si al descomprimirla no ocupa lo anunciado.
+ *
+ * @author sdacatrinei
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class Compresion {
+
+    // Un compresor por hilo: crearlo reserva memoria nativa y no se puede compartir entre hilos
+    private static final ThreadLocal<Deflater> COMPRESORES = ThreadLocal.withInitial(() -> new Deflater(
+            Deflater.BEST_SPEED, true));
+
+    // Buffer intermedio por hilo en el que se comprime antes de saber cuánto ocupa la trama
+    private static final ThreadLocal<Intermedio> INTERMEDIOS = ThreadLocal.withInitial(Intermedio::new);
+
+    private static final class Intermedio {
+        private ByteBuffer buffer = ByteBuffer.allocate(512);
+
+        private ByteBuffer de(int longitud) {
+            if (buffer.capacity() < longitud) {
+                buffer = ByteBuffer.allocate(longitud);
+            }
+            return buffer.clear().limit(longitud);
+        }
+    }
+
+    // Estado de recepción (solo lo usa el hilo que lee)
+    private final Inflater descompresor = new Inflater(true);
+    private ByteBuffer descomprimida = ByteBuffer.allocate(512);
+
+    /**
+     * Comprime una trama, o varias seguidas, en una trama {@link TipoTrama#COMPRIMIDA}.
+     *
+     * @param plana Tramas sin comprimir entre la posición y el límite; la posición no cambia.
+     * @param nivel Nivel de deflate, de 1 (más rápido) a 9 (más pequeño).
+     * @return Un buffer directo preparado para lectura con la trama comprimida, o null si no
+     *         ocuparía menos que las tramas sin comprimir.
+     */
+    public static ByteBuffer comprimir(ByteBuffer plana, int nivel) {
+        int longitudPlana = plana.remaining();
+        // Si lo comprimido no cabe en lo que ocupaba sin comprimir, no merece la pena
+        ByteBuffer salida = INTERMEDIOS.get().de(longitudPlana);
+        Deflater compresor = COMPRESORES.get();
+        compresor.reset();
+        compresor.setLevel(nivel);
+        compresor.setInput(plana.duplicate());
+        compresor.finish();
+        while (!compresor.finished() && salida.hasRemaining()) {
+            compresor.deflate(salida);
+        }
+        if (!compresor.finished()) {
+            return null;
+        }
+        salida.flip();
+        if (Protocolo.longitudTrama(Protocolo.SERVIDOR, longitudPlana, 0, salida.remaining()) >= longitudPlana) {
+            return null;
+        }
+        return Protocolo.codificar(TipoTrama.COMPRIMIDA, Protocolo.SERVIDOR, longitudPlana, 0, salida);
+    }
+
+    /**
+     * Descomprime una trama {@link TipoTrama#COMPRIMIDA}. Las tramas que envolvía se leen después
+     * con {@link #siguiente}.
+     *
+     * @param comprimida Trama comprimida recibida.
+     * @throws ProtocolException Si la trama anuncia una longitud negativa o demasiado grande, o no
+     *         es un bloque deflate válido de la longitud que anuncia.
+     */
+    public void descomprimir(TramaEntrante comprimida) throws ProtocolException {
+        long longitud = comprimida.getSecuencia();
+        // Un varint de 10 bytes puede dar un número negativo
+        if (longitud < 0) {
+            throw new ProtocolException("Trama comprimida mal formada");
+        }
+        if (longitud > Protocolo.LONGITUD_MAXIMA_LECTURA) {
+            throw new ProtocolException("Trama comprimida demasiado larga");
+        }
+        // Un byte de más para que el final del bloque se procese aunque la salida ya esté completa
+        if (descomprimida.capacity() <= longitud) {
+            descomprimida = ByteBuffer.allocate((int) longitud + 1);
+        }
+        descomprimida.clear().limit((int) longitud + 1);
+        ByteBuffer origen = comprimida.origenCarga();
+        int inicio = comprimida.inicioCarga();
+        descompresor.reset();
+        descompresor.setInput(origen.duplicate().limit(inicio + comprimida.longitudCarga()).position(inicio));
+        try {
+            while (!descompresor.finished() && descomprimida.hasRemaining()) {
+                if (descompresor.inflate(descomprimida) == 0
+                        && (descompresor.needsInput() || descompresor.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new ProtocolException("Trama comprimida mal formada");
+        }
+        if (!descompresor.finished() || descomprimida.position() != longitud) {
+            throw new ProtocolException("Trama comprimida mal formada");
+        }
+        descomprimida.flip();
+    }
+
+    /**
+     * Interpreta la siguiente trama de las que envolvía la última trama descomprimida.
+     *
+     * @param destino Donde se deja la trama; es válida hasta la siguiente llamada.
+     * @return false si ya no quedan tramas.
+     * @throws ProtocolException Si lo que queda no es una trama completa y válida.
+     */
+    public boolean siguiente(TramaEntrante destino) throws ProtocolException {
+        if (!descomprimida.hasRemaining()) {
+            return false;
+        }
+        int total = Protocolo.longitudPendiente(descomprimida);
+        if (total < 0 || total > descomprimida.remaining()) {
+            throw new ProtocolException("Trama comprimida mal formada");
+        }
+        destino.decodificar(descomprimida, total);
+        return true;
+    }
+}
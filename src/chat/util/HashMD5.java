@@ -6,41 +6,43 @@ package chat.util;
  * un valor de longitud fija a partir de una cadena de texto. Se utiliza comúnmente en situaciones
  * como la validación de integridad de datos o almacenamiento de contraseñas (aunque no se recomienda
  * para seguridad crítica, ya que es susceptible a ataques de colisión).
- * 
+ *
+ * Un hash no cifra nada: los mensajes del chat se cifran con {@link Cifrado}.
+ *
  * @author sdacatrinei
  */
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 public class HashMD5 {
 
-    /**
-     * Este método calcula el hash MD5 de un mensaje dado.
-     * 
-     * @param mensaje El texto de entrada que se desea convertir en un hash MD5.
-     * @return El valor del hash MD5 como una cadena hexadecimal.
-     */
-    public static String calcularMD5(String mensaje) {
+    // Un MessageDigest por hilo: crearlo en cada llamada es lo más caro del cálculo
+    private static final ThreadLocal<MessageDigest> DIGESTORES = ThreadLocal.withInitial(() -> {
         try {
-            // Se obtiene una instancia del algoritmo MD5
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            
-            // Se calcula el hash de los bytes del mensaje
-            byte[] hashBytes = md.digest(mensaje.getBytes());
-            
-            // Se construye la cadena hexadecimal que representa el hash
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                // Cada byte se convierte a un valor hexadecimal de dos dígitos
-                hexString.append(String.format("%02x", b));
-            }
-            
-            // Se devuelve el hash MD5 como una cadena de texto hexadecimal
-            return hexString.toString();
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             // Si no se encuentra el algoritmo MD5 (algo que no debería ocurrir),
             // lanzamos una excepción en tiempo de ejecución con el mensaje de error
             throw new RuntimeException("Error al calcular el hash MD5: " + e.getMessage());
         }
+    });
+
+    // Conversión a hexadecimal en minúsculas sin formatear byte a byte
+    private static final HexFormat HEXADECIMAL = HexFormat.of();
+
+    /**
+     * Este método calcula el hash MD5 de un mensaje dado.
+     *
+     * @param mensaje El texto de entrada que se desea convertir en un hash MD5.
+     * @return El valor del hash MD5 como una cadena hexadecimal.
+     */
+    public static String calcularMD5(String mensaje) {
+        // digest() deja el MessageDigest listo para la siguiente llamada del mismo hilo
+        byte[] hashBytes = DIGESTORES.get().digest(mensaje.getBytes(StandardCharsets.UTF_8));
+
+        // Se devuelve el hash MD5 como una cadena de texto hexadecimal
+        return HEXADECIMAL.formatHex(hashBytes);
     }
 }
@@ -0,0 +1,405 @@
+package chat.util;
+
+/**
+ * Formato binario de las tramas que intercambian los usuarios y el servidor. Cada trama es:
+ *
+ * <pre>
+ * longitud     varint  bytes que siguen a este campo
+ * version      u1      versión del protocolo ({@link #VERSION})
+ * tipo         u1      {@link TipoTrama}
+ * marcas       u1      bits de opciones ({@link #MARCA_COMPRESION}); los que no se conocen se ignoran
+ * remitente    varint  identificador del usuario que origina la trama (0 = el servidor)
+ * secuencia    varint  número de la trama dentro de las de su remitente (o del mensaje en su sala)
+ * marcaTiempo  varint  milisegundos desde la época en que el servidor recibió o creó la trama
+ * carga        bytes   texto en UTF-8 (el resto de la trama)
+ * </pre>
+ *
+ * Los varint son enteros sin signo en base 128, con los 7 bits menos significativos primero y el
+ * bit alto a 1 en todos los bytes salvo el último. Así los números pequeños ocupan un solo byte y
+ * los mensajes no están limitados a los 64 KB de writeUTF, sino a {@link #LONGITUD_MAXIMA}.
+ * Las tramas se leen con {@link TramaEntrante} sin crear textos intermedios: el tipo y el
+ * remitente se interpretan como números y la carga solo se decodifica si alguien la necesita.
+ * Una vez acordada la clave de la sesión, cada trama viaja dentro de una trama
+ * {@link TipoTrama#CIFRADA} (ver {@link Cifrado}); el historial de una sala puede llegar con varias
+ * tramas seguidas dentro de la misma. Las tramas grandes pueden llegar además comprimidas dentro de
+ * una trama {@link TipoTrama#COMPRIMIDA} (ver {@link Compresion}), que es la que se cifra.
+ *
+ * @author sdacatrinei
+ */
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public final class Protocolo {
+
+    // Versión del formato que escribe y entiende esta implementación
+    public static final int VERSION = 1;
+
+    // Tamaño máximo de una trama sin contar el campo de longitud
+    public static final int LONGITUD_MAXIMA = 1 << 20;
+
+    // Tamaño máximo al leer: deja sitio para la cabecera y la etiqueta de una trama cifrada que
+    // envuelve a otra del tamaño máximo
+    public static final int LONGITUD_MAXIMA_LECTURA = LONGITUD_MAXIMA + 64;
+
+    // Bytes que puede ocupar el campo de longitud: con 3 varint caben hasta 2^21 - 1, más que
+    // LONGITUD_MAXIMA_LECTURA
+    public static final int BYTES_LONGITUD_MAXIMO = 3;
+
+    // Identificador que usa el servidor como remitente de sus propias tramas
+    public static final long SERVIDOR = 0;
+
+    // Marca del saludo (HOLA) con la que el usuario indica que admite tramas COMPRIMIDA
+    public static final int MARCA_COMPRESION = 0x01;
+
+    // Bytes fijos de la cabecera: versión, tipo y marcas
+    private static final int CABECERA_FIJA = 3;
+
+    private Protocolo() {
+    }
+
+    /**
+     * Codifica una trama con una carga de texto en un buffer directo del tamaño exacto.
+     *
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama dentro de las de su remitente.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param texto Carga de la trama.
+     * @return Un buffer preparado para lectura con la trama completa.
+     * @throws IllegalArgumentException Si la trama supera {@link #LONGITUD_MAXIMA}.
+     */
+    public static ByteBuffer codificar(TipoTrama tipo, long remitente, long secuencia, long marcaTiempo,
+            String texto) {
+        return codificar(tipo, 0, remitente, secuencia, marcaTiempo, texto);
+    }
+
+    /**
+     * Codifica una trama con una carga de texto y las marcas indicadas, como el saludo de un
+     * usuario que admite compresión.
+     *
+     * @param tipo Tipo de la trama.
+     * @param marcas Bits de opciones de la cabecera.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama dentro de las de su remitente.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param texto Carga de la trama.
+     * @return Un buffer preparado para lectura con la trama completa.
+     * @throws IllegalArgumentException Si la trama supera {@link #LONGITUD_MAXIMA}.
+     */
+    public static ByteBuffer codificar(TipoTrama tipo, int marcas, long remitente, long secuencia, long marcaTiempo,
+            String texto) {
+        ByteBuffer trama = cabecera(tipo, marcas, remitente, secuencia, marcaTiempo, longitudUtf8(texto));
+        escribirUtf8(trama, texto);
+        return trama.flip();
+    }
+
+    /**
+     * Codifica una trama copiando la carga de una trama recibida, sin decodificarla.
+     *
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama dentro de las de su remitente.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param origen Trama recibida cuya carga se reenvía.
+     * @return Un buffer preparado para lectura con la trama completa.
+     */
+    public static ByteBuffer codificar(TipoTrama tipo, long remitente, long secuencia, long marcaTiempo,
+            TramaEntrante origen) {
+        ByteBuffer trama = cabecera(tipo, 0, remitente, secuencia, marcaTiempo, origen.longitudCarga());
+        origen.copiarCarga(trama);
+        return trama.flip();
+    }
+
+    /**
+     * Codifica una trama con una carga binaria, por ejemplo una clave pública.
+     *
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama dentro de las de su remitente.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param carga Bytes de la carga.
+     * @return Un buffer preparado para lectura con la trama completa.
+     */
+    public static ByteBuffer codificar(TipoTrama tipo, long remitente, long secuencia, long marcaTiempo,
+            byte[] carga) {
+        return cabecera(tipo, 0, remitente, secuencia, marcaTiempo, carga.length).put(carga).flip();
+    }
+
+    /**
+     * Codifica una trama con la carga binaria que hay entre la posición y el límite de un buffer,
+     * como la de una trama comprimida. La posición del buffer no cambia.
+     *
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param carga Buffer en modo lectura con la carga.
+     * @return Un buffer preparado para lectura con la trama completa.
+     * @throws IllegalArgumentException Si la trama supera {@link #LONGITUD_MAXIMA}.
+     */
+    public static ByteBuffer codificar(TipoTrama tipo, long remitente, long secuencia, long marcaTiempo,
+            ByteBuffer carga) {
+        return cabecera(tipo, 0, remitente, secuencia, marcaTiempo, carga.remaining()).put(carga.duplicate()).flip();
+    }
+
+    /**
+     * Codifica una trama cuya carga es un nombre de usuario seguido de un texto, como las de
+     * {@link TipoTrama#PRIVADO} que envía un usuario.
+     *
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param nombre Nombre de usuario en UTF-8.
+     * @param texto Texto en UTF-8.
+     * @return Un buffer preparado para lectura con la trama completa.
+     * @throws IllegalArgumentException Si la trama supera {@link #LONGITUD_MAXIMA}.
+     */
+    public static ByteBuffer codificarConNombre(TipoTrama tipo, long remitente, long secuencia, long marcaTiempo,
+            byte[] nombre, byte[] texto) {
+        int longitud = longitudConNombre(remitente, secuencia, marcaTiempo, nombre.length, texto.length);
+        if (longitud < 0) {
+            throw new IllegalArgumentException("Mensaje demasiado largo: " + (nombre.length + texto.length) + " bytes");
+        }
+        ByteBuffer trama = ByteBuffer.allocateDirect(longitud);
+        escribirConNombre(trama, tipo, remitente, secuencia, marcaTiempo, nombre, texto);
+        return trama.flip();
+    }
+
+    /**
+     * Calcula el tamaño total de una trama cuya carga es un nombre de usuario seguido de un texto,
+     * como las de {@link TipoTrama#HISTORIAL} y {@link TipoTrama#PRIVADO}.
+     *
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param longitudNombre Bytes del nombre en UTF-8.
+     * @param longitudTexto Bytes del texto en UTF-8.
+     * @return El tamaño de la trama, incluido el campo de longitud, o -1 si supera {@link #LONGITUD_MAXIMA}.
+     */
+    public static int longitudConNombre(long remitente, long secuencia, long marcaTiempo, int longitudNombre,
+            int longitudTexto) {
+        long cuerpo = longitudCuerpo(remitente, secuencia, marcaTiempo,
+                tamanoVarint(longitudNombre) + longitudNombre + longitudTexto);
+        return cuerpo > LONGITUD_MAXIMA ? -1 : tamanoVarint(cuerpo) + (int) cuerpo;
+    }
+
+    /**
+     * Escribe en la posición actual del destino una trama cuya carga es un nombre de usuario
+     * seguido de un texto. El destino debe tener al menos {@link #longitudConNombre} bytes libres.
+     *
+     * @param destino Buffer en el que se escribe la trama.
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param nombre Nombre de usuario en UTF-8.
+     * @param texto Texto en UTF-8.
+     */
+    public static void escribirConNombre(ByteBuffer destino, TipoTrama tipo, long remitente, long secuencia,
+            long marcaTiempo, byte[] nombre, byte[] texto) {
+        escribirCabecera(destino, tipo, remitente, secuencia, marcaTiempo,
+                tamanoVarint(nombre.length) + nombre.length + texto.length);
+        escribirVarint(destino, nombre.length);
+        destino.put(nombre).put(texto);
+    }
+
+    /**
+     * Escribe en la posición actual del destino una trama con una carga binaria, como el nombre de
+     * una trama {@link TipoTrama#CONEXION} que se agrupa con otras. El destino debe tener al menos
+     * {@link #longitudTrama} bytes libres.
+     *
+     * @param destino Buffer en el que se escribe la trama.
+     * @param tipo Tipo de la trama.
+     * @param remitente Identificador del remitente.
+     * @param secuencia Número de la trama.
+     * @param marcaTiempo Milisegundos desde la época.
+     * @param carga Bytes de la carga.
+     */
+    public static void escribir(ByteBuffer destino, TipoTrama tipo, long remitente, long secuencia,
+            long marcaTiempo, byte[] carga) {
+        escribirCabecera(destino, tipo, remitente, secuencia, marcaTiempo, carga.length);
+        destino.put(carga);
+    }
+
+    /**
+     * Reserva el buffer de una trama y escribe su cabecera.
+     */
+    private static ByteBuffer cabecera(TipoTrama tipo, int marcas, long remitente, long secuencia, long marcaTiempo,
+            int longitudCarga) {
+        long cuerpo = longitudCuerpo(remitente, secuencia, marcaTiempo, longitudCarga);
+        if (cuerpo > LONGITUD_MAXIMA) {
+            throw new IllegalArgumentException("Mensaje demasiado largo: " + cuerpo + " bytes");
+        }
+        ByteBuffer trama = ByteBuffer.allocateDirect(tamanoVarint(cuerpo) + (int) cuerpo);
+        escribirCabecera(trama, tipo, marcas, remitente, secuencia, marcaTiempo, longitudCarga);
+        return trama;
+    }
+
+    /**
+     * Calcula el tamaño total de una trama, incluido el campo de longitud.
+     */
+    public static int longitudTrama(long remitente, long secuencia, long marcaTiempo, int longitudCarga) {
+        long cuerpo = longitudCuerpo(remitente, secuencia, marcaTiempo, longitudCarga);
+        return (int) Math.min(Integer.MAX_VALUE, tamanoVarint(cuerpo) + cuerpo);
+    }
+
+    /**
+     * Calcula el tamaño de una trama sin contar el campo de longitud.
+     */
+    private static long longitudCuerpo(long remitente, long secuencia, long marcaTiempo, int longitudCarga) {
+        return (long) CABECERA_FIJA + tamanoVarint(remitente) + tamanoVarint(secuencia)
+                + tamanoVarint(marcaTiempo) + longitudCarga;
+    }
+
+    /**
+     * Escribe la cabecera de una trama en la posición actual del buffer; la carga se escribe a continuación.
+     */
+    static void escribirCabecera(ByteBuffer trama, TipoTrama tipo, long remitente, long secuencia,
+            long marcaTiempo, int longitudCarga) {
+        escribirCabecera(trama, tipo, 0, remitente, secuencia, marcaTiempo, longitudCarga);
+    }
+
+    private static void escribirCabecera(ByteBuffer trama, TipoTrama tipo, int marcas, long remitente,
+            long secuencia, long marcaTiempo, int longitudCarga) {
+        escribirVarint(trama, longitudCuerpo(remitente, secuencia, marcaTiempo, longitudCarga));
+        trama.put((byte) VERSION);
+        trama.put((byte) tipo.getCodigo());
+        trama.put((byte) marcas);
+        escribirVarint(trama, remitente);
+        escribirVarint(trama, secuencia);
+        escribirVarint(trama, marcaTiempo);
+    }
+
+    /**
+     * Devuelve el tamaño total de la trama que empieza en la posición actual del buffer, incluido
+     * el campo de longitud, o -1 si todavía no se ha recibido el campo de longitud completo.
+     * No modifica la posición del buffer.
+     *
+     * @param buffer Buffer en modo lectura.
+     * @return Tamaño total de la trama o -1.
+     * @throws ProtocolException Si la longitud no es válida o la trama es demasiado grande.
+     */
+    public static int longitudPendiente(ByteBuffer buffer) throws ProtocolException {
+        return longitudPendiente(buffer, LONGITUD_MAXIMA_LECTURA);
+    }
+
+    /**
+     * Igual que {@link #longitudPendiente(ByteBuffer)}, pero rechaza la trama en cuanto su longitud
+     * indica que ocupará más de lo permitido, sin esperar a recibir la carga.
+     *
+     * @param buffer Buffer en modo lectura.
+     * @param maxima Tamaño máximo del cuerpo de la trama, sin el campo de longitud.
+     * @return Tamaño total de la trama o -1.
+     * @throws ProtocolException Si la longitud no es válida o la trama es demasiado grande.
+     */
+    public static int longitudPendiente(ByteBuffer buffer, int maxima) throws ProtocolException {
+        long cuerpo = 0;
+        int posicion = buffer.position();
+        for (int desplazamiento = 0; posicion < buffer.limit(); desplazamiento += 7) {
+            // Sin este tope, quien enviara solo bytes de continuación nunca completaría la longitud
+            if (posicion - buffer.position() == BYTES_LONGITUD_MAXIMO) {
+                throw new ProtocolException("Longitud de trama mal formada");
+            }
+            byte b = buffer.get(posicion++);
+            cuerpo |= (long) (b & 0x7F) << desplazamiento;
+            if (cuerpo > maxima) {
+                throw new ProtocolException("Trama demasiado larga");
+            }
+            if (b >= 0) {
+                return (posicion - buffer.position()) + (int) cuerpo;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Número de bytes que ocupa un valor codificado como varint.
+     */
+    static int tamanoVarint(long valor) {
+        int bytes = 1;
+        while ((valor >>>= 7) != 0) {
+            bytes++;
+        }
+        return bytes;
+    }
+
+    static void escribirVarint(ByteBuffer destino, long valor) {
+        while ((valor & ~0x7FL) != 0) {
+            destino.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        destino.put((byte) valor);
+    }
+
+    /**
+     * Lee un varint a partir de la posición actual y avanza la posición.
+     *
+     * @throws ProtocolException Si el varint no termina antes del límite o tiene más de 64 bits.
+     */
+    static long leerVarint(ByteBuffer origen) throws ProtocolException {
+        long valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            if (!origen.hasRemaining()) {
+                throw new ProtocolException("Trama incompleta");
+            }
+            byte b = origen.get();
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            if (b >= 0) {
+                return valor;
+            }
+        }
+        throw new ProtocolException("Varint demasiado largo");
+    }
+
+    /**
+     * Calcula los bytes que ocupa un texto en UTF-8. Los sustitutos sueltos se codifican como '?',
+     * igual que hace String.getBytes.
+     */
+    static int longitudUtf8(String texto) {
+        int largo = texto.length();
+        int longitud = 0;
+        for (int i = 0; i < largo; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                longitud++;
+            } else if (c < 0x800) {
+                longitud += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < largo && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                longitud += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                longitud++;
+            } else {
+                longitud += 3;
+            }
+        }
+        return longitud;
+    }
+
+    private static void escribirUtf8(ByteBuffer destino, String texto) {
+        int largo = texto.length();
+        for (int i = 0; i < largo; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                destino.put((byte) c);
+            } else if (c < 0x800) {
+                destino.put((byte) (0xC0 | (c >> 6)));
+                destino.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < largo && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                int punto = Character.toCodePoint(c, texto.charAt(++i));
+                destino.put((byte) (0xF0 | (punto >> 18)));
+                destino.put((byte) (0x80 | ((punto >> 12) & 0x3F)));
+                destino.put((byte) (0x80 | ((punto >> 6) & 0x3F)));
+                destino.put((byte) (0x80 | (punto & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                destino.put((byte) '?');
+            } else {
+                destino.put((byte) (0xE0 | (c >> 12)));
+                destino.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                destino.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
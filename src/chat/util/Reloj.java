@@ -0,0 +1,146 @@
+package chat.util;
+
+/**
+ * Reloj compartido para las marcas de tiempo del chat. La hora en formato "HH:mm" se formatea una
+ * sola vez por minuto y se reutiliza mientras no cambie el minuto, así que ponerle la hora a un
+ * mensaje no crea formateadores ni fechas. Para el log y el protocolo ofrece además marcas de
+ * tiempo completas: milisegundos desde la época y texto ISO-8601 con la zona horaria local,
+ * cuya parte hasta los segundos también se guarda formateada.
+ *
+ * Todos los métodos se pueden llamar desde cualquier hilo.
+ *
+ * @author sdacatrinei
+ */
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+public final class Reloj {
+
+    // Texto ya formateado de un intervalo de tiempo [inicio, fin) en milisegundos y, para los
+    // segundos, el desplazamiento de la zona horaria en ese intervalo
+    private record Tramo(long inicio, long fin, String texto, String zona) {
+
+        boolean contiene(long millis) {
+            return millis >= inicio && millis < fin;
+        }
+    }
+
+    private static final long MILLIS_MINUTO = 60_000;
+    private static final long MILLIS_SEGUNDO = 1_000;
+
+    // Último minuto formateado como "HH:mm"
+    private static volatile Tramo minuto = new Tramo(0, 0, "", "");
+
+    // Último segundo formateado como "yyyy-MM-ddTHH:mm:ss"
+    private static volatile Tramo segundo = new Tramo(0, 0, "", "");
+
+    private Reloj() {
+    }
+
+    /**
+     * @return Milisegundos transcurridos desde la época (1970-01-01T00:00:00Z).
+     */
+    public static long ahora() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Devuelve la hora actual en formato "HH:mm". Solo se formatea cuando cambia el minuto.
+     *
+     * @return La hora y los minutos actuales.
+     */
+    public static String horaMinuto() {
+        return horaMinuto(System.currentTimeMillis());
+    }
+
+    /**
+     * Devuelve la hora de un instante en formato "HH:mm". Si el instante cae en el último minuto
+     * formateado, que es lo normal con las marcas de tiempo de los mensajes, no se formatea nada.
+     *
+     * @param millis Milisegundos desde la época.
+     * @return La hora y los minutos del instante.
+     */
+    public static String horaMinuto(long millis) {
+        Tramo actual = minuto;
+        if (!actual.contiene(millis)) {
+            actual = formatearMinuto(millis);
+        }
+        return actual.texto();
+    }
+
+    /**
+     * Añade la hora actual al principio de un texto con el formato de los mensajes del chat.
+     *
+     * @param texto El texto al que se le añade la hora.
+     * @return "[HH:mm] texto".
+     */
+    public static String conHora(String texto) {
+        return "[" + horaMinuto() + "] " + texto;
+    }
+
+    /**
+     * Devuelve un instante en formato ISO-8601 con milisegundos y la zona horaria local,
+     * por ejemplo "2024-05-01T18:30:05.123+02:00".
+     *
+     * @param millis Milisegundos desde la época.
+     * @return El instante formateado.
+     */
+    public static String iso8601(long millis) {
+        return anadirIso8601(new StringBuilder(29), millis).toString();
+    }
+
+    /**
+     * Añade un instante en formato ISO-8601 al final de un StringBuilder, sin crear objetos
+     * intermedios salvo cuando cambia el segundo.
+     *
+     * @param destino Donde se escribe el instante.
+     * @param millis Milisegundos desde la época.
+     * @return El mismo StringBuilder, para encadenar llamadas.
+     */
+    public static StringBuilder anadirIso8601(StringBuilder destino, long millis) {
+        Tramo actual = segundo;
+        if (!actual.contiene(millis)) {
+            actual = formatearSegundo(millis);
+        }
+        int milesimas = (int) Math.floorMod(millis, MILLIS_SEGUNDO);
+        destino.append(actual.texto()).append('.');
+        if (milesimas < 100) {
+            destino.append('0');
+        }
+        if (milesimas < 10) {
+            destino.append('0');
+        }
+        return destino.append(milesimas).append(actual.zona());
+    }
+
+    /**
+     * Formatea el minuto que contiene el instante y lo deja guardado para las siguientes llamadas.
+     * Si dos hilos cambian de minuto a la vez, ambos calculan el mismo texto.
+     */
+    private static Tramo formatearMinuto(long millis) {
+        LocalDateTime hora = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        long inicio = millis - Math.floorMod(millis, MILLIS_MINUTO);
+        Tramo nuevo = new Tramo(inicio, inicio + MILLIS_MINUTO, dosCifras(hora.getHour()) + ":" + dosCifras(hora.getMinute()), "");
+        minuto = nuevo;
+        return nuevo;
+    }
+
+    private static Tramo formatearSegundo(long millis) {
+        Instant instante = Instant.ofEpochMilli(millis);
+        ZoneOffset zona = ZoneId.systemDefault().getRules().getOffset(instante);
+        LocalDateTime hora = LocalDateTime.ofInstant(instante, zona);
+        long inicio = millis - Math.floorMod(millis, MILLIS_SEGUNDO);
+        String texto = hora.getYear() + "-" + dosCifras(hora.getMonthValue()) + "-" + dosCifras(hora.getDayOfMonth())
+                + "T" + dosCifras(hora.getHour()) + ":" + dosCifras(hora.getMinute()) + ":" + dosCifras(hora.getSecond());
+        Tramo nuevo = new Tramo(inicio, inicio + MILLIS_SEGUNDO, texto, zona.getId());
+        segundo = nuevo;
+        return nuevo;
+    }
+
+    private static String dosCifras(int numero) {
+        return numero < 10 ? "0" + numero : Integer.toString(numero);
+    }
+}
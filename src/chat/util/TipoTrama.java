@@ -0,0 +1,99 @@
+package chat.util;
+
+/**
+ * Tipos de trama del protocolo del chat (ver {@link Protocolo}). El código de cada tipo es el
+ * byte que viaja en la cabecera; los códigos ya publicados no se reutilizan ni se cambian.
+ * Entre los nodos de un cluster se usan algunos de los mismos tipos, como se indica en cada uno.
+ *
+ * @author sdacatrinei
+ */
+
+public enum TipoTrama {
+    // Usuario → servidor: primera trama de la conexión, con el nombre del usuario. Si el nombre no es
+    // válido o ya está en uso, el servidor responde con un RECHAZO y espera otro saludo
+    HOLA(1),
+    // Servidor → usuario: confirma el nombre; el remitente es el identificador asignado al usuario
+    BIENVENIDA(2),
+    // En ambos sentidos: mensaje de chat; hacia los usuarios lleva el identificador de quien lo envió
+    // y como secuencia su número dentro de la sala
+    MENSAJE(3),
+    // Servidor → usuarios: un usuario se ha conectado (o ya lo estaba al entrar); la carga es su nombre.
+    // Entre nodos: lo mismo, para un usuario del nodo que envía la trama
+    CONEXION(4),
+    // Servidor → usuarios y entre nodos: un usuario se ha desconectado; la carga es su nombre
+    DESCONEXION(5),
+    // Usuario → servidor: el usuario abandona el chat
+    SALIR(6),
+    // Servidor → usuario: aviso informativo, por ejemplo que está en la cola de espera
+    AVISO(7),
+    // Servidor → usuario: la conexión no se puede atender y se va a cerrar, o no se acepta el nombre
+    // del saludo (la conexión sigue abierta por si saluda con otro)
+    RECHAZO(8),
+    // En ambos sentidos, antes del saludo: clave pública efímera para acordar la clave de la sesión
+    CLAVE(9),
+    // En ambos sentidos: otra trama completa cifrada con la clave de la sesión; la secuencia es su contador.
+    // Hacia los usuarios puede envolver varias tramas seguidas, como las del historial de una sala
+    CIFRADA(10),
+    // Usuario → servidor: cambiar a la sala cuyo nombre es la carga. Servidor → usuario: el remitente
+    // está en la sala o acaba de entrar en ella; la carga es el nombre de la sala. Entre nodos: el
+    // remitente, usuario del nodo que envía la trama, está ahora en esa sala
+    UNIRSE(11),
+    // Usuario → servidor: dejar la sala actual y volver a la general. Servidor → usuario: el
+    // remitente ha dejado la sala; la carga es el nombre de la sala
+    DEJAR(12),
+    // Usuario → servidor: pedir los mensajes de su sala posteriores a la secuencia que indica la carga
+    // (en decimal). Servidor → usuario: mensaje del historial de la sala, con el remitente, la secuencia
+    // y la marca de tiempo del original; la carga es el nombre de quien lo envió precedido de su
+    // longitud (varint) y seguido del texto
+    HISTORIAL(13),
+    // Usuario → servidor: mensaje privado; la carga es el nombre del destinatario precedido de su
+    // longitud (varint) y seguido del texto. Servidor → usuario: mensaje privado de parte del
+    // remitente; la carga es el texto. Entre nodos: como la del usuario, para un destinatario del
+    // nodo que la recibe
+    PRIVADO(14),
+    // Entre nodos: primera trama de cada enlace; el remitente es el número del nodo que lo abre.
+    // Después, las tramas MENSAJE llevan como carga el nombre de la sala precedido de su longitud
+    // (varint) y seguido del texto, y como marca de tiempo la de su llegada al nodo de origen
+    NODO(15),
+    // Usuario ↔ servidor: la conexión sigue viva aunque no haya nada que enviar. Lo envía el
+    // cliente cuando el usuario no escribe y el servidor cuando el usuario lleva un rato callado;
+    // quien lo recibe responde con un ECO, así que cada lado sabe que el otro sigue ahí
+    LATIDO(16),
+    // Respuesta a un LATIDO; no se responde
+    ECO(17),
+    // Servidor → usuario: una o varias tramas completas comprimidas con deflate (ver Compresion); la
+    // secuencia es lo que ocupan sin comprimir. Solo se envía a quien saludó con MARCA_COMPRESION
+    COMPRIMIDA(18);
+
+    // Tipos indexados por código para decodificar sin recorrer los valores
+    private static final TipoTrama[] POR_CODIGO = new TipoTrama[256];
+
+    static {
+        for (TipoTrama tipo : values()) {
+            POR_CODIGO[tipo.codigo] = tipo;
+        }
+    }
+
+    private final int codigo;
+
+    TipoTrama(int codigo) {
+        this.codigo = codigo;
+    }
+
+    /**
+     * @return El byte que identifica al tipo en la cabecera de la trama.
+     */
+    public int getCodigo() {
+        return codigo;
+    }
+
+    /**
+     * Busca el tipo que corresponde a un código recibido.
+     *
+     * @param codigo El byte de tipo de la cabecera (0-255).
+     * @return El tipo, o null si el código no se conoce (por ejemplo, de una versión más reciente).
+     */
+    public static TipoTrama deCodigo(int codigo) {
+        return POR_CODIGO[codigo & 0xFF];
+    }
+}
@@ -0,0 +1,267 @@
+package chat.util;
+
+/**
+ * Trama recibida ya interpretada. Cada conexión reutiliza la misma instancia para todas sus tramas:
+ * los campos de la cabecera se guardan como números y la carga no se copia, sino que se recuerda
+ * dónde está dentro del buffer de lectura. Por eso los datos solo son válidos hasta que se lee la
+ * siguiente trama.
+ *
+ * @author sdacatrinei
+ */
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class TramaEntrante {
+
+    private TipoTrama tipo;
+    private int marcas;
+    private long remitente;
+    private long secuencia;
+    private long marcaTiempo;
+
+    // Buffer que contiene la carga y su posición dentro de él
+    private ByteBuffer origen;
+    private int inicioCarga;
+    private int longitudCarga;
+
+    // Bytes de la trama completa, incluida su longitud
+    private int longitud;
+
+    // Buffer propio para leer desde un flujo; crece solo si llega una trama más grande
+    private byte[] lectura = new byte[512];
+    private ByteBuffer vistaLectura = ByteBuffer.wrap(lectura);
+
+    /**
+     * Interpreta la trama completa que empieza en la posición actual del buffer y avanza la
+     * posición hasta el final de la misma.
+     *
+     * @param buffer Buffer en modo lectura con la trama completa disponible.
+     * @param total Tamaño de la trama devuelto por {@link Protocolo#longitudPendiente(ByteBuffer)}.
+     * @throws ProtocolException Si la trama no tiene un formato válido.
+     */
+    public void decodificar(ByteBuffer buffer, int total) throws ProtocolException {
+        int fin = buffer.position() + total;
+        longitud = total;
+        Protocolo.leerVarint(buffer); // La longitud ya la conocemos
+        int limite = buffer.limit();
+        buffer.limit(fin);
+        try {
+            decodificarCuerpo(buffer);
+        } finally {
+            buffer.limit(limite);
+            buffer.position(fin);
+        }
+    }
+
+    /**
+     * Lee una trama completa de un flujo bloqueante.
+     *
+     * @param entrada Flujo del que se lee.
+     * @throws IOException Si el flujo se cierra o la trama no tiene un formato válido.
+     */
+    public void leerDe(DataInputStream entrada) throws IOException {
+        leerDe(entrada, Protocolo.LONGITUD_MAXIMA_LECTURA);
+    }
+
+    /**
+     * Lee una trama completa de un flujo bloqueante, rechazándola antes de leer la carga si su
+     * longitud supera el máximo indicado.
+     *
+     * @param entrada Flujo del que se lee.
+     * @param maxima Tamaño máximo del cuerpo de la trama, sin el campo de longitud.
+     * @throws IOException Si el flujo se cierra o la trama no tiene un formato válido.
+     */
+    public void leerDe(DataInputStream entrada, int maxima) throws IOException {
+        long cuerpo = 0;
+        int bytesLongitud = 0;
+        for (int desplazamiento = 0; ; desplazamiento += 7) {
+            if (bytesLongitud == Protocolo.BYTES_LONGITUD_MAXIMO) {
+                throw new ProtocolException("Longitud de trama mal formada");
+            }
+            int b = entrada.readUnsignedByte();
+            bytesLongitud++;
+            cuerpo |= (long) (b & 0x7F) << desplazamiento;
+            if (cuerpo > maxima) {
+                throw new ProtocolException("Trama demasiado larga");
+            }
+            if (b < 0x80) {
+                break;
+            }
+        }
+        if (lectura.length < cuerpo) {
+            lectura = new byte[(int) cuerpo];
+            vistaLectura = ByteBuffer.wrap(lectura);
+        }
+        entrada.readFully(lectura, 0, (int) cuerpo);
+        longitud = bytesLongitud + (int) cuerpo;
+        vistaLectura.clear().limit((int) cuerpo);
+        decodificarCuerpo(vistaLectura);
+    }
+
+    /**
+     * Interpreta la cabecera y la carga que hay entre la posición y el límite del buffer.
+     */
+    private void decodificarCuerpo(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 3) {
+            throw new ProtocolException("Trama incompleta");
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != Protocolo.VERSION) {
+            throw new ProtocolException("Versión del protocolo no soportada: " + version);
+        }
+        tipo = TipoTrama.deCodigo(buffer.get());
+        marcas = buffer.get() & 0xFF;
+        remitente = Protocolo.leerVarint(buffer);
+        secuencia = Protocolo.leerVarint(buffer);
+        marcaTiempo = Protocolo.leerVarint(buffer);
+        origen = buffer;
+        inicioCarga = buffer.position();
+        longitudCarga = buffer.remaining();
+    }
+
+    /**
+     * @return El tipo de la trama, o null si es de un tipo que esta versión no conoce.
+     */
+    public TipoTrama getTipo() {
+        return tipo;
+    }
+
+    public int getMarcas() {
+        return marcas;
+    }
+
+    public long getRemitente() {
+        return remitente;
+    }
+
+    public long getSecuencia() {
+        return secuencia;
+    }
+
+    public long getMarcaTiempo() {
+        return marcaTiempo;
+    }
+
+    /**
+     * @return Número de bytes de la trama completa tal y como llegó, incluida su longitud.
+     */
+    public int longitud() {
+        return longitud;
+    }
+
+    /**
+     * @return Número de bytes de la carga.
+     */
+    public int longitudCarga() {
+        return longitudCarga;
+    }
+
+    /**
+     * Decodifica la carga como texto UTF-8. Es el único punto en el que se crea un String.
+     *
+     * @return El texto de la carga.
+     */
+    public String texto() {
+        return decodificar(inicioCarga, longitudCarga);
+    }
+
+    /**
+     * Decodifica el nombre de usuario por el que empieza la carga en tramas como las de
+     * {@link TipoTrama#HISTORIAL} (el autor) o {@link TipoTrama#PRIVADO} (el destinatario).
+     *
+     * @return El nombre.
+     * @throws ProtocolException Si la carga no empieza por un nombre válido.
+     */
+    public String nombre() throws ProtocolException {
+        ByteBuffer carga = vistaCarga();
+        int longitud = leerLongitudNombre(carga);
+        return decodificar(carga.position(), longitud);
+    }
+
+    /**
+     * Decodifica el texto que sigue al nombre de usuario en tramas como las de {@link TipoTrama#HISTORIAL}.
+     *
+     * @return El texto de la carga sin el nombre.
+     * @throws ProtocolException Si la carga no empieza por un nombre válido.
+     */
+    public String textoTrasNombre() throws ProtocolException {
+        ByteBuffer carga = vistaCarga();
+        int longitud = leerLongitudNombre(carga);
+        int inicio = carga.position() + longitud;
+        return decodificar(inicio, carga.limit() - inicio);
+    }
+
+    /**
+     * Copia el texto que sigue al nombre en tramas como las de {@link TipoTrama#HISTORIAL}, sin
+     * decodificarlo.
+     *
+     * @return Los bytes del texto.
+     * @throws ProtocolException Si la carga no empieza por un nombre válido.
+     */
+    public byte[] bytesTrasNombre() throws ProtocolException {
+        ByteBuffer carga = vistaCarga();
+        int longitud = leerLongitudNombre(carga);
+        byte[] bytes = new byte[carga.remaining() - longitud];
+        carga.get(carga.position() + longitud, bytes);
+        return bytes;
+    }
+
+    private ByteBuffer vistaCarga() {
+        return origen.duplicate().limit(inicioCarga + longitudCarga).position(inicioCarga);
+    }
+
+    /**
+     * Lee la longitud del nombre y deja la posición al principio del nombre.
+     */
+    private static int leerLongitudNombre(ByteBuffer carga) throws ProtocolException {
+        long longitud = Protocolo.leerVarint(carga);
+        // Un varint de 10 bytes puede dar un número negativo
+        if (longitud < 0 || longitud > carga.remaining()) {
+            throw new ProtocolException("Nombre mal formado");
+        }
+        return (int) longitud;
+    }
+
+    private String decodificar(int inicio, int longitud) {
+        if (origen.hasArray()) {
+            return new String(origen.array(), origen.arrayOffset() + inicio, longitud, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[longitud];
+        origen.get(inicio, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Una copia de los bytes de la carga, para cargas binarias como una clave pública.
+     */
+    public byte[] bytes() {
+        byte[] bytes = new byte[longitudCarga];
+        origen.get(inicioCarga, bytes);
+        return bytes;
+    }
+
+    /**
+     * Buffer que contiene la carga; solo lo usa {@link Cifrado} para descifrarla sin copiarla.
+     */
+    ByteBuffer origenCarga() {
+        return origen;
+    }
+
+    int inicioCarga() {
+        return inicioCarga;
+    }
+
+    /**
+     * Copia la carga al final de un buffer sin decodificarla.
+     *
+     * @param destino Buffer en el que se escribe la carga.
+     */
+    public void copiarCarga(ByteBuffer destino) {
+        destino.put(destino.position(), origen, inicioCarga, longitudCarga);
+        destino.position(destino.position() + longitudCarga);
+    }
+}